@@ -0,0 +1,54 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * BaseESMapper for IndexDocumentWritable input, see IndexDocumentReducer. Passes each doc through keyed on its
+ * index & routing, which are taken off the doc so they're only shuffled once. The input key is ignored.
+ *
+ */
+public class BaseESDocumentMapper implements Mapper<Writable, IndexDocumentWritable, IndexShardKey, IndexDocumentWritable> {
+	private IndexShardKey shardKey = new IndexShardKey();
+
+	// See DedupeRule
+	private boolean dedupeEnabled;
+
+	@Override
+	public void configure(JobConf job) {
+		dedupeEnabled = job.getBoolean(ConfigParams.DEDUPE_ENABLED.toString(), false);
+	}
+
+	@Override
+	public void map(Writable key, IndexDocumentWritable document, OutputCollector<IndexShardKey, IndexDocumentWritable> output, Reporter reporter) throws IOException {
+		if(document.getIndex() == null) {
+			throw new IOException("Doc " + document.getIndexType() + BaseESReducer.TUPLE_SEPARATOR + document.getDocId() + " is missing its index & routing");
+		}
+
+		// Dedupe needs copies of a doc back to back, which trumps any other order
+		String sortValue = dedupeEnabled ? document.getIndexType() + BaseESReducer.TUPLE_SEPARATOR + document.getDocId() : getSortValue(document);
+		shardKey.set(document.getIndex(), document.getRouting(), sortValue);
+		document.setShard(null, null);
+		output.collect(shardKey, document);
+	}
+
+	/**
+	 * Override to control the order docs are indexed in within a shard. Values are compared as bytes, so zero pad
+	 * numbers. Unlike with Text keys, no SecondarySort set up is needed.
+	 *
+	 * @param document
+	 * @return String The value to sort on (EG an ISO-8601 timestamp), null to leave the doc unsorted
+	 */
+	protected String getSortValue(IndexDocumentWritable document) {
+		return null;
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+}
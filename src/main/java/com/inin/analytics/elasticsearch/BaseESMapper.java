@@ -17,7 +17,16 @@ import org.apache.hadoop.mapred.Reporter;
  *
  */
 public class BaseESMapper implements Mapper <Text, Text, Text, Text> {
+	// See SecondarySort
+	private boolean secondarySortEnabled;
+	private Text sortedKey = new Text();
+	
+	// See DedupeRule
+	private boolean dedupeEnabled;
+	
 	public void configure(JobConf job) {
+		secondarySortEnabled = job.getBoolean(ConfigParams.SECONDARY_SORT_ENABLED.toString(), false);
+		dedupeEnabled = job.getBoolean(ConfigParams.DEDUPE_ENABLED.toString(), false);
 	}
 
 	public void map(Text indexAndRouting, Text documentPayload, OutputCollector<Text, Text> output, Reporter reporter) throws IOException {
@@ -25,8 +34,40 @@ public class BaseESMapper implements Mapper <Text, Text, Text, Text> {
 		 * Reducer key looks like this   [indexName]|[routing hash] value [doc type]|[doc id]|json
 		 * 
 		 */
+		if(secondarySortEnabled) {
+			// Dedupe needs copies of a doc back to back, which trumps any other order
+			String sortValue = dedupeEnabled ? getTypeAndId(documentPayload) : getSortValue(indexAndRouting, documentPayload);
+			if(sortValue != null) {
+				sortedKey.set(indexAndRouting.toString() + BaseESReducer.TUPLE_SEPARATOR + sortValue);
+				output.collect(sortedKey, documentPayload);
+				return;
+			}
+		}
 		output.collect(indexAndRouting, documentPayload);
 	} 
+	
+	/**
+	 * Override to control the order docs are indexed in within a shard when secondary sort is enabled. Values
+	 * are compared as bytes, so zero pad numbers. 
+	 * 
+	 * @param indexAndRouting
+	 * @param documentPayload
+	 * @return String The value to sort on (EG an ISO-8601 timestamp), null to leave the doc unsorted
+	 */
+	protected String getSortValue(Text indexAndRouting, Text documentPayload) {
+		return null;
+	}
+	
+	/**
+	 * 
+	 * @param documentPayload
+	 * @return String The [doc type]|[doc id] prefix of the payload
+	 * @throws IOException
+	 */
+	private static String getTypeAndId(Text documentPayload) throws IOException {
+		// Same scan as for the [indexName]|[routing hash] prefix of a key, up to the second separator
+		return Text.decode(documentPayload.getBytes(), 0, SecondarySort.getShardKeyLength(documentPayload.getBytes(), 0, documentPayload.getLength()));
+	}
 
 	public void close() throws IOException {
 	}
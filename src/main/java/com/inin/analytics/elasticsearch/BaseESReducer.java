@@ -4,35 +4,124 @@ import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilde
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
 import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexResponse;
-import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inin.analytics.elasticsearch.daemon.IndexingDaemonClient;
+import com.inin.analytics.elasticsearch.indexer.AdaptiveBulkDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.BulkDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.BulkSizeController;
+import com.inin.analytics.elasticsearch.indexer.DedupingDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DocumentFailureHandler;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DuplicatePolicy;
+import com.inin.analytics.elasticsearch.indexer.MappingWarmer;
+import com.inin.analytics.elasticsearch.indexer.ParallelDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.SingleDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.TextDocumentDecoder;
+import com.google.common.base.Preconditions;
+import com.inin.analytics.elasticsearch.transport.BaseTransport;
 import com.inin.analytics.elasticsearch.transport.SnapshotTransportStrategy;
 
 public abstract class BaseESReducer implements Reducer<Text, Text, NullWritable, Text> {
+	private static transient Logger logger = LoggerFactory.getLogger(BaseESReducer.class);
+	
 	public static final char TUPLE_SEPARATOR = '|';
 	public static final char DIR_SEPARATOR = '/';
 	
 	public static enum JOB_COUNTER {
-		TIME_SPENT_INDEXING_MS, TIME_SPENT_FLUSHING_MS, TIME_SPENT_MERGING_MS, TIME_SPENT_SNAPSHOTTING_MS, TIME_SPENT_TRANSPORTING_SNAPSHOT_MS, INDEXING_DOC_FAIL, INDEX_DOC_CREATED, INDEX_DOC_NOT_CREATED
+		// Time spent
+		TIME_SPENT_INDEXING_MS,
+		TIME_SPENT_FLUSHING_MS,
+		TIME_SPENT_FLUSHING_DURING_INDEXING_MS,
+		TIME_SPENT_MERGING_MS,
+		TIME_SPENT_SNAPSHOTTING_MS,
+		TIME_SPENT_WRITING_SNAPSHOT_MS,
+		TIME_SPENT_TRANSPORTING_SNAPSHOT_MS,
+		TIME_SPENT_WAITING_MS,
+
+		// Docs
+		INDEXING_DOC_FAIL,
+		INDEX_DOC_CREATED,
+		INDEX_DOC_NOT_CREATED,
+		DOCS_QUARANTINED,
+		MAPPING_UPDATES_DURING_INDEXING,
+
+		// Dedupe
+		DOCS_COLLAPSED,
+		DUPLICATE_DOCS,
+
+		// Adaptive bulk indexing
+		BULK_BACKOFFS,
+		BULK_REJECTED_RETRIES,
+
+		// Flushes & merges
+		FLUSHES_DURING_INDEXING,
+		TRANSLOG_BYTES_AT_COMMIT,
+		SEGMENTS_BEFORE_MERGE,
+		SEGMENTS_AFTER_MERGE,
+		MERGES_SKIPPED,
+
+		// Shards
+		SHARDS_BUILT_IN_MEMORY,
+		SHARDS_BUILT_ON_DISK,
+		SHARDS_RESUMED
 	}
 	
 	// We prefix all snapshots with the word snapshot
 	public static final String SNAPSHOT_NAME = "snapshot";
 	
+	// Bulk indexing defaults, roughly what the elasticsearch docs recommend as a starting point
+	public static final int DEFAULT_BULK_ACTIONS = 1000;
+	public static final int DEFAULT_BULK_SIZE_MB = 5;
+	public static final int DEFAULT_BULK_CONCURRENT_REQUESTS = 1;
+	
+	// Docs buffered per indexing worker before the reduce thread blocks
+	public static final int DEFAULT_INDEXING_QUEUE_SIZE = 1000;
+	
+	// Shards allowed to wait on snapshot & transport while the next one is indexed
+	public static final int DEFAULT_MAX_SHARDS_IN_FLIGHT = 1;
+	
+	// Store types for shards built in RAM vs on the working disk
+	public static final String IN_MEMORY_STORE_TYPE = "memory";
+	public static final String DEFAULT_DISK_STORE_TYPE = "default";
+	
+	// Docs buffered per key to decide whether its shard fits in memory. Kept well under the in memory limit since
+	// it's all copies held on top of whatever's indexing.
+	public static final int DEFAULT_STORE_AUTO_SELECT_LOOKAHEAD_MB = 32;
+	
+	// Docs sampled to derive the mapping of the first index in a family
+	public static final int DEFAULT_MAPPING_WARMUP_SAMPLE_DOCS = 1000;
+	
+	// How many cores YARN handed this reducer
+	public static final String REDUCE_VCORES_CONFIG_KEY = "mapreduce.reduce.cpu.vcores";
+	
 	// The local filesystem location that ES will write the snapshot out to
 	private String snapshotWorkingLocation;
 	
@@ -42,8 +131,8 @@ public abstract class BaseESReducer implements Reducer<Text, Text, NullWritable,
 	// The name of a snapshot repo. We'll enumerate that on each job run so that the repo names are unique across rebuilds
 	private String snapshotRepoName;
 	
-	// Local filesystem location where index data is built
-	private String esWorkingDir;
+	// Local filesystem locations index data is striped across, one per disk
+	private List<String> esWorkingDirs;
 	
 	// The partition of data this reducer is serving. Useful for making directories unique if running multiple reducers on a task tracker 
 	private String partition;
@@ -52,42 +141,188 @@ public abstract class BaseESReducer implements Reducer<Text, Text, NullWritable,
 	private ESEmbededContainer esEmbededContainer;
 	
 	private ShardConfig shardConfig;
+	
+	// Send docs to ES in batches rather than waiting on a response for each one
+	private boolean bulkIndexingEnabled;
+	private int bulkActions;
+	private int bulkSizeMB;
+	private int bulkConcurrentRequests;
+	
+	// Adapts bulk size & concurrency as indexing goes. Null unless adaptive bulk sizing is enabled.
+	private BulkSizeController bulkSizeController;
+	
+	// Decode on the reduce thread, index on a pool of worker threads
+	private boolean parallelIndexingEnabled;
+	private int indexingWorkerThreads;
+	private int indexingQueueSize;
+	
+	// How the embedded node is sized against the YARN container
+	private ResourceProfile resourceProfile;
+	
+	// Build each index|routing key as a 1 shard index rather than allocating every shard of the index
+	private boolean singleShardBuildEnabled;
+	
+	// Skip translog fsyncs & flushes, a failed reducer rebuilds from scratch anyways
+	private boolean offlineBulkLoadEnabled;
+	
+	// How hard to optimize before snapshotting, unless getMergeStrategy says otherwise for an index
+	private MergeStrategy mergeStrategy;
+	
+	// Collapse duplicate docs before they're indexed. Null when disabled.
+	private DedupeRule dedupeRule;
+	
+	// Settle each index's mapping before indexing rather than as dynamic fields show up
+	private boolean mappingWarmupEnabled;
+	private int mappingWarmupSampleDocs;
+	
+	// The mappings each index family ended up with, to create the next index in the family with
+	private Map<String, Map<String, String>> familyMappings = new HashMap<>();
+	
+	// Create rather than index docs when ids are unique per shard. Null when disabled.
+	private DuplicatePolicy duplicatePolicy;
+	
+	// Keeps the task alive through phases that outlast the task timeout. Created by the first reduce or snapshot call, that's when we get a Reporter.
+	private Heartbeat heartbeat;
+	
+	// Build shards whose docs fit in the lookahead in RAM, the rest on disk. The lookahead is capped at inMemoryShardMaxBytes.
+	private boolean storeAutoSelectEnabled;
+	private long inMemoryShardMaxBytes;
+	private long storeLookaheadBytes;
+	private String diskStoreType;
+	
+	// Indexed keys (index -> routing) waiting to share a snapshot cycle, flushed once there's enough keys or docs
+	private Map<String, String> snapshotBatch = new LinkedHashMap<>();
+	private long snapshotBatchDocs = 0;
+	private int snapshotBatchSize;
+	private long snapshotBatchMaxDocs;
+	
+	// Snapshot & transport a shard in the background while the next one indexes. Null when disabled.
+	private SnapshotPipeline snapshotPipeline;
+	
+	// Recorded in each shard's commit marker
+	private String attemptId;
+	
+	// Stage & promote shard uploads so a second attempt of this task can't clobber them
+	private boolean atomicShardCommitEnabled;
+	
+	// Skip keys whose shard an earlier attempt of this task already committed
+	private boolean shardResumeEnabled;
+	private Set<String> committedShards;
+	
+	// Moves shard snapshots to the final destination, see getTransport
+	private BaseTransport transport;
+	
+	// Stream keys to the node's shared IndexingDaemon instead of running our own node. 0 when disabled.
+	private int indexingDaemonPort;
+	private IndexingDaemonClient indexingDaemonClient;
+	
+	// Set bad docs aside rather than failing the shard over them. Null when disabled.
+	private Quarantine quarantine;
 		
 	// Hold onto some frequently generated objects to cut down on GC overhead 
-	private String indexType;
-	private String docId;
-	private String pre;
-	private String json;
+	private TextDocumentDecoder decoder = new TextDocumentDecoder();
+	private IndexDocumentWritable decodedLine = new IndexDocumentWritable();
    
 	@Override
 	public void configure(JobConf job) {
 		partition = job.get("mapred.task.partition");
-        String attemptId = job.get("mapred.task.id");
+		attemptId = job.get("mapred.task.id");
 		
 		// If running multiple reducers on a node, the node needs a unique name & data directory hence the random number we append 
-		snapshotWorkingLocation = job.get(ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY.toString()) + partition + attemptId + DIR_SEPARATOR;
+		// Both may list a directory per local disk, see LocalDirSelector
+		LocalDirSelector dirSelector = new LocalDirSelector(LocalDirSelector.parse(job.get(ConfigParams.ES_WORKING_DIR.toString())), 
+				LocalDirSelector.parse(job.get(ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY.toString())), 
+				job.getInt(ConfigParams.ES_DATA_DIRS_PER_REDUCER.toString(), Integer.MAX_VALUE), job.getInt("mapred.task.partition", 0));
+		snapshotWorkingLocation = LocalDirSelector.getReducerDir(dirSelector.getSnapshotDir(), partition + attemptId);
 		snapshotFinalDestination = job.get(ConfigParams.SNAPSHOT_FINAL_DESTINATION.toString());
 		snapshotRepoName = job.get(ConfigParams.SNAPSHOT_REPO_NAME_CONFIG_KEY.toString());
-		esWorkingDir = job.get(ConfigParams.ES_WORKING_DIR.toString()) + partition + attemptId + DIR_SEPARATOR;
+		esWorkingDirs = new ArrayList<>();
+		for(String dataDir : dirSelector.getDataDirs()) {
+			esWorkingDirs.add(LocalDirSelector.getReducerDir(dataDir, partition + attemptId));
+		}
 		if(shardConfig == null) {
 		    shardConfig = getShardConfig(job);    
 		}
+		
+		bulkIndexingEnabled = job.getBoolean(ConfigParams.BULK_INDEXING_ENABLED.toString(), false);
+		bulkActions = job.getInt(ConfigParams.BULK_ACTIONS.toString(), DEFAULT_BULK_ACTIONS);
+		bulkSizeMB = job.getInt(ConfigParams.BULK_SIZE_MB.toString(), DEFAULT_BULK_SIZE_MB);
+		bulkConcurrentRequests = job.getInt(ConfigParams.BULK_CONCURRENT_REQUESTS.toString(), DEFAULT_BULK_CONCURRENT_REQUESTS);
+		if(job.getBoolean(ConfigParams.ADAPTIVE_BULK_ENABLED.toString(), false)) {
+			bulkSizeController = new BulkSizeController(bulkActions, bulkSizeMB * 1024l * 1024l, bulkConcurrentRequests);
+		}
+		
+		parallelIndexingEnabled = job.getBoolean(ConfigParams.PARALLEL_INDEXING_ENABLED.toString(), false);
+		resourceProfile = ResourceProfile.fromJobConf(job, esWorkingDirs.get(0));
+		if(parallelIndexingEnabled) {
+			indexingWorkerThreads = job.getInt(ConfigParams.INDEXING_WORKER_THREADS.toString(), resourceProfile.getProcessors());
+			indexingQueueSize = job.getInt(ConfigParams.INDEXING_QUEUE_SIZE.toString(), DEFAULT_INDEXING_QUEUE_SIZE);
+		}
+		
+		singleShardBuildEnabled = job.getBoolean(ConfigParams.SINGLE_SHARD_BUILD_ENABLED.toString(), false);
+		offlineBulkLoadEnabled = job.getBoolean(ConfigParams.OFFLINE_BULK_LOAD_ENABLED.toString(), false);
+		mergeStrategy = MergeStrategy.fromJobConf(job);
+		if(job.getBoolean(ConfigParams.DEDUPE_ENABLED.toString(), false)) {
+			dedupeRule = DedupeRule.fromJobConf(job);
+		}
+		duplicatePolicy = DuplicatePolicy.fromJobConf(job);
+		mappingWarmupEnabled = job.getBoolean(ConfigParams.MAPPING_WARMUP_ENABLED.toString(), false);
+		mappingWarmupSampleDocs = job.getInt(ConfigParams.MAPPING_WARMUP_SAMPLE_DOCS.toString(), DEFAULT_MAPPING_WARMUP_SAMPLE_DOCS);
+		
+		storeAutoSelectEnabled = job.getBoolean(ConfigParams.STORE_AUTO_SELECT_ENABLED.toString(), false);
+		inMemoryShardMaxBytes = job.getLong(ConfigParams.IN_MEMORY_SHARD_MAX_MB.toString(), getDefaultInMemoryShardMaxMB()) * 1024 * 1024;
+		storeLookaheadBytes = Math.min(inMemoryShardMaxBytes, job.getLong(ConfigParams.STORE_AUTO_SELECT_LOOKAHEAD_MB.toString(), DEFAULT_STORE_AUTO_SELECT_LOOKAHEAD_MB) * 1024 * 1024);
+		diskStoreType = job.get(ConfigParams.DISK_STORE_TYPE.toString(), DEFAULT_DISK_STORE_TYPE);
+		atomicShardCommitEnabled = job.getBoolean(ConfigParams.ATOMIC_SHARD_COMMIT_ENABLED.toString(), false);
+		shardResumeEnabled = job.getBoolean(ConfigParams.SHARD_RESUME_ENABLED.toString(), false);
+		indexingDaemonPort = job.getInt(ConfigParams.INDEXING_DAEMON_PORT.toString(), 0);
+		quarantine = Quarantine.fromJobConf(job, attemptId);
+		
+		snapshotBatchSize = job.getInt(ConfigParams.SNAPSHOT_BATCH_SIZE.toString(), 1);
+		snapshotBatchMaxDocs = job.getLong(ConfigParams.SNAPSHOT_BATCH_MAX_DOCS.toString(), Long.MAX_VALUE);
+		
+		if(job.getBoolean(ConfigParams.PIPELINED_SNAPSHOTS_ENABLED.toString(), false)) {
+			snapshotPipeline = new SnapshotPipeline(job.getInt(ConfigParams.MAX_SHARDS_IN_FLIGHT.toString(), DEFAULT_MAX_SHARDS_IN_FLIGHT));
+		}
+	}
+	
+	/**
+	 * The number of cores allocated to this reducer's YARN container, capped by what the node actually has
+	 * 
+	 * @param job
+	 * @return int
+	 */
+	public static int getAvailableCores(JobConf job) {
+		int vcores = job.getInt(REDUCE_VCORES_CONFIG_KEY, 1);
+		return Math.max(1, Math.min(vcores, Runtime.getRuntime().availableProcessors()));
+	}
+	
+	/**
+	 * An in memory index lives on the heap alongside everything else, so only take an eighth of the heap for it
+	 * 
+	 * @return long
+	 */
+	private static long getDefaultInMemoryShardMaxMB() {
+		return Runtime.getRuntime().maxMemory() / (8 * 1024 * 1024);
 	}
 	
 	public void setShardConfig(ShardConfig shardConfig) {
         this.shardConfig = shardConfig;
     }
 
-    private void init(String index) {
+    private void init(String index, String storeType, Map<String, String> mappings) {
 		String templateName = getTemplateName();
 		String templateJson = getTemplate();
 
 		ESEmbededContainer.Builder builder = new ESEmbededContainer.Builder()
 		.withNodeName("embededESTempLoaderNode" + partition)
-		.withWorkingDir(esWorkingDir)
+		.withWorkingDirs(esWorkingDirs)
 		.withClusterName("bulkLoadPartition:" + partition)
 		.withSnapshotWorkingLocation(snapshotWorkingLocation)
-		.withSnapshotRepoName(snapshotRepoName);
+		.withSnapshotRepoName(snapshotRepoName)
+		.withResourceProfile(resourceProfile)
+		.withHeartbeat(heartbeat)
+		.withOfflineBulkLoad(offlineBulkLoadEnabled);
 		
 		if(templateName != null && templateJson != null) {
 			builder.withTemplate(templateName, templateJson);	
@@ -97,11 +332,38 @@ public abstract class BaseESReducer implements Reducer<Text, Text, NullWritable,
 			esEmbededContainer = builder.build();	
 		} 
 		
-		// Create index
-		esEmbededContainer.getNode().client().admin().indices().prepareCreate(index).setSettings(settingsBuilder()
+		// Create index. All the data for a reduce key routes to a single shard, so in single shard mode skip creating the empty ones.
+		long numShards = singleShardBuildEnabled ? 1 : shardConfig.getShardsForIndex(index);
+		ImmutableSettings.Builder settings = settingsBuilder()
 		        .put("index.number_of_replicas", 0)
-		        .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, shardConfig.getShardsForIndex(index))
-		        ).get();
+		        .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, numShards);
+		if(storeType != null) {
+			settings.put("index.store.type", storeType);
+		}
+		CreateIndexRequestBuilder createIndex = esEmbededContainer.getNode().client().admin().indices().prepareCreate(index).setSettings(settings);
+		if(mappings != null) {
+			for(Map.Entry<String, String> mapping : mappings.entrySet()) {
+				createIndex.addMapping(mapping.getKey(), mapping.getValue());
+			}
+		}
+		createIndex.get();
+		
+		if(mappingWarmupEnabled) {
+			// The client would wait on the primary to start for us, putting mappings up front means we have to
+			esEmbededContainer.getNode().client().admin().cluster().prepareHealth(index).setWaitForYellowStatus().get();
+		}
+	}
+	
+	/**
+	 * Indices in the same family share a mapping, so with mapping warm up enabled an index is created with 
+	 * the mapping the last index of its family ended up with. Override to group indices (EG strip a date suffix), 
+	 * defaults to each index being its own family.
+	 * 
+	 * @param index
+	 * @return String
+	 */
+	protected String getIndexFamily(String index) {
+		return index;
 	}
 	
 	/**
@@ -130,62 +392,467 @@ public abstract class BaseESReducer implements Reducer<Text, Text, NullWritable,
 	 * @return String
 	 */
 	public abstract String getTemplateName();
+	
+	/**
+	 * Decide how hard to optimize an index before it's snapshotted. Defaults to the job's MERGE_STRATEGY, override
+	 * to trade query speed after restore against build time per family of indices.
+	 * 
+	 * @param index
+	 * @return MergeStrategy
+	 */
+	protected MergeStrategy getMergeStrategy(String index) {
+		return mergeStrategy;
+	}
+	
+	/**
+	 * Build the indexer that feeds documents for a single index|routing key into the embedded node
+	 * 
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @return DocumentIndexer
+	 */
+	protected DocumentIndexer getDocumentIndexer(String indexName, String routing, Reporter reporter) {
+		if(parallelIndexingEnabled) {
+			List<DocumentIndexer> delegates = new ArrayList<>();
+			for(int x = 0; x < indexingWorkerThreads; x++) {
+				delegates.add(getWorkerIndexer(indexName, routing, reporter));
+			}
+			return new ParallelDocumentIndexer(delegates, indexingQueueSize);
+		}
+		return getWorkerIndexer(indexName, routing, reporter);
+	}
+	
+	private DocumentIndexer getWorkerIndexer(String indexName, String routing, Reporter reporter) {
+		DocumentFailureHandler failureHandler = quarantine == null ? null : quarantine.forShard(indexName, routing, reporter);
+		if(bulkIndexingEnabled && bulkSizeController != null) {
+			return new AdaptiveBulkDocumentIndexer(esEmbededContainer.getNode().client(), indexName, routing, reporter, bulkSizeController, duplicatePolicy, failureHandler);
+		}
+		if(bulkIndexingEnabled) {
+			return new BulkDocumentIndexer(esEmbededContainer.getNode().client(), indexName, routing, reporter, bulkActions, bulkSizeMB, bulkConcurrentRequests, duplicatePolicy, failureHandler);
+		}
+		return new SingleDocumentIndexer(esEmbededContainer.getNode().client(), indexName, routing, reporter, duplicatePolicy, failureHandler);
+	}
+	
+	/**
+	 * Decode a [doc type]|[doc id]|json payload, docs off the IndexDocumentReducer path come decoded. Payloads that 
+	 * can't be decoded fail the reducer, or go to the quarantine if there is one.
+	 * 
+	 * @param value Text or IndexDocumentWritable
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @return IndexDocumentWritable Only valid until the next value, null if the payload was quarantined
+	 * @throws IOException
+	 */
+	private IndexDocumentWritable decode(Writable value, String indexName, String routing, Reporter reporter) throws IOException {
+		if(value instanceof IndexDocumentWritable) {
+			return (IndexDocumentWritable) value;
+		}
+		
+		Text line = (Text) value;
+		try {
+			decoder.decode(line);
+		} catch (IllegalArgumentException e) {
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1l);
+			if(quarantine == null) {
+				throw e;
+			}
+			quarantine.forShard(indexName, routing, reporter).onFailure(null, null, new BytesArray(line.getBytes(), 0, line.getLength()), e.getMessage());
+			return null;
+		}
+		decodedLine.set(decoder.getIndexType(), decoder.getDocId(), decoder.getSource());
+		return decodedLine;
+	}
+	
+	/**
+	 * Decode a doc & hand it to the indexer
+	 * 
+	 * @param indexer
+	 * @param value Text or IndexDocumentWritable
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @throws IOException
+	 */
+	private void index(DocumentIndexer indexer, Writable value, String indexName, String routing, Reporter reporter) throws IOException {
+		IndexDocumentWritable document = decode(value, indexName, routing, reporter);
+		if(document != null) {
+			index(indexer, document);
+		}
+	}
+	
+	private static void index(DocumentIndexer indexer, IndexDocumentWritable document) throws IOException {
+		if(document.hasVersion() && indexer instanceof DedupingDocumentIndexer) {
+			// Dedupe on the version the doc came with rather than parsing one out of it
+			((DedupingDocumentIndexer) indexer).index(document.getIndexType(), document.getDocId(), document.getSource(), document.getVersion());
+		} else {
+			indexer.index(document.getIndexType(), document.getDocId(), document.getSource());
+		}
+	}
 
 	@Override
-	public void reduce(Text docMetaData, Iterator<Text> documentPayloads, OutputCollector<NullWritable, Text> output, final Reporter reporter) throws IOException {
+	public void reduce(Text docMetaData, Iterator<Text> documentPayloads, OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+		// With secondary sort there's a trailing sort value on the key, which doesn't matter here
 		String[] pieces = StringUtils.split(docMetaData.toString(), TUPLE_SEPARATOR);
-		String indexName = pieces[0];
-		String routing = pieces[1]; 
-		init(indexName);
+		reduce(pieces[0], pieces[1], documentPayloads, output, reporter);
+	}
+	
+	/**
+	 * Reduce a key off the IndexDocumentReducer path, where docs are shuffled as IndexDocumentWritable
+	 * 
+	 * @param shardKey
+	 * @param documents
+	 * @param output
+	 * @param reporter
+	 * @throws IOException
+	 */
+	public void reduce(IndexShardKey shardKey, Iterator<IndexDocumentWritable> documents, OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+		reduce(shardKey.getIndex(), shardKey.getRouting(), documents, output, reporter);
+	}
+	
+	private void reduce(String indexName, String routing, Iterator<? extends Writable> documentPayloads, OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+		startHeartbeat(reporter);
+		if(shardResumeEnabled && isCommittedByThisTask(indexName, routing)) {
+			// Nothing to index, but the post processor still needs the manifest line
+			while(documentPayloads.hasNext()) {
+				documentPayloads.next();
+			}
+			reporter.incrCounter(JOB_COUNTER.SHARDS_RESUMED, 1);
+			output.collect(NullWritable.get(), new Text(indexName));
+			return;
+		}
+		if(indexingDaemonPort > 0) {
+			reduceWithDaemon(indexName, routing, documentPayloads, reporter);
+			output.collect(NullWritable.get(), new Text(indexName));
+			return;
+		}
+		if(snapshotBatch.containsKey(indexName)) {
+			// An index can only exist once in the embedded node, get the last routing key for it out of the way
+			snapshotBatch(reporter);
+		}
+		if(snapshotPipeline != null) {
+			// A previous routing key for the same index may still be snapshotting
+			snapshotPipeline.awaitIndex(indexName);
+		}
+		
+		// The first index of a family has no mapping to go off of, so sample its docs for one
+		String family = getIndexFamily(indexName);
+		boolean sampleMapping = mappingWarmupEnabled && !familyMappings.containsKey(family);
+		int lookaheadDocs = sampleMapping ? mappingWarmupSampleDocs : 0;
+		
+		// Peek far enough into the key's docs to tell whether the shard is small enough to build in memory. The docs
+		// can't be rewound, so everything peeked at is copied & held, hence the lookahead is kept small.
+		long lookaheadMaxBytes = storeAutoSelectEnabled ? storeLookaheadBytes : 0;
+		List<IndexDocumentWritable> lookahead = new ArrayList<>();
+		long lookaheadBytes = 0;
+		while((lookahead.size() < lookaheadDocs || lookaheadBytes < lookaheadMaxBytes) && documentPayloads.hasNext()) {
+			Writable line = documentPayloads.next();
+			if(line == null) {
+				continue;
+			}
+			IndexDocumentWritable document = decode(line, indexName, routing, reporter);
+			if(document != null) {
+				// Hadoop reuses the value instance
+				lookahead.add(new IndexDocumentWritable(document));
+				lookaheadBytes += document.getSource().length();
+			}
+		}
+		
+		String storeType = null;
+		if(storeAutoSelectEnabled) {
+			if(documentPayloads.hasNext() || lookaheadBytes > storeLookaheadBytes) {
+				storeType = diskStoreType;
+				reporter.incrCounter(JOB_COUNTER.SHARDS_BUILT_ON_DISK, 1);
+			} else {
+				storeType = IN_MEMORY_STORE_TYPE;
+				reporter.incrCounter(JOB_COUNTER.SHARDS_BUILT_IN_MEMORY, 1);
+			}
+		}
+		init(indexName, storeType, familyMappings.get(family));
 
 		long start = System.currentTimeMillis();
+		Map<String, String> mappingsBeforeIndexing = null;
+		if(mappingWarmupEnabled) {
+			if(sampleMapping) {
+				MappingWarmer warmer = new MappingWarmer(esEmbededContainer.getNode(), indexName, routing);
+				for(int x = 0; x < lookahead.size() && x < lookaheadDocs; x++) {
+					IndexDocumentWritable document = lookahead.get(x);
+					try {
+						warmer.sample(document.getIndexType(), document.getDocId(), document.getSource());
+					} catch (RuntimeException e) {
+						if(quarantine == null) {
+							throw e;
+						}
+						// A bad doc, it'll be quarantined when it's indexed
+					}
+				}
+				warmer.apply();
+			}
+			mappingsBeforeIndexing = MappingWarmer.getMappings(esEmbededContainer.getNode(), indexName);
+		}
+		
+		long docs = 0;
+		DocumentIndexer indexer = getDocumentIndexer(indexName, routing, reporter);
+		if(dedupeRule != null) {
+			indexer = new DedupingDocumentIndexer(indexer, dedupeRule, reporter);
+		}
+		for(IndexDocumentWritable document : lookahead) {
+			index(indexer, document);
+			docs++;
+		}
+		// Let the buffered copies be collected while the rest of the key indexes
+		lookahead = null;
 		while(documentPayloads.hasNext()) {
-			Text line = documentPayloads.next();
+			Writable line = documentPayloads.next();
 			if(line == null) {
 				continue;
 			}
 			
-			pieces = StringUtils.split(line.toString(), TUPLE_SEPARATOR);
-			indexType = pieces[0];
-			docId = pieces[1];
-			pre = indexType + TUPLE_SEPARATOR + docId + TUPLE_SEPARATOR;
-			json = line.toString().substring(pre.length());
-
-			IndexResponse response = esEmbededContainer.getNode().client().prepareIndex(indexName, indexType).setId(docId).setRouting(routing).setSource(json).execute().actionGet();
-			if(response.isCreated()) {
-				reporter.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 1l);
-			} else {
-				reporter.incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, 1l);
-			}
+			index(indexer, line, indexName, routing, reporter);
+			docs++;
+		}
+		
+		// Wait on any in-flight docs before the index gets flushed & snapshotted
+		Heartbeat.Phase phase = heartbeat.start("indexing " + indexName + TUPLE_SEPARATOR + routing);
+		try {
+			indexer.close();
+		} finally {
+			phase.close();
 		}
 
 		reporter.incrCounter(JOB_COUNTER.TIME_SPENT_INDEXING_MS, System.currentTimeMillis() - start);
 		
-		snapshot(indexName, reporter);
+		if(mappingWarmupEnabled) {
+			// Anything the warm up missed, the next index in the family gets from the start
+			Map<String, String> mappings = MappingWarmer.getMappings(esEmbededContainer.getNode(), indexName);
+			reporter.incrCounter(JOB_COUNTER.MAPPING_UPDATES_DURING_INDEXING, MappingWarmer.countChangedTypes(mappingsBeforeIndexing, mappings));
+			familyMappings.put(family, mappings);
+		}
+		
+		snapshotBatch.put(indexName, routing);
+		snapshotBatchDocs += docs;
+		if(snapshotBatch.size() >= snapshotBatchSize || snapshotBatchDocs >= snapshotBatchMaxDocs) {
+			snapshotBatch(reporter);
+		}
 		output.collect(NullWritable.get(), new Text(indexName));
 	}
+	
+	/**
+	 * Build & transport a key's shard in the node's IndexingDaemon. The daemon has its own settings for how docs
+	 * are indexed & the shard is stored, what carries over from the job is the template, shard layout, merge
+	 * strategy, dedupe & how the shard is committed.
+	 * 
+	 * @param indexName
+	 * @param routing
+	 * @param documentPayloads
+	 * @param reporter
+	 * @throws IOException
+	 */
+	private void reduceWithDaemon(String indexName, String routing, Iterator<? extends Writable> documentPayloads, Reporter reporter) throws IOException {
+		if(indexingDaemonClient == null) {
+			indexingDaemonClient = new IndexingDaemonClient(indexingDaemonPort);
+		}
+		
+		long start = System.currentTimeMillis();
+		int numShards = shardConfig.getShardsForIndex(indexName).intValue();
+		DocumentIndexer indexer;
+		Heartbeat.Phase waiting = heartbeat.start("waiting on the indexing daemon for " + indexName + TUPLE_SEPARATOR + routing);
+		try {
+			indexer = indexingDaemonClient.beginShard(indexName, routing, singleShardBuildEnabled ? 1 : numShards, getTemplateName(), getTemplate());
+		} finally {
+			waiting.close();
+		}
+		if(dedupeRule != null) {
+			indexer = new DedupingDocumentIndexer(indexer, dedupeRule, reporter);
+		}
+		while(documentPayloads.hasNext()) {
+			Writable line = documentPayloads.next();
+			if(line == null) {
+				continue;
+			}
+			index(indexer, line, indexName, routing, reporter);
+		}
+		indexer.close();
+		
+		int shardNumber = singleShardBuildEnabled ? shardConfig.getShardForRouting(indexName, routing) : -1;
+		Map<String, Long> counters;
+		Heartbeat.Phase phase = heartbeat.start("building " + indexName + TUPLE_SEPARATOR + routing + " in the indexing daemon");
+		try {
+			counters = indexingDaemonClient.commitShard(snapshotFinalDestination, shardNumber, numShards, getMergeStrategy(indexName), 
+					atomicShardCommitEnabled || shardResumeEnabled ? attemptId : null, atomicShardCommitEnabled);
+		} finally {
+			phase.close();
+		}
+		for(Map.Entry<String, Long> counter : counters.entrySet()) {
+			reporter.incrCounter(JOB_COUNTER.valueOf(counter.getKey()), counter.getValue());
+		}
+		reporter.incrCounter(JOB_COUNTER.TIME_SPENT_INDEXING_MS, System.currentTimeMillis() - start);
+	}
+	
+	/**
+	 * The task's commit records are listed once, on the first key, rather than looking each key's shard up
+	 * 
+	 * @param indexName
+	 * @param routing
+	 * @return boolean true if an earlier attempt of this task already uploaded the key's shard
+	 * @throws IOException
+	 */
+	private boolean isCommittedByThisTask(String indexName, String routing) throws IOException {
+		if(committedShards == null) {
+			committedShards = getTransport().getCommittedShards(attemptId);
+			logger.info("Earlier attempts of this task committed " + committedShards.size() + " shards");
+		}
+		if(committedShards.contains(indexName + DIR_SEPARATOR + shardConfig.getShardForRouting(indexName, routing))) {
+			logger.info("Shard for " + indexName + TUPLE_SEPARATOR + routing + " was already committed by an earlier attempt, skipping it");
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Created on first use & reused for every shard, so there's one storage system client (EG S3 thread pool) per reducer
+	 * 
+	 * @return BaseTransport
+	 */
+	private synchronized BaseTransport getTransport() {
+		if(transport == null) {
+			transport = SnapshotTransportStrategy.get(snapshotWorkingLocation, snapshotFinalDestination, heartbeat);
+			if(atomicShardCommitEnabled || shardResumeEnabled) {
+				transport.setAttemptId(attemptId);
+			}
+			transport.setStagingEnabled(atomicShardCommitEnabled);
+			transport.connect();
+		}
+		return transport;
+	}
+	
+	/**
+	 * Snapshot & transport every key in the current batch together, in the background if snapshots are pipelined
+	 * 
+	 * @param reporter
+	 * @throws IOException
+	 */
+	private void snapshotBatch(final Reporter reporter) throws IOException {
+		final Map<String, String> batch = new LinkedHashMap<>(snapshotBatch);
+		snapshotBatch.clear();
+		snapshotBatchDocs = 0;
+		
+		if(snapshotPipeline != null) {
+			snapshotPipeline.submit(new ArrayList<>(batch.keySet()), new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					snapshot(batch, reporter);
+					return null;
+				}
+			});
+		} else {
+			snapshot(batch, reporter);
+		}
+	}
+
+	/**
+	 * The reporter is only handed to us per call, so the heartbeat starts with whichever call needs it first
+	 * 
+	 * @param reporter
+	 */
+	private void startHeartbeat(Reporter reporter) {
+		if(heartbeat == null) {
+			heartbeat = new Heartbeat(reporter);
+			if(esEmbededContainer != null) {
+				esEmbededContainer.setHeartbeat(heartbeat);
+			}
+		}
+	}
 
 	@Override
 	public void close() throws IOException {
+		if(!snapshotBatch.isEmpty()) {
+			snapshotBatch(heartbeat.getReporter());
+		}
+		
+		if(snapshotPipeline != null) {
+			// Don't tear down the node out from under shards which are still being transported
+			snapshotPipeline.close();
+		}
+		
 		if(esEmbededContainer != null) {
-			esEmbededContainer.getNode().close();
-			while(!esEmbededContainer.getNode().isClosed());
+			esEmbededContainer.close();
 			FileUtils.deleteDirectory(new File(snapshotWorkingLocation));
+			// Other reducers on the node pick their disks by how many working dirs are left on each
+			for(String esWorkingDir : esWorkingDirs) {
+				FileUtils.deleteDirectory(new File(esWorkingDir));
+			}
+		}
+		
+		if(indexingDaemonClient != null) {
+			indexingDaemonClient.close();
+		}
+		
+		if(transport != null) {
+			transport.disconnect();
+		}
+		
+		if(quarantine != null) {
+			quarantine.close();
+		}
+		
+		if(heartbeat != null) {
+			heartbeat.close();
 		}
 	}
 
 	public void snapshot(String index, Reporter reporter) throws IOException {
-		esEmbededContainer.snapshot(Arrays.asList(index), SNAPSHOT_NAME, snapshotRepoName, reporter);
+		snapshot(index, null, reporter);
+	}
+	
+	/**
+	 * Flush, optimize and snapshot an index, then transport the shard it holds to the final destination
+	 * 
+	 * @param index
+	 * @param routing The routing value all the index's docs were routed with. Required for single shard builds.
+	 * @param reporter
+	 * @throws IOException
+	 */
+	public void snapshot(String index, String routing, Reporter reporter) throws IOException {
+		snapshot(Collections.singletonMap(index, routing), reporter);
+	}
+	
+	/**
+	 * Flush & optimize a batch of indices, snapshot them together, then transport the shard each one holds to
+	 * the final destination. Index creation aside, the fixed costs of a snapshot cycle are paid once per batch.
+	 * 
+	 * @param batch index -> the routing value all the index's docs were routed with 
+	 * @param reporter
+	 * @throws IOException
+	 */
+	public void snapshot(Map<String, String> batch, Reporter reporter) throws IOException {
+		// May be called directly, before any reduce
+		startHeartbeat(reporter);
+		List<String> indices = new ArrayList<>(batch.keySet());
+		for(String index : indices) {
+			esEmbededContainer.flushAndMerge(index, getMergeStrategy(index), Waiter.DEFAULT_TIMEOUT_MS, reporter);
+		}
+		esEmbededContainer.createSnapshot(indices, SNAPSHOT_NAME, snapshotRepoName, Waiter.DEFAULT_TIMEOUT_MS, reporter);
 		
-		// Delete the index to free up that space
-		ActionFuture<DeleteIndexResponse> response = esEmbededContainer.getNode().client().admin().indices().delete(new DeleteIndexRequest(index));
-		while(!response.isDone());
+		// Delete the indices to free up that space
+		ActionFuture<DeleteIndexResponse> response = esEmbededContainer.getNode().client().admin().indices().delete(new DeleteIndexRequest(indices.toArray(new String[0])));
+		new Waiter(heartbeat).await(response, "deleting " + indices, Waiter.DEFAULT_TIMEOUT_MS);
 		
-		// Move the shard snapshot to the destination
+		// Move the shard snapshots to the destination
 		long start = System.currentTimeMillis();
-		SnapshotTransportStrategy.get(snapshotWorkingLocation, snapshotFinalDestination).execute(SNAPSHOT_NAME, index);
+		if(singleShardBuildEnabled) {
+			Map<String, Integer> shardNumbers = new LinkedHashMap<>();
+			for(Map.Entry<String, String> key : batch.entrySet()) {
+				Preconditions.checkNotNull(key.getValue(), "Single shard builds need the routing value to place the shard");
+				shardNumbers.put(key.getKey(), shardConfig.getShardForRouting(key.getKey(), key.getValue()));
+			}
+			getTransport().execute(SNAPSHOT_NAME, shardNumbers, shardConfig);
+		} else {
+			getTransport().execute(SNAPSHOT_NAME, indices);
+		}
 		reporter.incrCounter(JOB_COUNTER.TIME_SPENT_TRANSPORTING_SNAPSHOT_MS, System.currentTimeMillis() - start);
 		
 		esEmbededContainer.deleteSnapshot(SNAPSHOT_NAME, snapshotRepoName);
 	}
-}
\ No newline at end of file
+}
@@ -6,5 +6,50 @@ public enum ConfigParams {
 	SNAPSHOT_FINAL_DESTINATION,
 	ES_WORKING_DIR,
 	NUM_SHARDS_PER_INDEX,
-	NUM_SHARDS_PER_ORGANIZATION
+	NUM_SHARDS_PER_ORGANIZATION,
+	BULK_INDEXING_ENABLED,
+	BULK_ACTIONS,
+	BULK_SIZE_MB,
+	BULK_CONCURRENT_REQUESTS,
+	ADAPTIVE_BULK_ENABLED,
+	PARALLEL_INDEXING_ENABLED,
+	INDEXING_WORKER_THREADS,
+	INDEXING_QUEUE_SIZE,
+	PIPELINED_SNAPSHOTS_ENABLED,
+	MAX_SHARDS_IN_FLIGHT,
+	SINGLE_SHARD_BUILD_ENABLED,
+	OFFLINE_BULK_LOAD_ENABLED,
+	AUTO_TUNE_ENABLED,
+	REDUCERS_PER_NODE,
+	PROCESSORS,
+	INDEX_BUFFER_SIZE,
+	MERGE_THREADS,
+	MAX_MERGED_SEGMENT_MB,
+	MAX_SNAPSHOT_BYTES_PER_SEC,
+	MERGE_STRATEGY,
+	MERGE_MAX_NUM_SEGMENTS,
+	MERGE_SEGMENT_COUNT_THRESHOLD,
+	MERGE_DELETED_DOCS_RATIO_THRESHOLD,
+	FINAL_MERGE_THREADS,
+	SNAPSHOT_BATCH_SIZE,
+	SNAPSHOT_BATCH_MAX_DOCS,
+	STORE_AUTO_SELECT_ENABLED,
+	IN_MEMORY_SHARD_MAX_MB,
+	STORE_AUTO_SELECT_LOOKAHEAD_MB,
+	DISK_STORE_TYPE,
+	ES_DATA_DIRS_PER_REDUCER,
+	SECONDARY_SORT_ENABLED,
+	DEDUPE_ENABLED,
+	DEDUPE_WINNER,
+	DEDUPE_VERSION_FIELD,
+	APPEND_ONLY_ENABLED,
+	APPEND_ONLY_ON_DUPLICATE,
+	MAPPING_WARMUP_ENABLED,
+	MAPPING_WARMUP_SAMPLE_DOCS,
+	ATOMIC_SHARD_COMMIT_ENABLED,
+	SHARD_RESUME_ENABLED,
+	INDEXING_DAEMON_PORT,
+	QUARANTINE_PATH,
+	QUARANTINE_MAX_FAILURES_PER_SHARD,
+	DOCUMENT_REDUCER_CLASS
 }
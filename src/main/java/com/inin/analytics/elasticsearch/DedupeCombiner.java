@@ -0,0 +1,72 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.indexer.TextDocumentDecoder;
+
+/**
+ * Map side half of dedupe, see DedupeRule. Collapses duplicate docs within a spill so they never hit the
+ * shuffle. With the type & id sort set up by DedupeRule.configure each call only sees copies of a single doc.
+ *
+ */
+public class DedupeCombiner implements Reducer<Text, Text, Text, Text> {
+	private DedupeRule dedupeRule;
+	private TextDocumentDecoder decoder = new TextDocumentDecoder();
+
+	@Override
+	public void configure(JobConf job) {
+		dedupeRule = DedupeRule.fromJobConf(job);
+	}
+
+	@Override
+	public void reduce(Text key, Iterator<Text> documentPayloads, OutputCollector<Text, Text> output, Reporter reporter) throws IOException {
+		Map<String, Text> winners = new LinkedHashMap<>();
+		Map<String, Long> versions = new HashMap<>();
+		long collapsed = 0;
+		while(documentPayloads.hasNext()) {
+			Text line = documentPayloads.next();
+			if(line == null) {
+				continue;
+			}
+			try {
+				decoder.decode(line);
+			} catch (IllegalArgumentException e) {
+				// Not ours to fail the map over, pass it on for the reducer to quarantine or fail on
+				output.collect(key, line);
+				continue;
+			}
+			String typeAndId = decoder.getIndexType() + BaseESReducer.TUPLE_SEPARATOR + decoder.getDocId();
+			long version = dedupeRule.getVersion(decoder.getSource());
+			Long incumbentVersion = versions.get(typeAndId);
+			if(incumbentVersion != null) {
+				collapsed++;
+				if(version < incumbentVersion) {
+					continue;
+				}
+			}
+			// Hadoop reuses the Text instance
+			winners.put(typeAndId, new Text(line));
+			versions.put(typeAndId, version);
+		}
+
+		for(Text winner : winners.values()) {
+			output.collect(key, winner);
+		}
+		reporter.incrCounter(JOB_COUNTER.DOCS_COLLAPSED, collapsed);
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+}
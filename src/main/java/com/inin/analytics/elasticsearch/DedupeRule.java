@@ -0,0 +1,125 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides which copy of a doc wins when the same [doc type]|[doc id] shows up more than once in a shard. Every
+ * overwrite costs the embedded node a version lookup, a delete marker & later merge work, so with dedupe
+ * enabled losing copies are dropped before they're indexed.
+ *
+ * LAST_ARRIVAL keeps whichever copy the reducer sees last. VERSION_FIELD keeps the copy with the highest value
+ * of a top level numeric field (EG a version counter or epoch millis). Copies missing the field lose to those
+ * that have it, and ties go to the last arrival.
+ *
+ */
+public class DedupeRule {
+
+	public static enum Mode {
+		LAST_ARRIVAL, VERSION_FIELD
+	}
+
+	public static final long MISSING_VERSION = Long.MIN_VALUE;
+
+	private Mode mode;
+	private String versionField;
+
+	/**
+	 *
+	 * @param mode
+	 * @param versionField Only used in VERSION_FIELD mode
+	 */
+	public DedupeRule(Mode mode, String versionField) {
+		this.mode = mode;
+		this.versionField = versionField;
+		if(mode == Mode.VERSION_FIELD && versionField == null) {
+			throw new IllegalArgumentException("VERSION_FIELD dedupe requires " + ConfigParams.DEDUPE_VERSION_FIELD);
+		}
+	}
+
+	/**
+	 * Collapse duplicate docs on the map side with DedupeCombiner, and sort docs within a shard by
+	 * type & id so the reducer sees duplicates back to back. This replaces any other SecondarySort order.
+	 * Text map output only, with IndexDocumentReducer set DEDUPE_ENABLED instead.
+	 *
+	 * @param job
+	 * @throws IllegalArgumentException if the job's map output is IndexShardKey
+	 */
+	public static void configure(JobConf job) {
+		Preconditions.checkArgument(job.getMapOutputKeyClass() != IndexShardKey.class, "DedupeCombiner only takes Text, set " + ConfigParams.DEDUPE_ENABLED + " rather than calling DedupeRule.configure");
+		SecondarySort.configure(job);
+		job.setBoolean(ConfigParams.DEDUPE_ENABLED.toString(), true);
+		job.setCombinerClass(DedupeCombiner.class);
+	}
+
+	/**
+	 * The rule set on the job conf, defaults to last arrival wins
+	 *
+	 * @param job
+	 * @return DedupeRule
+	 */
+	public static DedupeRule fromJobConf(JobConf job) {
+		return new DedupeRule(Mode.valueOf(job.get(ConfigParams.DEDUPE_WINNER.toString(), Mode.LAST_ARRIVAL.name()).toUpperCase()),
+				job.get(ConfigParams.DEDUPE_VERSION_FIELD.toString()));
+	}
+
+	/**
+	 * A later copy replaces an earlier one when its version is at least as high. Sources that don't parse are
+	 * still indexed (or quarantined) rather than failing the task, so they just count as missing the field.
+	 *
+	 * @param source
+	 * @return long MISSING_VERSION if the source doesn't have the field or doesn't parse
+	 */
+	public long getVersion(BytesReference source) {
+		if(mode == Mode.LAST_ARRIVAL) {
+			return 0;
+		}
+
+		XContentParser parser = null;
+		try {
+			parser = XContentHelper.createParser(source);
+			XContentParser.Token token = parser.nextToken();
+			if(token != XContentParser.Token.START_OBJECT) {
+				return MISSING_VERSION;
+			}
+			while((token = parser.nextToken()) == XContentParser.Token.FIELD_NAME) {
+				String field = parser.currentName();
+				token = parser.nextToken();
+				if(field.equals(versionField)) {
+					if(token == XContentParser.Token.VALUE_NUMBER || token == XContentParser.Token.VALUE_STRING) {
+						try {
+							return parser.longValue();
+						} catch (NumberFormatException e) {
+							return MISSING_VERSION;
+						}
+					}
+					return MISSING_VERSION;
+				}
+				// Nested objects & arrays can't hold a top level field
+				parser.skipChildren();
+			}
+			return MISSING_VERSION;
+		} catch (IOException | ElasticsearchParseException e) {
+			return MISSING_VERSION;
+		} finally {
+			if(parser != null) {
+				parser.close();
+			}
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public String getVersionField() {
+		return versionField;
+	}
+}
@@ -2,13 +2,16 @@ package com.inin.analytics.elasticsearch;
 
 import static org.elasticsearch.node.NodeBuilder.nodeBuilder;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.mapred.Reporter;
-import org.elasticsearch.action.admin.cluster.snapshots.get.GetSnapshotsRequest;
-import org.elasticsearch.action.admin.cluster.snapshots.get.GetSnapshotsResponse;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.admin.cluster.snapshots.create.CreateSnapshotResponse;
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
@@ -16,6 +19,7 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.plugins.PluginsService;
 import org.elasticsearch.snapshots.SnapshotInfo;
+import org.elasticsearch.snapshots.SnapshotState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,12 +33,17 @@ import com.google.common.base.Preconditions;
  */
 public class ESEmbededContainer {
 	private Node node;
+	private Heartbeat heartbeat = new Heartbeat(null);
+	private String maxSnapshotBytesPerSec = ResourceProfile.DEFAULT_MAX_SNAPSHOT_BYTES_PER_SEC;
 	private long DEFAULT_TIMEOUT_MS = 60 * 30 * 1000; 
-	private static Integer MAX_MERGED_SEGMENT_SIZE_MB = 256;
 	private static transient Logger logger = LoggerFactory.getLogger(ESEmbededContainer.class);
 	
-	public void snapshot(List<String> index, String snapshotName, String snapshotRepoName, Reporter reporter) {
-		snapshot(index, snapshotName, snapshotRepoName, DEFAULT_TIMEOUT_MS, reporter);
+	public void snapshot(List<String> index, String snapshotName, String snapshotRepoName, Reporter reporter) throws IOException {
+		snapshot(index, snapshotName, snapshotRepoName, MergeStrategy.DEFAULT, reporter);
+	}
+	
+	public void snapshot(List<String> index, String snapshotName, String snapshotRepoName, MergeStrategy mergeStrategy, Reporter reporter) throws IOException {
+		snapshot(index, snapshotName, snapshotRepoName, DEFAULT_TIMEOUT_MS, mergeStrategy, reporter);
 	}
 	
 	/**
@@ -44,80 +53,179 @@ public class ESEmbededContainer {
 	 * @param snapshotName
 	 * @param snapshotRepoName
 	 * @param timeoutMS
+	 * @param mergeStrategy Whether & how far to optimize before snapshotting
 	 * @param reporter
+	 * @throws IOException If the snapshot didn't complete successfully
 	 */
-	public void snapshot(List<String> indicies, String snapshotName, String snapshotRepoName, long timeoutMS, Reporter reporter) {
-		/* Flush & optimize before the snapshot.
-		 *  
-		 * TODO: Long operations could block longer that the container allows an operation to go
-		 * unresponsive b/f killing. We need to issue the request and poll the future waiting on the
-		 * operation to succeed, but update a counter or something to let the hadoop framework
-		 * know the process is still alive. 
-		 */  
-		TimeValue v = new TimeValue(timeoutMS);
+	public void snapshot(List<String> indicies, String snapshotName, String snapshotRepoName, long timeoutMS, MergeStrategy mergeStrategy, Reporter reporter) throws IOException {
 		for(String index : indicies) {
-			long start = System.currentTimeMillis();
+			flushAndMerge(index, mergeStrategy, timeoutMS, reporter);
+		}
+		createSnapshot(indicies, snapshotName, snapshotRepoName, timeoutMS, reporter);
+	}
+	
+	/**
+	 * Flush & optimize an index so it's ready to be snapshotted. Either can outlast the task timeout on a big shard, hence the heartbeat.
+	 * 
+	 * @param index
+	 * @param mergeStrategy Whether & how far to optimize
+	 * @param timeoutMS
+	 * @param reporter
+	 */
+	public void flushAndMerge(String index, MergeStrategy mergeStrategy, long timeoutMS, Reporter reporter) {
+		TimeValue v = new TimeValue(timeoutMS);
+		if(reporter != null) {
+			reportTranslogStats(index, reporter);
+		}
+		long start = System.currentTimeMillis();
 
-			// Flush
+		// Flush
+		Heartbeat.Phase phase = heartbeat.start("flushing " + index);
+		try {
 			node.client().admin().indices().prepareFlush(index).get(v);
-			if(reporter != null) {
-				reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_FLUSHING_MS, System.currentTimeMillis() - start);
-			}
-
-			// Merge
-			start = System.currentTimeMillis();
-			node.client().admin().indices().prepareOptimize(index).get(v);
-			if(reporter != null) {
-				reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_MERGING_MS, System.currentTimeMillis() - start);
-			}
+		} finally {
+			phase.close();
+		}
+		if(reporter != null) {
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_FLUSHING_MS, System.currentTimeMillis() - start);
 		}
 
-		// Snapshot
+		// Merge
+		start = System.currentTimeMillis();
+		merge(index, mergeStrategy, v, reporter);
+		if(reporter != null) {
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_MERGING_MS, System.currentTimeMillis() - start);
+		}
+	}
+	
+	/**
+	 * Snapshot indices which have already been flushed & optimized. Block until complete.
+	 * 
+	 * @param indicies
+	 * @param snapshotName
+	 * @param snapshotRepoName
+	 * @param timeoutMS
+	 * @param reporter
+	 * @throws IOException If the snapshot didn't complete successfully
+	 */
+	public void createSnapshot(List<String> indicies, String snapshotName, String snapshotRepoName, long timeoutMS, Reporter reporter) throws IOException {
 		long start = System.currentTimeMillis();
-		node.client().admin().cluster().prepareCreateSnapshot(snapshotRepoName, snapshotName).setIndices((String[]) indicies.toArray(new String[0])).execute();
-
-		// ES snapshot restore ignores timers and will block no more than 30s :( You have to block & poll to make sure it's done
-		blockForSnapshot(snapshotRepoName, indicies, timeoutMS);	
+		// Wait on completion of just the snapshot we created rather than polling every snapshot in the repo
+		ActionFuture<CreateSnapshotResponse> response = node.client().admin().cluster().prepareCreateSnapshot(snapshotRepoName, snapshotName)
+				.setIndices((String[]) indicies.toArray(new String[0]))
+				.setWaitForCompletion(true)
+				.execute();
+		SnapshotInfo snapshotInfo = new Waiter(heartbeat).await(response, "snapshotting " + indicies, timeoutMS).getSnapshotInfo();
+		if(snapshotInfo.state() != SnapshotState.SUCCESS || snapshotInfo.successfulShards() != snapshotInfo.totalShards()) {
+			throw new IOException("Snapshot of " + indicies + " finished " + snapshotInfo.state() + " with " + snapshotInfo.successfulShards() + " out of " + snapshotInfo.totalShards() + " shards: " + snapshotInfo.reason());
+		}
+		logger.info("Snapshot completed {} out of {} shards", snapshotInfo.successfulShards(), snapshotInfo.totalShards());
 		
 		if(reporter != null) {
+			// The difference between the two is time spent starting the snapshot & noticing it's done
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_WRITING_SNAPSHOT_MS, snapshotInfo.endTime() - snapshotInfo.startTime());
 			reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_SNAPSHOTTING_MS, System.currentTimeMillis() - start);
 		}
 
 	}
 
 	/**
-	 * Block for index snapshots to be complete
+	 * Optimize an index according to a MergeStrategy, counting segments before & after
 	 * 
-	 * @param snapshotRepoName
-	 * @param indicies
-	 * @param timeoutMS
+	 * @param index
+	 * @param mergeStrategy
+	 * @param timeout
+	 * @param reporter
 	 */
-	private void blockForSnapshot(String snapshotRepoName, List<String> indicies, long timeoutMS) {
-		long start = System.currentTimeMillis();
-		while(System.currentTimeMillis() - start < timeoutMS) {
-
-			GetSnapshotsResponse repos = node.client().admin().cluster().getSnapshots(new GetSnapshotsRequest(snapshotRepoName)).actionGet();
-				for(SnapshotInfo i : repos.getSnapshots()) {
-					if(i.state().completed() && i.successfulShards() == i.totalShards() && i.totalShards() >= indicies.size()) {
-						logger.info("Snapshot completed {} out of {} indicies. Snapshot state {}. ", i.successfulShards(), i.totalShards(), i.state().completed());
-						return;
-					} else {
-						logger.info("Snapshotted {} out of {} indicies, polling for completion. Snapshot state {}.", i.successfulShards(), i.totalShards(), i.state().completed());
-					}
-				}
+	private void merge(String index, MergeStrategy mergeStrategy, TimeValue timeout, Reporter reporter) {
+		// Segment stats come off the searcher, make sure it's seen the flush
+		node.client().admin().indices().prepareRefresh(index).get(timeout);
+		CommonStats before = node.client().admin().indices().prepareStats(index).clear().setSegments(true).setDocs(true).get().getTotal();
+		long deletedDocs = before.getDocs() == null ? 0 : before.getDocs().getDeleted();
+		long docCount = before.getDocs() == null ? 0 : before.getDocs().getCount();
+		
+		if(mergeStrategy.shouldMerge(before.getSegments().getCount(), docCount, deletedDocs)) {
+			if(mergeStrategy.getMergeThreads() > 0) {
+				node.client().admin().indices().prepareUpdateSettings(index).setSettings(ImmutableSettings.builder()
+						.put("index.merge.scheduler.max_thread_count", mergeStrategy.getMergeThreads())).get(timeout);
+			}
+			
+			Heartbeat.Phase phase = heartbeat.start("optimizing " + index);
 			try {
-				// Don't slam ES with snapshot status requests in a tight loop
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+				node.client().admin().indices().prepareOptimize(index).setMaxNumSegments(mergeStrategy.getMaxNumSegments()).get(timeout);
+			} finally {
+				phase.close();
+			}
+		} else {
+			logger.info("Skipping optimize of {} with {} segments and {} deleted docs", index, before.getSegments().getCount(), deletedDocs);
+			if(reporter != null) {
+				reporter.incrCounter(BaseESReducer.JOB_COUNTER.MERGES_SKIPPED, 1);
 			}
 		}
+		
+		if(reporter != null) {
+			long segmentsAfter = node.client().admin().indices().prepareStats(index).clear().setSegments(true).get().getTotal().getSegments().getCount();
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.SEGMENTS_BEFORE_MERGE, before.getSegments().getCount());
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.SEGMENTS_AFTER_MERGE, segmentsAfter);
+		}
+	}
+
+	/**
+	 * Record what the translog cost us while indexing, before the commit which precedes the snapshot. Comparing
+	 * these between jobs with and without offline bulk load mode shows the time it saves.
+	 * 
+	 * @param index
+	 * @param reporter
+	 */
+	private void reportTranslogStats(String index, Reporter reporter) {
+		CommonStats stats = node.client().admin().indices().prepareStats(index).clear().setFlush(true).setTranslog(true).get().getTotal();
+		reporter.incrCounter(BaseESReducer.JOB_COUNTER.FLUSHES_DURING_INDEXING, stats.getFlush().getTotal());
+		reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_FLUSHING_DURING_INDEXING_MS, stats.getFlush().getTotalTimeInMillis());
+		reporter.incrCounter(BaseESReducer.JOB_COUNTER.TRANSLOG_BYTES_AT_COMMIT, stats.getTranslog().translogSizeInBytes().bytes());
+	}
+
+	/**
+	 * Shut down the node, blocking until it's closed
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		node.close();
+		new Waiter(heartbeat).await(new Waiter.Condition() {
+			@Override
+			public boolean isDone() {
+				return node.isClosed();
+			}
+		}, "closing elasticsearch", DEFAULT_TIMEOUT_MS);
 	}
 	
 	public void deleteSnapshot(String snapshotName, String snapshotRepoName) {
 		node.client().admin().cluster().prepareDeleteSnapshot(snapshotRepoName, snapshotName).execute().actionGet();
 	}
 
+	/**
+	 * Register an fs snapshot repo
+	 * 
+	 * @param snapshotRepoName
+	 * @param location Must be under the node's path.repo (the snapshot working location)
+	 */
+	public void createSnapshotRepo(String snapshotRepoName, String location) {
+		Map<String, Object> settings = new HashMap<>();
+		settings.put("location", location);
+		settings.put("compress", true);
+		settings.put("max_snapshot_bytes_per_sec", maxSnapshotBytesPerSec); // The default 20mb/sec is very slow for a local disk to disk snapshot
+		node.client().admin().cluster().preparePutRepository(snapshotRepoName).setType("fs").setSettings(settings).get();
+	}
+
+	/**
+	 * Unregister a snapshot repo, leaving its files behind
+	 * 
+	 * @param snapshotRepoName
+	 */
+	public void deleteSnapshotRepo(String snapshotRepoName) {
+		node.client().admin().cluster().prepareDeleteRepository(snapshotRepoName).get();
+	}
+
 	public static class Builder {
 		private ESEmbededContainer container;
 		private String nodeName;
@@ -128,6 +236,13 @@ public class ESEmbededContainer {
 		private String snapshotWorkingLocation;
 		private String snapshotRepoName;
 		private boolean memoryBackedIndex = false;
+		private int processors = 1;
+		private boolean offlineBulkLoad = false;
+		private String indexBufferSize = ResourceProfile.DEFAULT_INDEX_BUFFER_SIZE;
+		private int mergeThreads = ResourceProfile.DEFAULT_MERGE_THREADS;
+		private int maxMergedSegmentMB = ResourceProfile.DEFAULT_MAX_MERGED_SEGMENT_MB;
+		private String maxSnapshotBytesPerSec = ResourceProfile.DEFAULT_MAX_SNAPSHOT_BYTES_PER_SEC;
+		private Heartbeat heartbeat;
 
 		public ESEmbededContainer build() {
 			Preconditions.checkNotNull(nodeName);
@@ -136,9 +251,9 @@ public class ESEmbededContainer {
 
 			org.elasticsearch.common.settings.ImmutableSettings.Builder builder = ImmutableSettings.builder()
 			.put("http.enabled", false) // Disable HTTP transport, we'll communicate inner-jvm
-			.put("processors", 1) // We could experiment ramping this up to match # cores - num reducers per node
+			.put("processors", processors) // Sizes the index & bulk thread pools. Defaults to 1 b/c there's usually several reducers per node
 			.put("node.name", nodeName)
-			.put("path.data", workingDir)
+			.put("path.data", workingDir) // May be a comma separated list, ES stripes shards across them
 			.put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true) // Allow plugins if they're bundled in with the uuberjar
 			.put("index.refresh_interval", -1) 
 			.put("index.translog.flush_threshold_size", "128mb") // Aggressive flushing helps keep the memory footprint below the yarn container max. TODO: Make configurable 
@@ -147,11 +262,11 @@ public class ESEmbededContainer {
 			.put("cluster.routing.allocation.disk.watermark.high", 99)
 			.put("index.load_fixed_bitset_filters_eagerly", false)
 			.put("indices.store.throttle.type", "none") // Allow indexing to max out disk IO
-			.put("indices.memory.index_buffer_size", "5%") // The default 10% is a bit large b/c it's calculated against JVM heap size & not Yarn container allocation. Choosing a good value here could be made smarter.
-			.put("index.merge.policy.max_merged_segment", MAX_MERGED_SEGMENT_SIZE_MB + "mb") // The default 5gb segment max size is too large for the typical hadoop node
+			.put("indices.memory.index_buffer_size", indexBufferSize) // The default 10% is a bit large b/c it's calculated against JVM heap size & not Yarn container allocation. See ResourceProfile.
+			.put("index.merge.policy.max_merged_segment", maxMergedSegmentMB + "mb") // The default 5gb segment max size is too large for the typical hadoop node
 			//.put("index.merge.policy.max_merge_at_once", 10) 
 			.put("index.merge.policy.segments_per_tier", 4)
-			.put("index.merge.scheduler.max_thread_count", 1)
+			.put("index.merge.scheduler.max_thread_count", mergeThreads)
 			.put("path.repo", snapshotWorkingLocation)
 			.put("index.compound_format", false) // Explicitly disable compound files
 			//.put("index.codec", "best_compression") // Lucene 5/ES 2.0 feature to play with when that's out
@@ -160,6 +275,16 @@ public class ESEmbededContainer {
 			if(memoryBackedIndex) {
 				builder.put("index.store.type", "memory");
 			}
+			
+			if(offlineBulkLoad) {
+				/* A failed reducer simply re-runs, so there's no crash recovery to pay for. Keep the translog 
+				 * in a write buffer, never fsync it, and don't let it trigger flushes. The flush in snapshot()
+				 * becomes the one and only lucene commit.
+				 */
+				builder.put("index.translog.fs.type", "buffered")
+				.put("index.gateway.local.sync", -1)
+				.put("index.translog.disable_flush", true);
+			}
 			Settings nodeSettings = builder.build();
 
 			// Create the node
@@ -170,6 +295,10 @@ public class ESEmbededContainer {
 					.settings(nodeSettings)
 					.build());
 
+			if(heartbeat != null) {
+				container.setHeartbeat(heartbeat);
+			}
+
 			// Start ES
 			container.getNode().start();
 
@@ -179,12 +308,9 @@ public class ESEmbededContainer {
 			}
 
 			// Create the snapshot repo
+			container.maxSnapshotBytesPerSec = maxSnapshotBytesPerSec;
 			if(snapshotWorkingLocation != null && snapshotRepoName != null) {
-				Map<String, Object> settings = new HashMap<>();
-				settings.put("location", snapshotWorkingLocation);
-				settings.put("compress", true);
-				settings.put("max_snapshot_bytes_per_sec", "400mb"); // The default 20mb/sec is very slow for a local disk to disk snapshot
-				container.getNode().client().admin().cluster().preparePutRepository(snapshotRepoName).setType("fs").setSettings(settings).get();
+				container.createSnapshotRepo(snapshotRepoName, snapshotWorkingLocation);
 			}
 
 			return container;
@@ -212,6 +338,17 @@ public class ESEmbededContainer {
 			this.workingDir = workingDir;
 			return this;
 		}
+
+		/**
+		 * Stripe index data across several directories, ideally one per disk
+		 * 
+		 * @param workingDirs
+		 * @return Builder
+		 */
+		public Builder withWorkingDirs(List<String> workingDirs) {
+			this.workingDir = StringUtils.join(workingDirs, ',');
+			return this;
+		}
 		
 		/**
 		 * 
@@ -264,6 +401,55 @@ public class ESEmbededContainer {
 			this.memoryBackedIndex = memoryBackedIndex;
 			return this;
 		}
+		
+		/**
+		 * Number of cores the node may use. Elasticsearch sizes its thread pools off of this.
+		 * 
+		 * @param processors
+		 * @return Builder
+		 */
+		public Builder withProcessors(int processors) {
+			this.processors = processors;
+			return this;
+		}
+		
+		/**
+		 * Size the node's thread pools, index buffer, merging & snapshot throttle off of a ResourceProfile
+		 * 
+		 * @param profile
+		 * @return Builder
+		 */
+		public Builder withResourceProfile(ResourceProfile profile) {
+			this.processors = profile.getProcessors();
+			this.indexBufferSize = profile.getIndexBufferSize();
+			this.mergeThreads = profile.getMergeThreads();
+			this.maxMergedSegmentMB = profile.getMaxMergedSegmentMB();
+			this.maxSnapshotBytesPerSec = profile.getMaxSnapshotBytesPerSec();
+			return this;
+		}
+		
+		/**
+		 * Keep the task alive through long flush, optimize & snapshot calls
+		 * 
+		 * @param heartbeat
+		 * @return Builder
+		 */
+		public Builder withHeartbeat(Heartbeat heartbeat) {
+			this.heartbeat = heartbeat;
+			return this;
+		}
+		
+		/**
+		 * Skip translog durability (fsyncs & translog triggered flushes) for indices which get rebuilt 
+		 * from scratch if anything goes wrong. The index is committed once, right before it's snapshotted.
+		 * 
+		 * @param offlineBulkLoad
+		 * @return Builder
+		 */
+		public Builder withOfflineBulkLoad(boolean offlineBulkLoad) {
+			this.offlineBulkLoad = offlineBulkLoad;
+			return this;
+		}
 
 	}
 
@@ -279,4 +465,8 @@ public class ESEmbededContainer {
 		this.node = node;
 	}
 
+	public void setHeartbeat(Heartbeat heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
 }
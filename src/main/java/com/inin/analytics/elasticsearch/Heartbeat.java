@@ -0,0 +1,146 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Hadoop kills a task which hasn't reported progress within mapreduce.task.timeout (usually 600s). Flushing,
+ * optimizing, snapshotting and uploading a large shard can each take longer than that without touching the
+ * reporter. Long running phases register here, and as long as any are running a background thread pings
+ * the reporter and keeps the task status up to date with what they're doing.
+ *
+ * Without a Reporter (EG outside of a task) phases are tracked but nothing is reported.
+ *
+ */
+public class Heartbeat implements Closeable {
+	public static final long DEFAULT_INTERVAL_MS = 10000;
+
+	private Reporter reporter;
+	private List<Phase> phases = new CopyOnWriteArrayList<>();
+	private ScheduledExecutorService executor;
+
+	public Heartbeat(Reporter reporter) {
+		this(reporter, DEFAULT_INTERVAL_MS);
+	}
+
+	/**
+	 *
+	 * @param reporter
+	 * @param intervalMS How often to ping the reporter while a phase is running
+	 */
+	public Heartbeat(Reporter reporter, long intervalMS) {
+		this.reporter = reporter;
+		if(reporter != null) {
+			executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "es-heartbeat");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			executor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					beat();
+				}
+			}, intervalMS, intervalMS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Register a long running phase. Close it once it's done.
+	 *
+	 * @param name Shows up in the task status
+	 * @return Phase
+	 */
+	public Phase start(String name) {
+		Phase phase = new Phase(name);
+		phases.add(phase);
+		beat();
+		return phase;
+	}
+
+	/**
+	 *
+	 * @return String Everything that's currently running
+	 */
+	public String getStatus() {
+		StringBuilder status = new StringBuilder();
+		for(Phase phase : phases) {
+			if(status.length() > 0) {
+				status.append(", ");
+			}
+			status.append(phase);
+		}
+		return status.toString();
+	}
+
+	public Reporter getReporter() {
+		return reporter;
+	}
+
+	private void beat() {
+		// Only vouch for the task while something is actually running, a reducer wedged elsewhere should still time out
+		if(reporter != null && !phases.isEmpty()) {
+			reporter.progress();
+			reporter.setStatus(getStatus());
+		}
+	}
+
+	@Override
+	public void close() {
+		if(executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	public class Phase implements Closeable {
+		private String name;
+		private volatile int percent = -1;
+
+		private Phase(String name) {
+			this.name = name;
+		}
+
+		/**
+		 *
+		 * @param percent 0-100
+		 */
+		public void setPercent(int percent) {
+			this.percent = Math.max(0, Math.min(100, percent));
+		}
+
+		/**
+		 *
+		 * @param done
+		 * @param total
+		 */
+		public void setProgress(long done, long total) {
+			if(total > 0) {
+				setPercent((int) (done * 100 / total));
+			}
+		}
+
+		public int getPercent() {
+			return percent;
+		}
+
+		@Override
+		public void close() {
+			phases.remove(this);
+		}
+
+		@Override
+		public String toString() {
+			return percent < 0 ? name : name + " " + percent + "%";
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reducer;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs the job's BaseESReducer over IndexShardKey / IndexDocumentWritable map output rather than the pipe
+ * delimited Text. Nothing gets split or scanned for separators on either side of the shuffle and ids may hold
+ * the separator. The shuffle is no smaller, the length prefixes take the separators' place, only the parsing
+ * is saved. The reducer itself is unchanged, so the same class is still what gets handed to the
+ * IndexingPostProcessor.
+ *
+ */
+public class IndexDocumentReducer implements Reducer<IndexShardKey, IndexDocumentWritable, NullWritable, Text> {
+	private BaseESReducer delegate;
+
+	/**
+	 * Shuffle IndexShardKey / IndexDocumentWritable into reducerClass. Map with BaseESDocumentMapper or anything
+	 * else that emits the same types. Dedupe is done reduce side only, enable it with DEDUPE_ENABLED rather than
+	 * DedupeRule.configure, whose combiner & comparators are for Text.
+	 *
+	 * @param job
+	 * @param reducerClass
+	 * @throws IllegalArgumentException if DedupeRule.configure already set up its Text combiner
+	 */
+	public static void configure(JobConf job, Class<? extends BaseESReducer> reducerClass) {
+		Preconditions.checkArgument(job.getCombinerClass() != DedupeCombiner.class, "DedupeCombiner only takes Text, set " + ConfigParams.DEDUPE_ENABLED + " rather than calling DedupeRule.configure");
+		job.setClass(ConfigParams.DOCUMENT_REDUCER_CLASS.toString(), reducerClass, BaseESReducer.class);
+		job.setReducerClass(IndexDocumentReducer.class);
+		job.setMapOutputKeyClass(IndexShardKey.class);
+		job.setMapOutputValueClass(IndexDocumentWritable.class);
+		// Same as WritableComparator.define sets up, but the job doesn't depend on that having run
+		job.setOutputKeyComparatorClass(IndexShardKey.Comparator.class);
+		job.setOutputValueGroupingComparator(IndexShardKey.GroupingComparator.class);
+	}
+
+	@Override
+	public void configure(JobConf job) {
+		Class<? extends BaseESReducer> reducerClass = job.getClass(ConfigParams.DOCUMENT_REDUCER_CLASS.toString(), null, BaseESReducer.class);
+		Preconditions.checkNotNull(reducerClass, ConfigParams.DOCUMENT_REDUCER_CLASS + " must be set, see IndexDocumentReducer.configure");
+		// Configures it too
+		delegate = ReflectionUtils.newInstance(reducerClass, job);
+	}
+
+	@Override
+	public void reduce(IndexShardKey key, Iterator<IndexDocumentWritable> documents, OutputCollector<NullWritable, Text> output, Reporter reporter) throws IOException {
+		delegate.reduce(key, documents, output, reporter);
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+}
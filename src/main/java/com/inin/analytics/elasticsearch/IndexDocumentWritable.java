@@ -0,0 +1,187 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Binary stand in for the [doc type]|[doc id]|json reducer value, see IndexDocumentReducer. Every field is length
+ * prefixed, so ids may hold the separator and the source is read straight into a byte buffer rather than scanned.
+ *
+ * The index & routing are optional. Docs carry them as input to BaseESDocumentMapper, which moves them onto the
+ * IndexShardKey so they aren't shuffled twice. The version is optional too, with dedupe enabled copies of a doc
+ * are compared on it rather than on DEDUPE_VERSION_FIELD.
+ *
+ * Like Text, an instance is reused between records, so the source is only valid until the next readFields.
+ *
+ */
+public class IndexDocumentWritable implements Writable {
+	private static final byte HAS_SHARD = 1;
+	private static final byte HAS_VERSION = 2;
+
+	private String index;
+	private String routing;
+	private String indexType;
+	private String docId;
+	private boolean hasVersion;
+	private long version;
+	private BytesReference source;
+
+	// Owned by this instance & reused by readFields. The source may instead be a view over someone else's buffer.
+	private byte[] buffer = new byte[0];
+
+	public IndexDocumentWritable() {
+	}
+
+	public IndexDocumentWritable(String indexType, String docId, BytesReference source) {
+		set(indexType, docId, source);
+	}
+
+	/**
+	 * Deep copy, for holding onto a doc past the next record
+	 *
+	 * @param other
+	 */
+	public IndexDocumentWritable(IndexDocumentWritable other) {
+		set(other.indexType, other.docId, other.source.copyBytesArray());
+		setShard(other.index, other.routing);
+		hasVersion = other.hasVersion;
+		version = other.version;
+	}
+
+	/**
+	 * Clears the index, routing & version
+	 *
+	 * @param indexType
+	 * @param docId
+	 * @param source Held onto rather than copied
+	 */
+	public void set(String indexType, String docId, BytesReference source) {
+		this.indexType = Preconditions.checkNotNull(indexType, "Docs need a type");
+		this.docId = Preconditions.checkNotNull(docId, "Docs need an id");
+		this.source = Preconditions.checkNotNull(source, "Docs need a source");
+		index = null;
+		routing = null;
+		clearVersion();
+	}
+
+	/**
+	 *
+	 * @param index Null along with the routing to drop them, EG once they're on the key
+	 * @param routing
+	 */
+	public void setShard(String index, String routing) {
+		Preconditions.checkArgument((index == null) == (routing == null), "Set both the index & routing or neither");
+		this.index = index;
+		this.routing = routing;
+	}
+
+	public void setVersion(long version) {
+		this.hasVersion = true;
+		this.version = version;
+	}
+
+	public void clearVersion() {
+		hasVersion = false;
+		version = 0;
+	}
+
+	/**
+	 *
+	 * @return String Null unless the doc carries its index
+	 */
+	public String getIndex() {
+		return index;
+	}
+
+	/**
+	 *
+	 * @return String Null unless the doc carries its routing
+	 */
+	public String getRouting() {
+		return routing;
+	}
+
+	public String getIndexType() {
+		return indexType;
+	}
+
+	public String getDocId() {
+		return docId;
+	}
+
+	public boolean hasVersion() {
+		return hasVersion;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public BytesReference getSource() {
+		return source;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		byte flags = 0;
+		if(index != null) {
+			flags |= HAS_SHARD;
+		}
+		if(hasVersion) {
+			flags |= HAS_VERSION;
+		}
+		out.writeByte(flags);
+		if(index != null) {
+			Text.writeString(out, index);
+			Text.writeString(out, routing);
+		}
+		Text.writeString(out, indexType);
+		Text.writeString(out, docId);
+		if(hasVersion) {
+			WritableUtils.writeVLong(out, version);
+		}
+		WritableUtils.writeVInt(out, source.length());
+		if(source.hasArray()) {
+			out.write(source.array(), source.arrayOffset(), source.length());
+		} else {
+			out.write(source.toBytes());
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		byte flags = in.readByte();
+		if((flags & HAS_SHARD) != 0) {
+			index = Text.readString(in);
+			routing = Text.readString(in);
+		} else {
+			index = null;
+			routing = null;
+		}
+		indexType = Text.readString(in);
+		docId = Text.readString(in);
+		hasVersion = (flags & HAS_VERSION) != 0;
+		version = hasVersion ? WritableUtils.readVLong(in) : 0;
+
+		int length = WritableUtils.readVInt(in);
+		if(buffer.length < length) {
+			buffer = new byte[length];
+		}
+		in.readFully(buffer, 0, length);
+		source = new BytesArray(buffer, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		return indexType + BaseESReducer.TUPLE_SEPARATOR + docId + BaseESReducer.TUPLE_SEPARATOR + source.toUtf8();
+	}
+}
@@ -0,0 +1,177 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Binary stand in for the [indexName]|[routing hash] reducer key, see IndexDocumentReducer. Each part is a
+ * length prefixed field, so nothing has to be split back apart on the reduce side and neither part has to
+ * stay clear of the separator.
+ *
+ * The optional sort value plays the part of SecondarySort's trailing key value. Keys are sorted on the index,
+ * routing & sort value and grouped on the index & routing alone, so a shard still arrives in a single reduce call.
+ *
+ */
+public class IndexShardKey implements WritableComparable<IndexShardKey> {
+	private static final int SHARD_FIELDS = 2;
+	private static final int ALL_FIELDS = 3;
+
+	private Text index = new Text();
+	private Text routing = new Text();
+	private Text sortValue = new Text();
+
+	static {
+		WritableComparator.define(IndexShardKey.class, new Comparator());
+	}
+
+	public IndexShardKey() {
+	}
+
+	public IndexShardKey(String index, String routing) {
+		set(index, routing, null);
+	}
+
+	/**
+	 *
+	 * @param index
+	 * @param routing
+	 * @param sortValue Compared as bytes, null to leave the doc unsorted
+	 */
+	public void set(String index, String routing, String sortValue) {
+		this.index.set(index);
+		this.routing.set(routing);
+		this.sortValue.set(sortValue == null ? "" : sortValue);
+	}
+
+	public String getIndex() {
+		return index.toString();
+	}
+
+	public String getRouting() {
+		return routing.toString();
+	}
+
+	public String getSortValue() {
+		return sortValue.toString();
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		index.write(out);
+		routing.write(out);
+		sortValue.write(out);
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		index.readFields(in);
+		routing.readFields(in);
+		sortValue.readFields(in);
+	}
+
+	@Override
+	public int compareTo(IndexShardKey other) {
+		int result = compareShard(other);
+		if(result != 0) {
+			return result;
+		}
+		return sortValue.compareTo(other.sortValue);
+	}
+
+	private int compareShard(IndexShardKey other) {
+		int result = index.compareTo(other.index);
+		if(result != 0) {
+			return result;
+		}
+		return routing.compareTo(other.routing);
+	}
+
+	/**
+	 * Hashes the same as the Text key [indexName]|[routing hash] does, so the default HashPartitioner sends a
+	 * shard to the same reducer on either path. The sort value is left out so a shard isn't split across reducers.
+	 */
+	@Override
+	public int hashCode() {
+		int hash = hashBytes(1, index.getBytes(), index.getLength());
+		hash = (31 * hash) + BaseESReducer.TUPLE_SEPARATOR;
+		return hashBytes(hash, routing.getBytes(), routing.getLength());
+	}
+
+	// Picks up where WritableComparator.hashBytes left off
+	private static int hashBytes(int hash, byte[] bytes, int length) {
+		for(int x = 0; x < length; x++) {
+			hash = (31 * hash) + bytes[x];
+		}
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof IndexShardKey && compareTo((IndexShardKey) other) == 0;
+	}
+
+	@Override
+	public String toString() {
+		return index.toString() + BaseESReducer.TUPLE_SEPARATOR + routing.toString();
+	}
+
+	/**
+	 * Sorts serialized keys field by field without deserializing them
+	 */
+	public static class Comparator extends WritableComparator {
+		private int fields;
+
+		public Comparator() {
+			this(ALL_FIELDS);
+		}
+
+		protected Comparator(int fields) {
+			super(IndexShardKey.class);
+			this.fields = fields;
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			try {
+				for(int x = 0; x < fields; x++) {
+					int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+					int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+					int length1 = readVInt(b1, s1);
+					int length2 = readVInt(b2, s2);
+					int result = compareBytes(b1, s1 + n1, length1, b2, s2 + n2, length2);
+					if(result != 0) {
+						return result;
+					}
+					s1 += n1 + length1;
+					s2 += n2 + length2;
+				}
+				return 0;
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e);
+			}
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public int compare(WritableComparable a, WritableComparable b) {
+			IndexShardKey k1 = (IndexShardKey) a;
+			IndexShardKey k2 = (IndexShardKey) b;
+			return fields == ALL_FIELDS ? k1.compareTo(k2) : k1.compareShard(k2);
+		}
+	}
+
+	/**
+	 * Groups every sort value of a shard into the same reduce call
+	 */
+	public static class GroupingComparator extends Comparator {
+		public GroupingComparator() {
+			super(SHARD_FIELDS);
+		}
+	}
+}
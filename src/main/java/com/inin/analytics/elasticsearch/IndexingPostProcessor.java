@@ -93,6 +93,13 @@ public class IndexingPostProcessor {
 			indexesToSnapshot.addAll(indicies);
 			esEmbededContainer.snapshot(indexesToSnapshot, BaseESReducer.SNAPSHOT_NAME, conf.get(ConfigParams.SNAPSHOT_REPO_NAME_CONFIG_KEY.toString()), null);
 			
+			// Staged shards go into place before the gaps are filled in & the root manifest is published
+			boolean atomicShardCommitEnabled = conf.getBoolean(ConfigParams.ATOMIC_SHARD_COMMIT_ENABLED.toString(), false);
+			if(atomicShardCommitEnabled) {
+				int promoted = getTransport(conf).promoteStagedShards(BaseESReducer.SNAPSHOT_NAME);
+				logger.info("Promoted " + promoted + " staged shards");
+			}
+			
 			for(String index : indicies) {
 				try{
 					placeMissingIndexes(BaseESReducer.SNAPSHOT_NAME, esEmbededContainer, conf, index, shardConfig, !rootManifestUploaded);
@@ -107,6 +114,11 @@ public class IndexingPostProcessor {
 				writer.println(index);	
 			}
 			
+			// Attempts that weren't promoted or died mid upload leave their staged shards behind, and resumable attempts their commit records
+			if(atomicShardCommitEnabled || conf.getBoolean(ConfigParams.SHARD_RESUME_ENABLED.toString(), false)) {
+				getTransport(conf).cleanStaging();
+			}
+			
 			// Clean up index from embedded instance
 			for(String index : indicies) {
 				esEmbededContainer.getNode().client().admin().indices().prepareDelete(index).execute();	
@@ -118,10 +130,9 @@ public class IndexingPostProcessor {
 			fs.copyFromLocalFile(new Path(scratchFile), manifestFile);
 		} finally {
 			if(esEmbededContainer != null) {
-				esEmbededContainer.getNode().close();
-				while(!esEmbededContainer.getNode().isClosed());
+				esEmbededContainer.close();
 			}
-			FileUtils.deleteDirectory(new File(conf.get(ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY.toString())));
+			FileUtils.deleteDirectory(new File(getFirstDir(conf, ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY)));
 		}
 	}
 
@@ -136,8 +147,22 @@ public class IndexingPostProcessor {
 	 * @throws IOException
 	 */
 	public void placeMissingIndexes(String snapshotName, ESEmbededContainer esEmbededContainer, Configuration conf, String index, ShardConfig shardConfig, boolean includeRootManifest) throws IOException {
-		BaseTransport transport = SnapshotTransportStrategy.get(conf.get(ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY.toString()), conf.get(ConfigParams.SNAPSHOT_FINAL_DESTINATION.toString()));
-		transport.placeMissingShards(snapshotName, index, shardConfig, includeRootManifest);			
+		getTransport(conf).placeMissingShards(snapshotName, index, shardConfig, includeRootManifest);			
+	}
+	
+	private static BaseTransport getTransport(Configuration conf) {
+		return SnapshotTransportStrategy.get(getFirstDir(conf, ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY), conf.get(ConfigParams.SNAPSHOT_FINAL_DESTINATION.toString()));
+	}
+
+	/**
+	 * Working dirs may list one directory per disk. There's only one node here, so the first one will do.
+	 * 
+	 * @param conf
+	 * @param param
+	 * @return String
+	 */
+	private static String getFirstDir(Configuration conf, ConfigParams param) {
+		return LocalDirSelector.parse(conf.get(param.toString())).get(0);
 	}
 
 	/**
@@ -160,9 +185,9 @@ public class IndexingPostProcessor {
 		ESEmbededContainer.Builder builder = new ESEmbededContainer.Builder()
 		.withNodeName("embededESTempLoaderNode")
 		.withInMemoryBackedIndexes(true)
-		.withWorkingDir(conf.get(ConfigParams.ES_WORKING_DIR.toString()))
+		.withWorkingDir(getFirstDir(conf, ConfigParams.ES_WORKING_DIR))
 		.withClusterName("bulkLoadPartition")
-		.withSnapshotWorkingLocation(conf.get(ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY.toString()))
+		.withSnapshotWorkingLocation(getFirstDir(conf, ConfigParams.SNAPSHOT_WORKING_LOCATION_CONFIG_KEY))
 		.withSnapshotRepoName(conf.get(ConfigParams.SNAPSHOT_REPO_NAME_CONFIG_KEY.toString()));
 		
 		if(templateName != null && templateJson != null) {
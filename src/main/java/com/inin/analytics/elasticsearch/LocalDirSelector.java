@@ -0,0 +1,232 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads a reducer's local IO across the node's disks. ES_WORKING_DIR and SNAPSHOT_WORKING_LOCATION_CONFIG_KEY
+ * may each be a comma separated list of directories, typically one per JBOD disk. Directories are ranked by free
+ * space first, so a nearly full disk is avoided, and then by how many reducers on the node are already working out
+ * of them. Reducers usually start together and all see the same usage, so remaining ties are broken by the
+ * reducer's partition, which spreads them round robin across the disks. The snapshot repo gets the best
+ * one, and index data is striped across the best of the rest that sit on a different device, so snapshot copies
+ * don't compete with indexing & merging for the same spindle.
+ *
+ */
+public class LocalDirSelector {
+	private static transient Logger logger = LoggerFactory.getLogger(LocalDirSelector.class);
+
+	// Reducers name their directory [partition][task attempt id], see BaseESReducer.configure
+	private static final Pattern REDUCER_DIR_NAME = Pattern.compile("\\d+attempt_\\S+");
+
+	// Granularity free space is compared at
+	private static final long FREE_SPACE_BUCKETS = 10;
+
+	private String snapshotDir;
+	private List<String> dataDirs = new ArrayList<>();
+
+	/**
+	 *
+	 * @param dataDirCandidates Base directories index data may go in
+	 * @param snapshotDirCandidates Base directories the snapshot repo may go in
+	 * @param maxDataDirs Max number of directories to stripe index data across
+	 */
+	public LocalDirSelector(List<String> dataDirCandidates, List<String> snapshotDirCandidates, int maxDataDirs) {
+		this(dataDirCandidates, snapshotDirCandidates, maxDataDirs, 0);
+	}
+
+	/**
+	 *
+	 * @param dataDirCandidates Base directories index data may go in
+	 * @param snapshotDirCandidates Base directories the snapshot repo may go in
+	 * @param maxDataDirs Max number of directories to stripe index data across
+	 * @param partition The reducer's partition, breaks ties between equally used directories
+	 */
+	public LocalDirSelector(List<String> dataDirCandidates, List<String> snapshotDirCandidates, int maxDataDirs, int partition) {
+		List<String> rankedSnapshotDirs = rank(snapshotDirCandidates, partition);
+		snapshotDir = rankedSnapshotDirs.get(0);
+		String snapshotDevice = getDevice(snapshotDir);
+
+		List<String> rankedDataDirs = rank(dataDirCandidates, partition);
+		Set<String> devices = new HashSet<>();
+		for(String dir : rankedDataDirs) {
+			String device = getDevice(dir);
+			// One directory per device, striping across two directories on the same disk buys nothing
+			if(dataDirs.size() < maxDataDirs && (device == null || (!device.equals(snapshotDevice) && devices.add(device)))) {
+				dataDirs.add(dir);
+			}
+		}
+
+		if(dataDirs.isEmpty()) {
+			// Everything's on the same disk as the snapshot repo
+			dataDirs.add(rankedDataDirs.get(0));
+		}
+		logger.info("Striping index data across {} with the snapshot repo on {}", dataDirs, snapshotDir);
+	}
+
+	/**
+	 * Split a comma separated list of directories
+	 *
+	 * @param dirs
+	 * @return List<String>
+	 */
+	public static List<String> parse(String dirs) {
+		List<String> parsed = new ArrayList<>();
+		for(String dir : StringUtils.split(dirs, ',')) {
+			if(StringUtils.isNotBlank(dir)) {
+				parsed.add(dir.trim());
+			}
+		}
+		return parsed;
+	}
+
+	/**
+	 * Order directories by free space, then by the number of reducers working out of them
+	 *
+	 * @param dirs
+	 * @return List<String>
+	 */
+	public static List<String> rank(List<String> dirs) {
+		return rank(dirs, 0);
+	}
+
+	/**
+	 * Order directories by free space, then by the number of reducers working out of them, ties are rotated by the partition.
+	 * Each directory is measured once up front, other reducers come and go while we sort.
+	 *
+	 * @param dirs
+	 * @param partition
+	 * @return List<String>
+	 */
+	public static List<String> rank(List<String> dirs, int partition) {
+		Map<String, Long> usableSpace = new HashMap<>();
+		Map<String, Integer> reducersUsing = new HashMap<>();
+		for(String dir : dirs) {
+			usableSpace.put(dir, getUsableSpace(dir));
+			reducersUsing.put(dir, getReducersUsing(dir));
+		}
+		return rank(dirs, partition, usableSpace, reducersUsing);
+	}
+
+	/**
+	 * Order already measured directories. Free space is compared in tenths of the roomiest directory's, so disks with 
+	 * about the same room count as equal and reducers starting together still spread by usage & partition, while a 
+	 * nearly full disk goes last.
+	 *
+	 * @param dirs
+	 * @param partition
+	 * @param usableSpace Bytes free per directory
+	 * @param reducersUsing Reducers working out of each directory
+	 * @return List<String>
+	 */
+	public static List<String> rank(List<String> dirs, int partition, Map<String, Long> usableSpace, final Map<String, Integer> reducersUsing) {
+		long roomiest = 0;
+		for(String dir : dirs) {
+			roomiest = Math.max(roomiest, usableSpace.get(dir));
+		}
+		final Map<String, Long> freeSpaceBucket = new HashMap<>();
+		for(String dir : dirs) {
+			// Rounded up, so anything within a tenth of the roomiest shares its bucket
+			freeSpaceBucket.put(dir, roomiest == 0 ? 0 : (usableSpace.get(dir) * FREE_SPACE_BUCKETS + roomiest - 1) / roomiest);
+		}
+
+		List<String> ranked = new ArrayList<>(dirs);
+		if(!ranked.isEmpty()) {
+			Collections.rotate(ranked, -(partition % ranked.size()));
+		}
+		// Stable, so equally good directories keep their rotated order
+		Collections.sort(ranked, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int byFreeSpace = Long.compare(freeSpaceBucket.get(b), freeSpaceBucket.get(a));
+				if(byFreeSpace != 0) {
+					return byFreeSpace;
+				}
+				return Integer.compare(reducersUsing.get(a), reducersUsing.get(b));
+			}
+		});
+		return ranked;
+	}
+
+	/**
+	 * Where a reducer works out of a base directory
+	 *
+	 * @param dir
+	 * @param name Unique to the reducer attempt
+	 * @return String The subdirectory, with a trailing slash
+	 */
+	public static String getReducerDir(String dir, String name) {
+		return new File(dir, name).getPath() + BaseESReducer.DIR_SEPARATOR;
+	}
+
+	/**
+	 * Every reducer works out of its own subdirectory of a base directory (see getReducerDir), and removes it when it's done.
+	 * Anything else in there (EG lost+found or an admin's scratch space) doesn't count.
+	 *
+	 * @param dir
+	 * @return int
+	 */
+	private static int getReducersUsing(String dir) {
+		File[] reducerDirs = new File(dir).listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && REDUCER_DIR_NAME.matcher(file.getName()).matches();
+			}
+		});
+		return reducerDirs == null ? 0 : reducerDirs.length;
+	}
+
+	/**
+	 *
+	 * @param dir
+	 * @return long Bytes this JVM can write to the directory's disk
+	 */
+	private static long getUsableSpace(String dir) {
+		File file = new File(dir);
+		if(!file.exists()) {
+			file.mkdirs();
+		}
+		return file.getUsableSpace();
+	}
+
+	/**
+	 *
+	 * @param dir
+	 * @return String the name of the filesystem a directory lives on, null if it can't be determined
+	 */
+	private static String getDevice(String dir) {
+		try {
+			File file = new File(dir);
+			if(!file.exists()) {
+				file.mkdirs();
+			}
+			return Files.getFileStore(file.toPath()).name();
+		} catch (IOException e) {
+			logger.warn("Unable to determine the device for " + dir, e);
+			return null;
+		}
+	}
+
+	public String getSnapshotDir() {
+		return snapshotDir;
+	}
+
+	public List<String> getDataDirs() {
+		return dataDirs;
+	}
+}
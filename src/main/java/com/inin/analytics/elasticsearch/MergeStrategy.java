@@ -0,0 +1,103 @@
+package com.inin.analytics.elasticsearch;
+
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * How hard to merge an index before it's snapshotted. Fewer segments restore into faster queries, but the
+ * final optimize is often the second most expensive step of a build, and is wasted on shards that are
+ * already down to a handful of segments.
+ *
+ * SKIP never merges. OPTIMIZE always does, down to maxNumSegments. THRESHOLD only optimizes when the
+ * segment count or the share of deleted docs is above a threshold. Any of them can bump the merge thread
+ * count for the final merge, which helps when merging down to more than 1 segment.
+ *
+ */
+public class MergeStrategy {
+
+	public static enum Mode {
+		SKIP, OPTIMIZE, THRESHOLD
+	}
+
+	// Let elasticsearch decide how far to optimize
+	public static final int DEFAULT_MAX_NUM_SEGMENTS = -1;
+	public static final int DEFAULT_SEGMENT_COUNT_THRESHOLD = 10;
+	public static final float DEFAULT_DELETED_DOCS_RATIO_THRESHOLD = 0.1f;
+
+	// What builds have always done
+	public static final MergeStrategy DEFAULT = new MergeStrategy(Mode.OPTIMIZE, DEFAULT_MAX_NUM_SEGMENTS, 0, 0, 0);
+
+	private Mode mode;
+	private int maxNumSegments;
+	private int segmentCountThreshold;
+	private float deletedDocsRatioThreshold;
+	private int mergeThreads;
+
+	/**
+	 *
+	 * @param mode
+	 * @param maxNumSegments How many segments to optimize down to, -1 for the elasticsearch default
+	 * @param segmentCountThreshold THRESHOLD mode merges when there's more segments than this
+	 * @param deletedDocsRatioThreshold THRESHOLD mode merges when more than this share of docs are deleted
+	 * @param mergeThreads Merge threads for the final merge, 0 to leave the index setting alone
+	 */
+	public MergeStrategy(Mode mode, int maxNumSegments, int segmentCountThreshold, float deletedDocsRatioThreshold, int mergeThreads) {
+		this.mode = mode;
+		this.maxNumSegments = maxNumSegments;
+		this.segmentCountThreshold = segmentCountThreshold;
+		this.deletedDocsRatioThreshold = deletedDocsRatioThreshold;
+		this.mergeThreads = mergeThreads;
+	}
+
+	/**
+	 * The strategy set on the job conf, defaults to always optimizing
+	 *
+	 * @param job
+	 * @return MergeStrategy
+	 */
+	public static MergeStrategy fromJobConf(JobConf job) {
+		return new MergeStrategy(Mode.valueOf(job.get(ConfigParams.MERGE_STRATEGY.toString(), Mode.OPTIMIZE.name()).toUpperCase()),
+				job.getInt(ConfigParams.MERGE_MAX_NUM_SEGMENTS.toString(), DEFAULT_MAX_NUM_SEGMENTS),
+				job.getInt(ConfigParams.MERGE_SEGMENT_COUNT_THRESHOLD.toString(), DEFAULT_SEGMENT_COUNT_THRESHOLD),
+				job.getFloat(ConfigParams.MERGE_DELETED_DOCS_RATIO_THRESHOLD.toString(), DEFAULT_DELETED_DOCS_RATIO_THRESHOLD),
+				job.getInt(ConfigParams.FINAL_MERGE_THREADS.toString(), 0));
+	}
+
+	/**
+	 *
+	 * @param segmentCount
+	 * @param docCount Live docs
+	 * @param deletedDocs
+	 * @return boolean whether to optimize an index in this state
+	 */
+	public boolean shouldMerge(long segmentCount, long docCount, long deletedDocs) {
+		switch(mode) {
+		case SKIP:
+			return false;
+		case THRESHOLD:
+			long totalDocs = docCount + deletedDocs;
+			return segmentCount > segmentCountThreshold || (totalDocs > 0 && (float) deletedDocs / totalDocs > deletedDocsRatioThreshold);
+		default:
+			return true;
+		}
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getMaxNumSegments() {
+		return maxNumSegments;
+	}
+
+	public int getSegmentCountThreshold() {
+		return segmentCountThreshold;
+	}
+
+	public float getDeletedDocsRatioThreshold() {
+		return deletedDocsRatioThreshold;
+	}
+
+	public int getMergeThreads() {
+		return mergeThreads;
+	}
+}
@@ -0,0 +1,124 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.indexer.DocumentFailureHandler;
+
+/**
+ * Sets bad docs aside rather than losing a whole shard build over them. Each one is written as a line of JSON
+ * holding the index, routing, doc type, doc id, error & source to a file per reducer attempt under QUARANTINE_PATH.
+ * Attempts that fail or lose to a speculative attempt leave their file behind, so records can show up more than once.
+ *
+ * A shard can have up to QUARANTINE_MAX_FAILURES_PER_SHARD bad docs, one more fails the reducer. A shard with that
+ * many bad docs likely has a mapping problem worth fixing before it goes anywhere.
+ *
+ * The quarantine lives outside the job output because the post processor merges everything in there into the manifest.
+ *
+ */
+public class Quarantine implements Closeable {
+	public static final int DEFAULT_MAX_FAILURES_PER_SHARD = 100;
+
+	private Path path;
+	private Configuration conf;
+	private int maxFailuresPerShard;
+	private FSDataOutputStream out;
+
+	// The key being reduced, its docs share one failure budget
+	private String currentShard;
+	private DocumentFailureHandler currentHandler;
+
+	/**
+	 *
+	 * @param path The file to quarantine docs in, created on the first bad doc
+	 * @param conf
+	 * @param maxFailuresPerShard
+	 */
+	public Quarantine(Path path, Configuration conf, int maxFailuresPerShard) {
+		this.path = path;
+		this.conf = conf;
+		this.maxFailuresPerShard = maxFailuresPerShard;
+	}
+
+	/**
+	 *
+	 * @param job
+	 * @param attemptId
+	 * @return Quarantine null unless QUARANTINE_PATH is set
+	 */
+	public static Quarantine fromJobConf(JobConf job, String attemptId) {
+		String quarantinePath = job.get(ConfigParams.QUARANTINE_PATH.toString());
+		if(quarantinePath == null) {
+			return null;
+		}
+		return new Quarantine(new Path(quarantinePath, "quarantine-" + attemptId), job,
+				job.getInt(ConfigParams.QUARANTINE_MAX_FAILURES_PER_SHARD.toString(), DEFAULT_MAX_FAILURES_PER_SHARD));
+	}
+
+	/**
+	 *
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @return DocumentFailureHandler The same one for every call with the same key in a row
+	 */
+	public synchronized DocumentFailureHandler forShard(final String indexName, final String routing, final Reporter reporter) {
+		String shard = indexName + BaseESReducer.TUPLE_SEPARATOR + routing;
+		if(shard.equals(currentShard)) {
+			return currentHandler;
+		}
+
+		currentShard = shard;
+		currentHandler = new DocumentFailureHandler() {
+			private AtomicInteger failures = new AtomicInteger();
+
+			@Override
+			public void onFailure(String indexType, String docId, BytesReference source, String error) throws IOException {
+				XContentBuilder record = XContentFactory.jsonBuilder().startObject()
+						.field("index", indexName)
+						.field("routing", routing)
+						.field("type", indexType)
+						.field("id", docId)
+						.field("error", error)
+						.field("source", source.toUtf8())
+						.endObject();
+				write(record);
+				reporter.incrCounter(JOB_COUNTER.DOCS_QUARANTINED, 1l);
+
+				int count = failures.incrementAndGet();
+				if(count > maxFailuresPerShard) {
+					throw new IOException(count + " bad docs in " + indexName + BaseESReducer.TUPLE_SEPARATOR + routing + " is over the budget of "
+							+ maxFailuresPerShard + ", see " + path + ". Last error: " + error);
+				}
+			}
+		};
+		return currentHandler;
+	}
+
+	private synchronized void write(XContentBuilder record) throws IOException {
+		if(out == null) {
+			out = path.getFileSystem(conf).create(path, true);
+		}
+		record.bytes().writeTo(out);
+		out.write('\n');
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if(out != null) {
+			out.close();
+			out = null;
+		}
+	}
+}
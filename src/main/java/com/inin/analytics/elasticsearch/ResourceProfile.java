@@ -0,0 +1,194 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the embedded elasticsearch node to the resources YARN actually gave the reducer. Rather than
+ * one set of hard coded values, the index buffer, merge threads, max segment size and snapshot throttle
+ * are derived from the container's memory & vcores, the local disks, and how many reducers share the node.
+ *
+ * Any individual setting can be pinned with its ConfigParams key, auto tuned or not.
+ */
+public class ResourceProfile {
+	private static transient Logger logger = LoggerFactory.getLogger(ResourceProfile.class);
+
+	public static final String REDUCE_MEMORY_MB_CONFIG_KEY = "mapreduce.reduce.memory.mb";
+	public static final String NODE_MEMORY_MB_CONFIG_KEY = "yarn.nodemanager.resource.memory-mb";
+	public static final String NUM_REDUCERS_CONFIG_KEY = "mapreduce.job.reduces";
+	public static final String LOCAL_DIRS_CONFIG_KEY = "mapreduce.cluster.local.dir";
+
+	// What the embedded node ran with before auto tuning, still used when it's disabled
+	public static final String DEFAULT_INDEX_BUFFER_SIZE = "5%";
+	public static final int DEFAULT_MERGE_THREADS = 1;
+	public static final int DEFAULT_MAX_MERGED_SEGMENT_MB = 256;
+	public static final String DEFAULT_MAX_SNAPSHOT_BYTES_PER_SEC = "400mb";
+
+	// Rough sequential write throughput to budget snapshots against
+	private static final int SSD_MB_PER_SEC = 400;
+	private static final int SPINNING_DISK_MB_PER_SEC = 100;
+
+	private int processors = 1;
+	private String indexBufferSize = DEFAULT_INDEX_BUFFER_SIZE;
+	private int mergeThreads = DEFAULT_MERGE_THREADS;
+	private int maxMergedSegmentMB = DEFAULT_MAX_MERGED_SEGMENT_MB;
+	private String maxSnapshotBytesPerSec = DEFAULT_MAX_SNAPSHOT_BYTES_PER_SEC;
+
+	/**
+	 * Build the profile for a reducer, auto tuned if AUTO_TUNE_ENABLED is set, with any explicitly configured settings applied on top
+	 *
+	 * @param job
+	 * @param workingDir Where the index data lives, used to tell whether it's on an SSD
+	 * @return ResourceProfile
+	 */
+	public static ResourceProfile fromJobConf(JobConf job, String workingDir) {
+		ResourceProfile profile;
+		if(job.getBoolean(ConfigParams.AUTO_TUNE_ENABLED.toString(), false)) {
+			long containerMB = job.getLong(REDUCE_MEMORY_MB_CONFIG_KEY, 1024);
+			long heapMB = Runtime.getRuntime().maxMemory() / (1024 * 1024);
+			String[] localDirs = job.getStrings(LOCAL_DIRS_CONFIG_KEY);
+			int disks = localDirs == null ? 1 : Math.max(1, localDirs.length);
+			int reducersPerNode = job.getInt(ConfigParams.REDUCERS_PER_NODE.toString(), estimateReducersPerNode(job, containerMB));
+
+			profile = autoTune(BaseESReducer.getAvailableCores(job), containerMB, heapMB, disks, !isRotational(workingDir), reducersPerNode);
+		} else {
+			profile = new ResourceProfile();
+			if(job.getBoolean(ConfigParams.PARALLEL_INDEXING_ENABLED.toString(), false)) {
+				profile.processors = BaseESReducer.getAvailableCores(job);
+			}
+		}
+
+		profile.applyOverrides(job);
+		logger.info("Embedded elasticsearch resource profile {}", profile);
+		return profile;
+	}
+
+	/**
+	 * Derive node settings from the resources available to a single reducer
+	 *
+	 * @param processors Cores allocated to the reducer
+	 * @param containerMB YARN container memory
+	 * @param heapMB JVM max heap
+	 * @param disks Number of local disks on the node
+	 * @param ssd Whether the index data lives on an SSD
+	 * @param reducersPerNode Reducers expected to share the node's disks
+	 * @return ResourceProfile
+	 */
+	public static ResourceProfile autoTune(int processors, long containerMB, long heapMB, int disks, boolean ssd, int reducersPerNode) {
+		ResourceProfile profile = new ResourceProfile();
+		profile.processors = Math.max(1, processors);
+
+		// ES computes a percentage against the heap which may well be bigger than the container, so hand it an absolute size instead
+		long memoryMB = Math.min(containerMB, heapMB);
+		profile.indexBufferSize = clamp(memoryMB / 10, 32, 512) + "mb";
+
+		// Concurrent merges only pay off when the disk can seek
+		profile.mergeThreads = ssd ? Math.max(1, Math.min(4, profile.processors / 2)) : 1;
+		profile.maxMergedSegmentMB = (int) clamp(memoryMB / 2, DEFAULT_MAX_MERGED_SEGMENT_MB, 5120);
+
+		// Share the node's disk bandwidth among the reducers writing snapshots to it
+		long diskMBPerSec = (long) (ssd ? SSD_MB_PER_SEC : SPINNING_DISK_MB_PER_SEC) * Math.max(1, disks);
+		profile.maxSnapshotBytesPerSec = Math.max(20, diskMBPerSec / Math.max(1, reducersPerNode)) + "mb";
+		return profile;
+	}
+
+	/**
+	 * Guess how many reducers run side by side from how many containers fit on a node manager
+	 *
+	 * @param job
+	 * @param containerMB
+	 * @return int
+	 */
+	private static int estimateReducersPerNode(JobConf job, long containerMB) {
+		long nodeMB = job.getLong(NODE_MEMORY_MB_CONFIG_KEY, 8192);
+		int reducers = (int) Math.max(1, nodeMB / Math.max(1, containerMB));
+		return Math.max(1, Math.min(reducers, job.getInt(NUM_REDUCERS_CONFIG_KEY, reducers)));
+	}
+
+	/**
+	 * Check the block device a path is mounted on for spinning media. Anything we can't figure out is assumed to spin.
+	 *
+	 * @param path
+	 * @return boolean
+	 */
+	public static boolean isRotational(String path) {
+		if(path == null) {
+			return true;
+		}
+		try {
+			// Find the device for the longest mount point containing the path
+			String canonicalPath = new File(path).getCanonicalPath();
+			String device = null;
+			int longestMount = -1;
+			List<String> mounts = FileUtils.readLines(new File("/proc/mounts"));
+			for(String mount : mounts) {
+				String[] fields = mount.split(" ");
+				if(fields.length > 1 && fields[0].startsWith("/dev/") && canonicalPath.startsWith(fields[1]) && fields[1].length() > longestMount) {
+					device = fields[0].substring("/dev/".length());
+					longestMount = fields[1].length();
+				}
+			}
+			if(device == null) {
+				return true;
+			}
+
+			// Partitions don't have a queue of their own, the disk they're on does
+			File block = new File("/sys/class/block/" + device).getCanonicalFile();
+			File rotational = new File(block, "queue/rotational");
+			if(!rotational.exists()) {
+				rotational = new File(block.getParentFile(), "queue/rotational");
+			}
+			if(!rotational.exists()) {
+				return true;
+			}
+			return !FileUtils.readFileToString(rotational).trim().equals("0");
+		} catch (IOException e) {
+			logger.warn("Unable to determine the disk type of " + path + ", assuming spinning disks", e);
+			return true;
+		}
+	}
+
+	private void applyOverrides(JobConf job) {
+		processors = job.getInt(ConfigParams.PROCESSORS.toString(), processors);
+		indexBufferSize = job.get(ConfigParams.INDEX_BUFFER_SIZE.toString(), indexBufferSize);
+		mergeThreads = job.getInt(ConfigParams.MERGE_THREADS.toString(), mergeThreads);
+		maxMergedSegmentMB = job.getInt(ConfigParams.MAX_MERGED_SEGMENT_MB.toString(), maxMergedSegmentMB);
+		maxSnapshotBytesPerSec = job.get(ConfigParams.MAX_SNAPSHOT_BYTES_PER_SEC.toString(), maxSnapshotBytesPerSec);
+	}
+
+	private static long clamp(long value, long min, long max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	public int getProcessors() {
+		return processors;
+	}
+
+	public String getIndexBufferSize() {
+		return indexBufferSize;
+	}
+
+	public int getMergeThreads() {
+		return mergeThreads;
+	}
+
+	public int getMaxMergedSegmentMB() {
+		return maxMergedSegmentMB;
+	}
+
+	public String getMaxSnapshotBytesPerSec() {
+		return maxSnapshotBytesPerSec;
+	}
+
+	@Override
+	public String toString() {
+		return "[processors=" + processors + ", indexBufferSize=" + indexBufferSize + ", mergeThreads=" + mergeThreads
+				+ ", maxMergedSegmentMB=" + maxMergedSegmentMB + ", maxSnapshotBytesPerSec=" + maxSnapshotBytesPerSec + "]";
+	}
+}
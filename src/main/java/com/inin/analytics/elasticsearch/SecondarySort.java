@@ -0,0 +1,121 @@
+package com.inin.analytics.elasticsearch;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Partitioner;
+
+/**
+ * Orders the docs within each shard before they're indexed. Docs that are indexed together land in the
+ * same segments, so indexing them in the order they're filtered & sorted on (EG by timestamp or org)
+ * compresses better and makes range queries on the restored cluster cheaper.
+ *
+ * With it enabled, BaseESMapper appends the value returned by getSortValue to the reducer key, making it
+ * [indexName]|[routing hash]|[sort value]. Keys are partitioned & grouped on the [indexName]|[routing hash]
+ * prefix, so a shard still arrives in a single reduce call, and sorted on the prefix followed by the sort
+ * value. Sort values are compared as bytes, so numbers need to be zero padded. ISO-8601 timestamps sort fine.
+ *
+ * Note: The whole map output gets sorted on the extra bytes, so keep sort values short.
+ *
+ */
+public class SecondarySort {
+
+	/**
+	 * Partition, group & sort map output on the shard part of the key
+	 *
+	 * @param job
+	 */
+	public static void configure(JobConf job) {
+		job.setBoolean(ConfigParams.SECONDARY_SORT_ENABLED.toString(), true);
+		job.setPartitionerClass(ShardPartitioner.class);
+		job.setOutputKeyComparatorClass(ShardSortComparator.class);
+		job.setOutputValueGroupingComparator(ShardGroupingComparator.class);
+	}
+
+	/**
+	 *
+	 * @param bytes
+	 * @param start
+	 * @param length
+	 * @return int The length of the [indexName]|[routing hash] prefix of a key
+	 */
+	public static int getShardKeyLength(byte[] bytes, int start, int length) {
+		int separators = 0;
+		for(int x = start; x < start + length; x++) {
+			if(bytes[x] == BaseESReducer.TUPLE_SEPARATOR && ++separators == 2) {
+				return x - start;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Hashes the same way as the default HashPartitioner does with keys that have no sort value, so enabling
+	 * secondary sort doesn't move shards between reducers
+	 */
+	public static class ShardPartitioner implements Partitioner<Text, Text> {
+		@Override
+		public void configure(JobConf job) {
+		}
+
+		@Override
+		public int getPartition(Text key, Text value, int numPartitions) {
+			int hash = WritableComparator.hashBytes(key.getBytes(), getShardKeyLength(key.getBytes(), 0, key.getLength()));
+			return (hash & Integer.MAX_VALUE) % numPartitions;
+		}
+	}
+
+	/**
+	 * Sorts on the shard prefix, then the sort value. Sorting on the raw key instead would interleave
+	 * shards whose routing hashes share a prefix (EG idx|12 & idx|123).
+	 */
+	public static class ShardSortComparator extends WritableComparator {
+		private boolean includeSortValue;
+
+		public ShardSortComparator() {
+			this(true);
+		}
+
+		protected ShardSortComparator(boolean includeSortValue) {
+			super(Text.class);
+			this.includeSortValue = includeSortValue;
+		}
+
+		@Override
+		public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			// Skip past the serialized Text's vint length
+			int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+			int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+			return compareKeys(b1, s1 + n1, l1 - n1, b2, s2 + n2, l2 - n2);
+		}
+
+		@Override
+		@SuppressWarnings("rawtypes")
+		public int compare(WritableComparable a, WritableComparable b) {
+			Text t1 = (Text) a;
+			Text t2 = (Text) b;
+			return compareKeys(t1.getBytes(), 0, t1.getLength(), t2.getBytes(), 0, t2.getLength());
+		}
+
+		private int compareKeys(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+			int shard1 = getShardKeyLength(b1, s1, l1);
+			int shard2 = getShardKeyLength(b2, s2, l2);
+			int result = compareBytes(b1, s1, shard1, b2, s2, shard2);
+			if(result != 0 || !includeSortValue) {
+				return result;
+			}
+			return compareBytes(b1, s1 + shard1, l1 - shard1, b2, s2 + shard2, l2 - shard2);
+		}
+	}
+
+	/**
+	 * Groups every sort value of a shard into the same reduce call
+	 */
+	public static class ShardGroupingComparator extends ShardSortComparator {
+		public ShardGroupingComparator() {
+			super(false);
+		}
+	}
+}
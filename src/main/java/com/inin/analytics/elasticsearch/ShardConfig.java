@@ -3,6 +3,8 @@ package com.inin.analytics.elasticsearch;
 import java.util.HashMap;
 import java.util.Map;
 
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+
 /**
  * While many ES clusters have a uniform number of shards per index, if your
  * indexing volume ebbs & flows it makes sense to vary the shard count from day
@@ -61,6 +63,18 @@ public class ShardConfig {
         return defaultShardsPerOrg;
     }
     
+    /**
+     * The shard # elasticsearch will route a routing value to, using the default djb hash 
+     * function the same way elasticsearch's PlainOperationRouting does.
+     * 
+     * @param index
+     * @param routing
+     * @return int
+     */
+    public int getShardForRouting(String index, String routing) {
+        return Math.abs(DjbHashFunction.DJB_HASH(routing) % getShardsForIndex(index).intValue());
+    }
+    
     
 
     @Override
@@ -0,0 +1,164 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs the flush/optimize/snapshot/transport half of a shard build on a background thread so the reducer
+ * can start indexing the next index|routing key while the previous one is being uploaded. Shards are
+ * processed one at a time in the order they were submitted since they share a snapshot repo and snapshot name. 
+ * 
+ * Each shard in flight holds onto its index data and snapshot on local disk, so the number of shards
+ * allowed to queue up behind the background thread is capped. Once the cap is hit submit() blocks until
+ * the oldest shard has been transported.
+ * 
+ */
+public class SnapshotPipeline {
+	private static transient Logger logger = LoggerFactory.getLogger(SnapshotPipeline.class);
+	
+	private ExecutorService executor;
+	private Semaphore shardsInFlight;
+	private Map<String, Future<Void>> pendingByIndex = new HashMap<>();
+	private List<Future<Void>> pending = new ArrayList<>();
+	private volatile Throwable failure;
+
+	/**
+	 * 
+	 * @param maxShardsInFlight Max number of indexed shards waiting on or being snapshotted & transported 
+	 */
+	public SnapshotPipeline(int maxShardsInFlight) {
+		Preconditions.checkArgument(maxShardsInFlight > 0, "maxShardsInFlight must be > 0");
+		shardsInFlight = new Semaphore(maxShardsInFlight);
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("es-snapshot-pipeline");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Queue up the snapshot & transport of an index which is done being indexed
+	 * 
+	 * @param index
+	 * @param work
+	 * @throws IOException if a previously submitted shard failed
+	 */
+	public void submit(String index, Callable<Void> work) throws IOException {
+		submit(Arrays.asList(index), work);
+	}
+	
+	/**
+	 * Queue up the snapshot & transport of a batch of indices which are done being indexed. The batch
+	 * counts as a single shard in flight.
+	 * 
+	 * @param indices
+	 * @param work
+	 * @throws IOException if a previously submitted shard failed
+	 */
+	public void submit(List<String> indices, final Callable<Void> work) throws IOException {
+		checkForFailure();
+		try {
+			shardsInFlight.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting for room in the snapshot pipeline", e);
+		}
+		
+		Future<Void> future = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					return work.call();
+				} catch (Throwable t) {
+					logger.error("Snapshot pipeline failed", t);
+					failure = t;
+					throw t;
+				} finally {
+					shardsInFlight.release();
+				}
+			}
+		});
+		for(String index : indices) {
+			pendingByIndex.put(index, future);
+		}
+		pending.add(future);
+		prune();
+	}
+	
+	/**
+	 * An index can only exist once in the embedded node. Before an index is re-created for another routing 
+	 * key, wait for the previous one to be snapshotted and deleted.
+	 * 
+	 * @param index
+	 * @throws IOException
+	 */
+	public void awaitIndex(String index) throws IOException {
+		Future<Void> future = pendingByIndex.remove(index);
+		if(future != null) {
+			await(future);
+		}
+		checkForFailure();
+	}
+
+	/**
+	 * Block until every submitted shard has been transported, then shut down the background thread
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			for(Future<Void> future : pending) {
+				await(future);
+			}
+		} finally {
+			executor.shutdown();
+			pending.clear();
+			pendingByIndex.clear();
+		}
+		checkForFailure();
+	}
+	
+	private void await(Future<Void> future) throws IOException {
+		try {
+			future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting on the snapshot pipeline", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Snapshot pipeline failed", e.getCause());
+		}
+	}
+	
+	private void checkForFailure() throws IOException {
+		if(failure != null) {
+			throw new IOException("Snapshot pipeline failed", failure);
+		}
+	}
+	
+	private void prune() {
+		for(int x = pending.size() - 1; x >= 0; x--) {
+			if(pending.get(x).isDone()) {
+				pending.remove(x);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.inin.analytics.elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Block on something finishing without burning a core, several reducers usually share a node. Waits give
+ * up after a timeout, show up in the task status through the Heartbeat while they're going, and the time
+ * spent is added to the TIME_SPENT_WAITING_MS counter.
+ *
+ */
+public class Waiter {
+	public static final long DEFAULT_TIMEOUT_MS = 60 * 30 * 1000;
+
+	// Conditions are polled starting fast, backing off to once a second
+	private static final long MIN_POLL_MS = 10;
+	private static final long MAX_POLL_MS = 1000;
+
+	private Heartbeat heartbeat;
+
+	/**
+	 * Something to poll when there's no future to block on
+	 */
+	public static abstract class Condition {
+		public abstract boolean isDone();
+
+		/**
+		 * @return int 0-100 if the condition can tell how far along it is, otherwise -1
+		 */
+		public int getPercent() {
+			return -1;
+		}
+	}
+
+	/**
+	 *
+	 * @param heartbeat Wait time is counted against its Reporter, if it has one
+	 */
+	public Waiter(Heartbeat heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+
+	/**
+	 * Block on a future
+	 *
+	 * @param future
+	 * @param what Describes the wait in the task status & errors
+	 * @param timeoutMS
+	 * @return T The future's result
+	 * @throws IOException If it failed, timed out, or we were interrupted
+	 */
+	public <T> T await(Future<T> future, String what, long timeoutMS) throws IOException {
+		long start = System.currentTimeMillis();
+		Heartbeat.Phase phase = heartbeat.start(what);
+		try {
+			return future.get(timeoutMS, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed " + what, e.getCause());
+		} catch (TimeoutException e) {
+			throw new IOException("Timed out after " + timeoutMS + "ms " + what, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted " + what, e);
+		} finally {
+			phase.close();
+			countWait(start);
+		}
+	}
+
+	/**
+	 * Block until a condition is met
+	 *
+	 * @param condition
+	 * @param what Describes the wait in the task status & errors
+	 * @param timeoutMS
+	 * @throws IOException If it timed out or we were interrupted
+	 */
+	public void await(Condition condition, String what, long timeoutMS) throws IOException {
+		long start = System.currentTimeMillis();
+		long pollMS = MIN_POLL_MS;
+		Heartbeat.Phase phase = heartbeat.start(what);
+		try {
+			while(!condition.isDone()) {
+				if(condition.getPercent() >= 0) {
+					phase.setPercent(condition.getPercent());
+				}
+				if(System.currentTimeMillis() - start > timeoutMS) {
+					throw new IOException("Timed out after " + timeoutMS + "ms " + what);
+				}
+				Thread.sleep(pollMS);
+				pollMS = Math.min(MAX_POLL_MS, pollMS * 2);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted " + what, e);
+		} finally {
+			phase.close();
+			countWait(start);
+		}
+	}
+
+	private void countWait(long start) {
+		Reporter reporter = heartbeat.getReporter();
+		if(reporter != null) {
+			reporter.incrCounter(BaseESReducer.JOB_COUNTER.TIME_SPENT_WAITING_MS, System.currentTimeMillis() - start);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.inin.analytics.elasticsearch.daemon;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.Reporter;
+
+import com.google.common.base.Charsets;
+import com.inin.analytics.elasticsearch.MergeStrategy;
+
+/**
+ * What reducers and the IndexingDaemon say to each other over the socket. A session is a series of shards, each one
+ * a BEGIN_SHARD, any number of DOCs and a COMMIT_SHARD. The begin is acked once the daemon has room for the shard,
+ * so docs don't pile up in the socket while it waits. Docs themselves stream without round trips, anything that
+ * went wrong indexing them is reported back in the reply to the commit.
+ *
+ */
+public class DaemonProtocol {
+	public static final byte BEGIN_SHARD = 1;
+	public static final byte DOC = 2;
+	public static final byte COMMIT_SHARD = 3;
+
+	public static final byte OK = 0;
+	public static final byte ERROR = 1;
+
+	private DaemonProtocol() {}
+
+	/**
+	 * DataOutput.writeUTF tops out at 64k, which index templates can outgrow
+	 *
+	 * @param out
+	 * @param value May be null
+	 * @throws IOException
+	 */
+	public static void writeString(DataOutput out, String value) throws IOException {
+		if(value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(Charsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, Charsets.UTF_8);
+	}
+
+	public static void writeMergeStrategy(DataOutput out, MergeStrategy mergeStrategy) throws IOException {
+		out.writeUTF(mergeStrategy.getMode().name());
+		out.writeInt(mergeStrategy.getMaxNumSegments());
+		out.writeInt(mergeStrategy.getSegmentCountThreshold());
+		out.writeFloat(mergeStrategy.getDeletedDocsRatioThreshold());
+		out.writeInt(mergeStrategy.getMergeThreads());
+	}
+
+	public static MergeStrategy readMergeStrategy(DataInput in) throws IOException {
+		return new MergeStrategy(MergeStrategy.Mode.valueOf(in.readUTF()), in.readInt(), in.readInt(), in.readFloat(), in.readInt());
+	}
+
+	public static void writeCounters(DataOutput out, Map<String, Long> counters) throws IOException {
+		out.writeInt(counters.size());
+		for(Map.Entry<String, Long> counter : counters.entrySet()) {
+			out.writeUTF(counter.getKey());
+			out.writeLong(counter.getValue());
+		}
+	}
+
+	public static Map<String, Long> readCounters(DataInput in) throws IOException {
+		Map<String, Long> counters = new LinkedHashMap<>();
+		int size = in.readInt();
+		for(int x = 0; x < size; x++) {
+			counters.put(in.readUTF(), in.readLong());
+		}
+		return counters;
+	}
+
+	/**
+	 * Collects the counters the indexers bump while building a shard in the daemon, so they can be handed back
+	 * to the reducer the shard belongs to
+	 *
+	 */
+	public static class CounterRelay implements Reporter {
+		private Map<String, Long> counters = new LinkedHashMap<>();
+
+		@Override
+		public synchronized void incrCounter(Enum<?> key, long amount) {
+			Long count = counters.get(key.name());
+			counters.put(key.name(), count == null ? amount : count + amount);
+		}
+
+		/**
+		 *
+		 * @return Map<String, Long> Counter name to how much it went up since the last drain
+		 */
+		public synchronized Map<String, Long> drain() {
+			Map<String, Long> drained = counters;
+			counters = new LinkedHashMap<>();
+			return drained;
+		}
+
+		@Override
+		public void incrCounter(String group, String counter, long amount) {
+		}
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return null;
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return null;
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public InputSplit getInputSplit() throws UnsupportedOperationException {
+			throw new UnsupportedOperationException("The indexing daemon doesn't read input splits");
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,509 @@
+package com.inin.analytics.elasticsearch.daemon;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inin.analytics.elasticsearch.BaseESReducer;
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.ESEmbededContainer;
+import com.inin.analytics.elasticsearch.Heartbeat;
+import com.inin.analytics.elasticsearch.LocalDirSelector;
+import com.inin.analytics.elasticsearch.MergeStrategy;
+import com.inin.analytics.elasticsearch.ResourceProfile;
+import com.inin.analytics.elasticsearch.Waiter;
+import com.inin.analytics.elasticsearch.indexer.BulkDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+import com.inin.analytics.elasticsearch.transport.BaseTransport;
+import com.inin.analytics.elasticsearch.transport.SnapshotTransportStrategy;
+
+/**
+ * One long lived embedded node per machine that every reducer on it streams docs into (see INDEXING_DAEMON_PORT),
+ * rather than each reducer starting its own. Node startup is paid once, there's one heap's worth of ES overhead, and
+ * a single merge scheduler & indexing buffer are shared by all the shards being built on the machine.
+ *
+ * Limits are global: at most maxActiveShards shards index at once, an index name exists once in the node
+ * so reducers building the same index take turns, and only one snapshot is taken at a time. Each shard is
+ * snapshotted into a repo of its own under the snapshot working location, so uploads overlap.
+ *
+ */
+public class IndexingDaemon implements Closeable {
+	private static transient Logger logger = LoggerFactory.getLogger(IndexingDaemon.class);
+
+	// Prefix of the per shard snapshot repos
+	public static final String SNAPSHOT_REPO_NAME = "indexing-daemon";
+
+	private ESEmbededContainer esEmbededContainer;
+	private String snapshotWorkingLocation;
+	private int port;
+	private Semaphore activeShards;
+	private Set<String> activeIndices = new HashSet<>();
+	private Object snapshotLock = new Object();
+	private AtomicLong snapshotRepos = new AtomicLong();
+	private Map<String, String> templates = new HashMap<>();
+	private Heartbeat heartbeat = new Heartbeat(null);
+
+	private ServerSocket serverSocket;
+	private ExecutorService sessions;
+
+	/**
+	 *
+	 * @param esEmbededContainer Its path.repo must be snapshotWorkingLocation
+	 * @param snapshotWorkingLocation Ends in a slash
+	 * @param port
+	 * @param maxActiveShards
+	 */
+	public IndexingDaemon(ESEmbededContainer esEmbededContainer, String snapshotWorkingLocation, int port, int maxActiveShards) {
+		this.esEmbededContainer = esEmbededContainer;
+		this.snapshotWorkingLocation = snapshotWorkingLocation;
+		this.port = port;
+		this.activeShards = new Semaphore(maxActiveShards, true);
+	}
+
+	/**
+	 * Start accepting reducers in the background
+	 *
+	 * @throws IOException
+	 */
+	public void start() throws IOException {
+		serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		sessions = Executors.newCachedThreadPool(new ThreadFactory() {
+			private AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "es-indexing-daemon-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sessions.submit(new Runnable() {
+			@Override
+			public void run() {
+				while(!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						sessions.submit(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						});
+					} catch (IOException e) {
+						if(!serverSocket.isClosed()) {
+							logger.error("Failed to accept a reducer connection", e);
+						}
+					}
+				}
+			}
+		});
+		logger.info("Indexing daemon listening on port " + port);
+	}
+
+	/**
+	 * Build shards for a reducer until it disconnects
+	 *
+	 * @param socket
+	 */
+	private void serve(Socket socket) {
+		Shard shard = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while(true) {
+				byte command;
+				try {
+					command = in.readByte();
+				} catch (EOFException e) {
+					return;
+				}
+
+				switch(command) {
+				case DaemonProtocol.BEGIN_SHARD:
+					shard = new Shard(in.readUTF(), DaemonProtocol.readString(in), in.readInt(), DaemonProtocol.readString(in), DaemonProtocol.readString(in));
+					shard.begin(socket, in);
+					// Only now are we ready for its docs
+					out.writeByte(shard.failure == null ? DaemonProtocol.OK : DaemonProtocol.ERROR);
+					if(shard.failure != null) {
+						DaemonProtocol.writeString(out, shard.failure.toString());
+						shard.abort();
+						shard = null;
+					}
+					out.flush();
+					break;
+				case DaemonProtocol.DOC:
+					if(shard == null) {
+						// Docs for a shard that failed to start, the reducer is out of step so drop it
+						out.writeByte(DaemonProtocol.ERROR);
+						DaemonProtocol.writeString(out, "Got a doc with no shard started");
+						out.flush();
+						return;
+					}
+					String indexType = in.readUTF();
+					String docId = DaemonProtocol.readString(in);
+					byte[] source = new byte[in.readInt()];
+					in.readFully(source);
+					shard.index(indexType, docId, source);
+					break;
+				case DaemonProtocol.COMMIT_SHARD:
+					if(shard == null) {
+						out.writeByte(DaemonProtocol.ERROR);
+						DaemonProtocol.writeString(out, "Got a commit with no shard started");
+						out.flush();
+						return;
+					}
+					String destination = in.readUTF();
+					int shardNumber = in.readInt();
+					int totalShards = in.readInt();
+					MergeStrategy mergeStrategy = DaemonProtocol.readMergeStrategy(in);
+					String attemptId = DaemonProtocol.readString(in);
+					boolean stagingEnabled = in.readBoolean();
+
+					Throwable failure = shard.commit(destination, shardNumber, totalShards, mergeStrategy, attemptId, stagingEnabled);
+					out.writeByte(failure == null ? DaemonProtocol.OK : DaemonProtocol.ERROR);
+					DaemonProtocol.writeCounters(out, shard.counters.drain());
+					if(failure != null) {
+						DaemonProtocol.writeString(out, failure.toString());
+					}
+					out.flush();
+					shard = null;
+					break;
+				default:
+					throw new IOException("Unknown command " + command);
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("Lost a reducer connection", e);
+		} finally {
+			if(shard != null) {
+				// The reducer went away mid shard, it'll be rebuilt by the retry
+				shard.abort();
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				logger.warn("Failed to close a reducer connection", e);
+			}
+		}
+	}
+
+	/**
+	 * A single index|routing key being built on behalf of a reducer. Failures to start it are sent back in the ack,
+	 * later ones are held onto until the commit, so the reducer can keep streaming & hear about them in the reply.
+	 */
+	private class Shard {
+		private String index;
+		private String routing;
+		private int numShards;
+		private String templateName;
+		private String templateSource;
+		private DaemonProtocol.CounterRelay counters = new DaemonProtocol.CounterRelay();
+
+		private boolean locked = false;
+		private DocumentIndexer indexer;
+		private Throwable failure;
+
+		Shard(String index, String routing, int numShards, String templateName, String templateSource) {
+			this.index = index;
+			this.routing = routing;
+			this.numShards = numShards;
+			this.templateName = templateName;
+			this.templateSource = templateSource;
+		}
+
+		/**
+		 * Wait for a turn to build the shard, at most Waiter.DEFAULT_TIMEOUT_MS, and create its index if the reducer is still there
+		 *
+		 * @param socket
+		 * @param in
+		 */
+		void begin(Socket socket, DataInputStream in) {
+			try {
+				long deadline = System.currentTimeMillis() + Waiter.DEFAULT_TIMEOUT_MS;
+				if(!lockIndex(index, deadline)) {
+					failure = new IOException("Timed out waiting on another reducer building " + index);
+					return;
+				}
+				try {
+					if(!activeShards.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+						unlockIndex(index);
+						failure = new IOException("Timed out waiting on a free slot to build " + index);
+						return;
+					}
+				} catch (InterruptedException e) {
+					unlockIndex(index);
+					throw e;
+				}
+				locked = true;
+
+				if(!isConnected(socket, in)) {
+					failure = new IOException("Reducer went away while " + index + BaseESReducer.TUPLE_SEPARATOR + routing + " waited its turn");
+					return;
+				}
+				putTemplate(templateName, templateSource);
+				esEmbededContainer.getNode().client().admin().indices().prepareCreate(index).setSettings(settingsBuilder()
+						.put("index.number_of_replicas", 0)
+						.put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, numShards)).get();
+				indexer = new BulkDocumentIndexer(esEmbededContainer.getNode().client(), index, routing, counters,
+						BaseESReducer.DEFAULT_BULK_ACTIONS, BaseESReducer.DEFAULT_BULK_SIZE_MB, BaseESReducer.DEFAULT_BULK_CONCURRENT_REQUESTS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = e;
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+			}
+		}
+
+		void index(String indexType, String docId, byte[] source) {
+			if(failure != null) {
+				// Drain the rest of the shard's docs to stay in step with the reducer
+				return;
+			}
+			try {
+				indexer.index(indexType, docId, new BytesArray(source));
+			} catch (IOException | RuntimeException e) {
+				failure = e;
+			}
+		}
+
+		/**
+		 *
+		 * @return Throwable null if the shard made it to the destination
+		 */
+		Throwable commit(String destination, int shardNumber, int totalShards, MergeStrategy mergeStrategy, String attemptId, boolean stagingEnabled) {
+			try {
+				if(failure != null) {
+					return failure;
+				}
+				indexer.close();
+				indexer = null;
+				esEmbededContainer.flushAndMerge(index, mergeStrategy, Waiter.DEFAULT_TIMEOUT_MS, counters);
+
+				// The snapshot still has to be named SNAPSHOT_NAME to stitch into the destination, so it gets a repo of its own
+				String repoName = SNAPSHOT_REPO_NAME + "-" + snapshotRepos.incrementAndGet();
+				String repoLocation = snapshotWorkingLocation + repoName + BaseESReducer.DIR_SEPARATOR;
+				esEmbededContainer.createSnapshotRepo(repoName, repoLocation);
+				try {
+					List<String> indices = Arrays.asList(index);
+					// The node only takes one snapshot at a time
+					synchronized(snapshotLock) {
+						esEmbededContainer.createSnapshot(indices, BaseESReducer.SNAPSHOT_NAME, repoName, Waiter.DEFAULT_TIMEOUT_MS, counters);
+					}
+					deleteIndex();
+
+					long start = System.currentTimeMillis();
+					BaseTransport transport = SnapshotTransportStrategy.get(repoLocation, destination, heartbeat);
+					transport.setAttemptId(attemptId);
+					transport.setStagingEnabled(stagingEnabled);
+					if(shardNumber < 0) {
+						transport.execute(BaseESReducer.SNAPSHOT_NAME, indices);
+					} else {
+						transport.execute(BaseESReducer.SNAPSHOT_NAME, index, shardNumber, totalShards);
+					}
+					counters.incrCounter(JOB_COUNTER.TIME_SPENT_TRANSPORTING_SNAPSHOT_MS, System.currentTimeMillis() - start);
+				} finally {
+					// Dropping the whole repo takes the snapshot with it, no need to wait on the lock to delete it
+					esEmbededContainer.deleteSnapshotRepo(repoName);
+					FileUtils.deleteQuietly(new File(repoLocation));
+				}
+				return null;
+			} catch (IOException | RuntimeException e) {
+				logger.error("Failed to build " + index + BaseESReducer.TUPLE_SEPARATOR + routing, e);
+				return e;
+			} finally {
+				abort();
+			}
+		}
+
+		/**
+		 * Clean up whatever's left of the shard & let the next one in
+		 */
+		void abort() {
+			if(!locked) {
+				return;
+			}
+			locked = false;
+			try {
+				if(indexer != null) {
+					indexer.close();
+				}
+			} catch (IOException | RuntimeException e) {
+				logger.warn("Failed to close the indexer for " + index, e);
+			}
+			try {
+				deleteIndex();
+			} catch (RuntimeException e) {
+				logger.warn("Failed to delete " + index, e);
+			} finally {
+				activeShards.release();
+				unlockIndex(index);
+			}
+		}
+
+		private void deleteIndex() {
+			if(esEmbededContainer.getNode().client().admin().indices().prepareExists(index).get().isExists()) {
+				esEmbededContainer.getNode().client().admin().indices().delete(new DeleteIndexRequest(index)).actionGet();
+			}
+		}
+	}
+
+	/**
+	 * An index can only exist once in the node, wait for any other reducer building it to finish
+	 *
+	 * @param index
+	 * @param deadline Give up at this time in ms
+	 * @return boolean false if the deadline passed first
+	 * @throws InterruptedException
+	 */
+	private boolean lockIndex(String index, long deadline) throws InterruptedException {
+		synchronized(activeIndices) {
+			while(!activeIndices.add(index)) {
+				long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0) {
+					return false;
+				}
+				activeIndices.wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	private void unlockIndex(String index) {
+		synchronized(activeIndices) {
+			activeIndices.remove(index);
+			activeIndices.notifyAll();
+		}
+	}
+
+	/**
+	 * A reducer sends nothing until its shard is acked, so anything but a read timeout means it hung up
+	 *
+	 * @param socket
+	 * @param in
+	 * @return boolean
+	 * @throws IOException
+	 */
+	private static boolean isConnected(Socket socket, DataInputStream in) throws IOException {
+		if(socket.isClosed() || socket.isInputShutdown()) {
+			return false;
+		}
+		int timeout = socket.getSoTimeout();
+		socket.setSoTimeout(1);
+		in.mark(1);
+		try {
+			if(in.read() < 0) {
+				return false;
+			}
+			in.reset();
+			return true;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} finally {
+			socket.setSoTimeout(timeout);
+		}
+	}
+
+	/**
+	 * Templates are node wide, only put one when a reducer brings a new or changed one
+	 *
+	 * @param templateName
+	 * @param templateSource
+	 */
+	private synchronized void putTemplate(String templateName, String templateSource) {
+		if(templateName == null || templateSource == null || templateSource.equals(templates.get(templateName))) {
+			return;
+		}
+		esEmbededContainer.getNode().client().admin().indices().preparePutTemplate(templateName).setSource(templateSource).get();
+		templates.put(templateName, templateSource);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(serverSocket != null) {
+			serverSocket.close();
+		}
+		if(sessions != null) {
+			sessions.shutdownNow();
+		}
+		esEmbededContainer.close();
+	}
+
+	/**
+	 * Run a daemon in the foreground, EG from a bootstrap action on each node
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length != 4) {
+			System.err.println("Invalid # arguments. EG: indexingDaemon [port] [elasticsearch working data locations, comma separated] [snapshot working directory] [max shards indexing at once]");
+			System.exit(-1);
+		}
+		int port = Integer.parseInt(args[0]);
+		List<String> esWorkingDirs = LocalDirSelector.parse(args[1]);
+		String snapshotWorkingLocation = StringUtils.stripEnd(args[2], "/") + "/";
+		int maxActiveShards = Integer.parseInt(args[3]);
+
+		// Size the node for the whole machine rather than a single reducer's container
+		long heapMB = Runtime.getRuntime().maxMemory() / 1024 / 1024;
+		ResourceProfile resourceProfile = ResourceProfile.autoTune(Runtime.getRuntime().availableProcessors(), heapMB, heapMB,
+				esWorkingDirs.size(), !ResourceProfile.isRotational(esWorkingDirs.get(0)), 1);
+		logger.info("Indexing daemon resource profile " + resourceProfile);
+
+		ESEmbededContainer esEmbededContainer = new ESEmbededContainer.Builder()
+		.withNodeName("embededESIndexingDaemon" + port)
+		.withWorkingDirs(esWorkingDirs)
+		.withClusterName("indexingDaemon:" + port)
+		.withSnapshotWorkingLocation(snapshotWorkingLocation)
+		.withResourceProfile(resourceProfile)
+		.build();
+
+		final IndexingDaemon daemon = new IndexingDaemon(esEmbededContainer, snapshotWorkingLocation, port, maxActiveShards);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					daemon.close();
+				} catch (IOException e) {
+					logger.error("Failed to shut down the indexing daemon", e);
+				}
+			}
+		});
+		daemon.start();
+
+		// Serve until killed
+		Thread.currentThread().join();
+	}
+}
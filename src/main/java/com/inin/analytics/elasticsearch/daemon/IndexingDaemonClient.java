@@ -0,0 +1,155 @@
+package com.inin.analytics.elasticsearch.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.google.common.base.Preconditions;
+import com.inin.analytics.elasticsearch.MergeStrategy;
+import com.inin.analytics.elasticsearch.Waiter;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+
+/**
+ * A reducer's connection to the IndexingDaemon on its node. Builds one shard at a time: beginShard, index
+ * its docs through the returned indexer, then commitShard.
+ *
+ */
+public class IndexingDaemonClient implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private long timeoutMS;
+	private Socket socket;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private boolean shardOpen = false;
+
+	/**
+	 *
+	 * @param port The daemon listens on the loopback interface only
+	 * @throws IOException
+	 */
+	public IndexingDaemonClient(int port) throws IOException {
+		this(port, Waiter.DEFAULT_TIMEOUT_MS);
+	}
+
+	/**
+	 *
+	 * @param port The daemon listens on the loopback interface only
+	 * @param timeoutMS How long to wait on the daemon to start or to commit a shard
+	 * @throws IOException
+	 */
+	public IndexingDaemonClient(int port, long timeoutMS) throws IOException {
+		this.timeoutMS = timeoutMS;
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeoutMS));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+	}
+
+	/**
+	 * Have the daemon create an index to build a shard in. Blocks while the daemon waits for room or for another
+	 * reducer to be done with the same index, so wrap it in a Heartbeat phase.
+	 *
+	 * @param index
+	 * @param routing
+	 * @param numShards How many shards to create the index with
+	 * @param templateName May be null
+	 * @param templateSource May be null
+	 * @return DocumentIndexer Streams docs to the daemon. Closing it flushes the stream, it doesn't wait on indexing.
+	 * @throws IOException If the daemon couldn't create the index or didn't get to it within the timeout
+	 */
+	public DocumentIndexer beginShard(String index, String routing, int numShards, String templateName, String templateSource) throws IOException {
+		Preconditions.checkState(!shardOpen, "The previous shard was never committed");
+		out.writeByte(DaemonProtocol.BEGIN_SHARD);
+		out.writeUTF(index);
+		DaemonProtocol.writeString(out, routing);
+		out.writeInt(numShards);
+		DaemonProtocol.writeString(out, templateName);
+		DaemonProtocol.writeString(out, templateSource);
+		out.flush();
+
+		if(awaitReply("start " + index + "|" + routing) != DaemonProtocol.OK) {
+			throw new IOException("Indexing daemon failed to start the shard: " + DaemonProtocol.readString(in));
+		}
+		shardOpen = true;
+
+		return new DocumentIndexer() {
+			@Override
+			public void index(String indexType, String docId, BytesReference source) throws IOException {
+				out.writeByte(DaemonProtocol.DOC);
+				out.writeUTF(indexType);
+				DaemonProtocol.writeString(out, docId);
+				out.writeInt(source.length());
+				source.writeTo(out);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+	}
+
+	/**
+	 * Block while the daemon finishes indexing, merges, snapshots & transports the shard
+	 *
+	 * @param snapshotFinalDestination
+	 * @param shardNumber Where to place a single shard build, -1 if the index was built with all its shards
+	 * @param totalShards How many shards the index ends up with
+	 * @param mergeStrategy
+	 * @param attemptId Recorded in the shard's commit marker, may be null
+	 * @param stagingEnabled
+	 * @return Map<String, Long> How much each of the reducer's JOB_COUNTERs went up while building the shard
+	 * @throws IOException If the daemon failed to build the shard or didn't finish within the timeout
+	 */
+	public Map<String, Long> commitShard(String snapshotFinalDestination, int shardNumber, int totalShards, MergeStrategy mergeStrategy, String attemptId, boolean stagingEnabled) throws IOException {
+		Preconditions.checkState(shardOpen, "No shard to commit");
+		shardOpen = false;
+		out.writeByte(DaemonProtocol.COMMIT_SHARD);
+		out.writeUTF(snapshotFinalDestination);
+		out.writeInt(shardNumber);
+		out.writeInt(totalShards);
+		DaemonProtocol.writeMergeStrategy(out, mergeStrategy);
+		DaemonProtocol.writeString(out, attemptId);
+		out.writeBoolean(stagingEnabled);
+		out.flush();
+
+		byte status = awaitReply("commit the shard");
+		Map<String, Long> counters = DaemonProtocol.readCounters(in);
+		if(status != DaemonProtocol.OK) {
+			throw new IOException("Indexing daemon failed to build the shard: " + DaemonProtocol.readString(in));
+		}
+		return counters;
+	}
+
+	/**
+	 * The socket's read timeout bounds the wait, a stuck daemon fails the reducer rather than hanging it
+	 *
+	 * @param what
+	 * @return byte The reply's status
+	 * @throws IOException
+	 */
+	private byte awaitReply(String what) throws IOException {
+		try {
+			return in.readByte();
+		} catch (SocketTimeoutException e) {
+			// Whatever the daemon says from here on is out of step with us
+			socket.close();
+			throw new IOException("Timed out after " + timeoutMS + "ms waiting on the indexing daemon to " + what, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		socket.close();
+	}
+}
@@ -5,6 +5,7 @@ import java.util.TimeZone;
 import org.apache.hadoop.util.ProgramDriver;
 import org.joda.time.DateTimeZone;
 
+import com.inin.analytics.elasticsearch.daemon.IndexingDaemon;
 import com.inin.analytics.elasticsearch.example.ExampleIndexingJob;
 import com.inin.analytics.elasticsearch.example.ExampleJobPrep;
 import com.inin.analytics.elasticsearch.example.GenerateData;
@@ -16,6 +17,7 @@ public class Driver extends ProgramDriver {
             addClass("generateExampleData", GenerateData.class, "Example job for how to build documents for elasticsearch indexing");
             addClass("examplePrep", ExampleJobPrep.class, "Example job for how to build documents for elasticsearch indexing");
             addClass("esIndexRebuildExample", ExampleIndexingJob.class, "Example job for how to rebuild elasticsearch indexes");
+            addClass("indexingDaemon", IndexingDaemon.class, "Shared embedded elasticsearch node that the reducers on a machine stream docs into");
     }
 
     public static void main(String[] args) throws Throwable {   	
@@ -46,6 +46,9 @@ public class ExampleIndexingJob implements Tool {
 		conf.set(ConfigParams.ES_WORKING_DIR.toString(), esWorkingDir);
 		conf.set(ConfigParams.NUM_SHARDS_PER_INDEX.toString(), numShardsPerIndex.toString());
 		conf.set(ConfigParams.NUM_SHARDS_PER_ORGANIZATION.toString(), numShardsPerOrganization.toString());
+		conf.setBoolean(ConfigParams.BULK_INDEXING_ENABLED.toString(), true);
+		// Attempts stage their shards & the post processor promotes them, so a speculative or failed attempt can't clobber a shard
+		conf.setBoolean(ConfigParams.ATOMIC_SHARD_COMMIT_ENABLED.toString(), true);
 
 		JobConf job = new JobConf(conf, ExampleIndexingJob.class);
 		job.setJobName("Elastic Search Offline Index Generator");
@@ -56,7 +59,9 @@ public class ExampleIndexingJob implements Tool {
 		job.setMapOutputValueClass(Text.class);
 		job.setMapOutputKeyClass(Text.class);
 		job.setNumReduceTasks(numReducers);
-		job.setSpeculativeExecution(false);
+		// Safe with ATOMIC_SHARD_COMMIT_ENABLED, on every destination
+		job.setMapSpeculativeExecution(false);
+		job.setReduceSpeculativeExecution(true);
 
 		Path jobOutput = new Path(manifestLocation + "/raw/");
 		Path manifestFile = new Path(manifestLocation + "manifest");
@@ -0,0 +1,419 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.engine.SegmentsStats;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+
+/**
+ * Bulk indexer whose bulk size and concurrency are picked at runtime by a BulkSizeController rather than
+ * fixed up front. Bulk latency, rejections and GC time are reported back as bulks complete, and heap usage is
+ * sampled before each bulk goes out. Index buffer usage takes a stats request, so it's only refreshed every
+ * INDEX_BUFFER_SAMPLE_INTERVAL_MS. Docs the node rejected are retried rather than dropped,
+ * ahead of any doc added since they were first sent, so a retried copy never lands on top of a newer one.
+ *
+ * The same note about concurrent requests as BulkDocumentIndexer applies, the controller will never go
+ * above the configured number of concurrent requests.
+ *
+ */
+public class AdaptiveBulkDocumentIndexer implements DocumentIndexer {
+	private static transient Logger logger = LoggerFactory.getLogger(AdaptiveBulkDocumentIndexer.class);
+
+	private static final int MAX_LOGGED_FAILURES = 10;
+	private static final long DEFAULT_CLOSE_TIMEOUT_MS = 60 * 30 * 1000;
+	public static final long INDEX_BUFFER_SAMPLE_INTERVAL_MS = 5000;
+	
+	// Rounds of resending what the node rejected once everything else is in, each one waits a little longer than the last
+	public static final int MAX_CLOSE_RETRIES = 10;
+	public static final long CLOSE_RETRY_PAUSE_MS = 50;
+
+	private Client client;
+	private String indexName;
+	private String routing;
+	private Reporter reporter;
+	private BulkSizeController controller;
+	private DuplicatePolicy duplicatePolicy;
+	private BulkRequest bulkRequest = new BulkRequest();
+
+	// Guarded by this
+	private int inFlight = 0;
+	private List<IndexRequest> rejected = new ArrayList<>();
+	private long lastCompletion = System.currentTimeMillis();
+
+	private double indexBufferUsedRatio = 0;
+	private long lastIndexBufferSample = 0;
+	
+	// Last bulk size & concurrency logged, they're logged as they change
+	private int loggedBulkActions = 0;
+	private int loggedConcurrentRequests = 0;
+
+	private volatile Throwable bulkFailure;
+	private DocumentFailureHandler failureHandler;
+	private int loggedFailures = 0;
+
+	/**
+	 *
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param controller Shared across indexers, decides bulk size & concurrency
+	 */
+	public AdaptiveBulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, BulkSizeController controller) {
+		this(client, indexName, routing, reporter, controller, null);
+	}
+
+	/**
+	 *
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param controller Shared across indexers, decides bulk size & concurrency
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 */
+	public AdaptiveBulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, BulkSizeController controller, DuplicatePolicy duplicatePolicy) {
+		this(client, indexName, routing, reporter, controller, duplicatePolicy, null);
+	}
+
+	/**
+	 *
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param controller Shared across indexers, decides bulk size & concurrency
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 * @param failureHandler Gets the docs that fail to index, null to fail the reducer
+	 */
+	public AdaptiveBulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, BulkSizeController controller, DuplicatePolicy duplicatePolicy, DocumentFailureHandler failureHandler) {
+		this.duplicatePolicy = duplicatePolicy;
+		this.failureHandler = failureHandler;
+		this.client = client;
+		this.indexName = indexName;
+		this.routing = routing;
+		this.reporter = reporter;
+		this.controller = controller;
+	}
+
+	@Override
+	public void index(String indexType, String docId, BytesReference source) throws IOException {
+		checkForFailure();
+		bulkRequest.add(new IndexRequest(indexName, indexType, docId).routing(routing).source(source.copyBytesArray()).create(duplicatePolicy != null));
+		if(bulkRequest.numberOfActions() >= controller.getBulkActions() || bulkRequest.estimatedSizeInBytes() >= controller.getBulkBytes()) {
+			send();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		long start = System.currentTimeMillis();
+		if(bulkRequest.numberOfActions() > 0) {
+			send();
+		}
+		int retries = 0;
+		while(true) {
+			int rejectedDocs;
+			synchronized(this) {
+				while(inFlight > 0) {
+					waitForBulk(start);
+				}
+				rejectedDocs = rejected.size();
+			}
+			if(rejectedDocs == 0) {
+				break;
+			}
+			checkForFailure();
+			if(++retries > MAX_CLOSE_RETRIES || System.currentTimeMillis() - start > DEFAULT_CLOSE_TIMEOUT_MS) {
+				throw new IOException("The node kept rejecting " + rejectedDocs + " docs for index " + indexName + " routing " + routing + ", gave up after " + (retries - 1) + " retries");
+			}
+			pause(retries);
+			// Everything else is in, so the retries go out on their own
+			send();
+		}
+		checkForFailure();
+	}
+	
+	private void pause(int retries) throws IOException {
+		try {
+			Thread.sleep(CLOSE_RETRY_PAUSE_MS * retries);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted retrying rejected docs for index " + indexName + " routing " + routing, e);
+		}
+	}
+
+	/**
+	 * Ship the bulk being built once there's room for another one in flight
+	 *
+	 * @throws IOException
+	 */
+	private void send() throws IOException {
+		sampleMemory();
+
+		long start = System.currentTimeMillis();
+		synchronized(this) {
+			while(inFlight >= controller.getConcurrentRequests()) {
+				waitForBulk(start);
+			}
+			inFlight++;
+		}
+		checkForFailure();
+
+		// Only once the slot's ours, so the bulk we waited on has had its say about what to retry
+		final BulkRequest request = withRejectedFirst(bulkRequest);
+		bulkRequest = new BulkRequest();
+		client.bulk(request, new Listener(request, System.currentTimeMillis(), getGCTimeMs()));
+	}
+
+	private void waitForBulk(long start) throws IOException {
+		if(System.currentTimeMillis() - start > DEFAULT_CLOSE_TIMEOUT_MS) {
+			throw new IOException("Timed out waiting on bulk requests for index " + indexName + " routing " + routing);
+		}
+		try {
+			wait(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting on bulk requests for index " + indexName + " routing " + routing, e);
+		}
+	}
+
+	/**
+	 * Put docs the node turned away ahead of the docs added since. Bulk items are applied in order, so a retry
+	 * queued behind them would overwrite a newer copy of the same doc.
+	 *
+	 * @param pending
+	 * @return BulkRequest
+	 */
+	private BulkRequest withRejectedFirst(BulkRequest pending) {
+		List<IndexRequest> retries;
+		synchronized(this) {
+			if(rejected.isEmpty()) {
+				return pending;
+			}
+			retries = rejected;
+			rejected = new ArrayList<>();
+		}
+		BulkRequest request = new BulkRequest();
+		for(IndexRequest retry : retries) {
+			request.add(retry);
+		}
+		for(IndexRequest doc : indexRequests(pending)) {
+			request.add(doc);
+		}
+		return request;
+	}
+
+	/**
+	 * Back off before building up a bulk if the heap or the index buffer is close to full
+	 */
+	private void sampleMemory() {
+		double heapUsedRatio = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			// Usage right after the last collection, otherwise garbage that's about to be collected looks like pressure
+			MemoryUsage usage = pool.getCollectionUsage();
+			if(pool.getType() == MemoryType.HEAP && usage != null && usage.getMax() > 0) {
+				heapUsedRatio = Math.max(heapUsedRatio, (double) usage.getUsed() / usage.getMax());
+			}
+		}
+
+		long now = System.currentTimeMillis();
+		if(now - lastIndexBufferSample >= INDEX_BUFFER_SAMPLE_INTERVAL_MS) {
+			SegmentsStats segments = client.admin().indices().prepareStats(indexName).clear().setSegments(true).get().getTotal().getSegments();
+			indexBufferUsedRatio = 0;
+			if(segments != null && segments.getIndexWriterMaxMemoryInBytes() > 0) {
+				indexBufferUsedRatio = (double) segments.getIndexWriterMemoryInBytes() / segments.getIndexWriterMaxMemoryInBytes();
+			}
+			lastIndexBufferSample = now;
+		}
+
+		if(controller.onMemorySample(heapUsedRatio, indexBufferUsedRatio)) {
+			logger.info("Backing off bulk size to {} docs for index {}, heap {} index buffer {} used", controller.getBulkActions(), indexName, heapUsedRatio, indexBufferUsedRatio);
+			reportBackoff();
+		}
+	}
+
+	private static long getGCTimeMs() {
+		long gcTimeMs = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcTimeMs += Math.max(0, gc.getCollectionTime());
+		}
+		return gcTimeMs;
+	}
+
+	private void reportBackoff() {
+		reporter.incrCounter(JOB_COUNTER.BULK_BACKOFFS, 1);
+	}
+
+	/**
+	 * Hadoop sums counters across tasks, so the current bulk size & concurrency are logged rather than counted
+	 */
+	private synchronized void reportBulkSize() {
+		int bulkActions = controller.getBulkActions();
+		int concurrentRequests = controller.getConcurrentRequests();
+		if(bulkActions != loggedBulkActions || concurrentRequests != loggedConcurrentRequests) {
+			logger.info("Bulk size for index {} is now {} docs with {} concurrent requests", indexName, bulkActions, concurrentRequests);
+			loggedBulkActions = bulkActions;
+			loggedConcurrentRequests = concurrentRequests;
+		}
+	}
+
+	private void checkForFailure() throws IOException {
+		if(bulkFailure != null) {
+			throw new IOException("Bulk request failed for index " + indexName + " routing " + routing, bulkFailure);
+		}
+	}
+
+	private void handleFailure(BulkItemResponse item, IndexRequest request) {
+		if(failureHandler == null) {
+			// Same as a single index request would, a bad doc fails the reducer
+			if(bulkFailure == null) {
+				bulkFailure = new IOException("Failed to index doc " + item.getType() + "/" + item.getId() + " into " + item.getIndex() + ": " + item.getFailureMessage());
+			}
+			return;
+		}
+		try {
+			failureHandler.onFailure(item.getType(), item.getId(), request.source(), item.getFailureMessage());
+		} catch (IOException e) {
+			bulkFailure = e;
+		}
+	}
+
+	private synchronized void logFailure(BulkItemResponse item) {
+		if(loggedFailures < MAX_LOGGED_FAILURES) {
+			logger.error("Failed to index doc " + item.getType() + "/" + item.getId() + " into " + item.getIndex() + ": " + item.getFailureMessage());
+			loggedFailures++;
+		}
+	}
+
+	/**
+	 * Only IndexRequests are ever added, this just saves casting each one
+	 *
+	 * @param request
+	 * @return List<IndexRequest>
+	 */
+	private static List<IndexRequest> indexRequests(BulkRequest request) {
+		List<IndexRequest> requests = new ArrayList<>(request.numberOfActions());
+		for(Object doc : request.requests()) {
+			requests.add((IndexRequest) doc);
+		}
+		return requests;
+	}
+
+	private synchronized void complete(List<IndexRequest> retries) {
+		rejected.addAll(retries);
+		inFlight--;
+		notifyAll();
+	}
+
+	private synchronized long sinceLastCompletion() {
+		long now = System.currentTimeMillis();
+		long elapsed = now - lastCompletion;
+		lastCompletion = now;
+		return elapsed;
+	}
+
+	private class Listener implements ActionListener<BulkResponse> {
+		private BulkRequest request;
+		private long start;
+		private long gcTimeAtStart;
+
+		public Listener(BulkRequest request, long start, long gcTimeAtStart) {
+			this.request = request;
+			this.start = start;
+			this.gcTimeAtStart = gcTimeAtStart;
+		}
+
+		@Override
+		public void onResponse(BulkResponse response) {
+			// Rejected docs & overwrites go out again in the order they were first sent
+			List<IndexRequest> docs = indexRequests(request);
+			List<IndexRequest> retries = new ArrayList<>();
+			long rejectedDocs = 0;
+			long created = 0;
+			long notCreated = 0;
+			long failed = 0;
+			long duplicates = 0;
+			BulkItemResponse[] items = response.getItems();
+			for(int x = 0; x < items.length; x++) {
+				BulkItemResponse item = items[x];
+				if(item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+					retries.add(docs.get(x));
+					rejectedDocs++;
+				} else if(item.isFailed() && duplicatePolicy != null && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+					duplicates++;
+					if(duplicatePolicy == DuplicatePolicy.OVERWRITE) {
+						// Goes out again with the retries, this time allowed to overwrite
+						retries.add(docs.get(x).create(false));
+					} else {
+						bulkFailure = new IOException("Duplicate doc " + item.getType() + "/" + item.getId() + " in append only index " + indexName);
+					}
+				} else if(item.isFailed()) {
+					failed++;
+					logFailure(item);
+					handleFailure(item, docs.get(x));
+				} else if(((IndexResponse) item.getResponse()).isCreated()) {
+					created++;
+				} else {
+					notCreated++;
+				}
+			}
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, created);
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, notCreated);
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, failed);
+			reporter.incrCounter(JOB_COUNTER.BULK_REJECTED_RETRIES, rejectedDocs);
+			reporter.incrCounter(JOB_COUNTER.DUPLICATE_DOCS, duplicates);
+
+			adapt((int) (items.length - rejectedDocs), rejectedDocs > 0);
+			complete(retries);
+		}
+
+		@Override
+		public void onFailure(Throwable e) {
+			if(ExceptionsHelper.unwrapCause(e) instanceof EsRejectedExecutionException) {
+				// The node's bulk queue is full, try the whole thing again once we've backed off
+				reporter.incrCounter(JOB_COUNTER.BULK_REJECTED_RETRIES, request.numberOfActions());
+				adapt(0, true);
+				complete(indexRequests(request));
+				return;
+			}
+
+			logger.error("Bulk request of " + request.numberOfActions() + " docs failed for index " + indexName, e);
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, request.numberOfActions());
+			bulkFailure = e;
+			complete(new ArrayList<IndexRequest>());
+		}
+
+		private void adapt(int docs, boolean wasRejected) {
+			long latencyMs = System.currentTimeMillis() - start;
+			if(controller.onBulkComplete(docs, sinceLastCompletion(), latencyMs, getGCTimeMs() - gcTimeAtStart, wasRejected)) {
+				logger.info("Backing off bulk size to {} docs for index {} after a {}ms bulk, rejected: {}", controller.getBulkActions(), indexName, latencyMs, wasRejected);
+				reportBackoff();
+			}
+			reportBulkSize();
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+
+/**
+ * Batches documents into bulk requests using the elasticsearch BulkProcessor. A bulk is sent whenever
+ * it reaches either the doc count or byte size limit, whichever comes first. 
+ * 
+ * Note: With more than 1 concurrent request, two bulks can be applied to the shard at the same time. 
+ * If the same doc id shows up in both, which version wins is no longer the order it came out of the 
+ * shuffle. Leave concurrentRequests at 1 unless your doc ids are unique per shard. 
+ * 
+ */
+public class BulkDocumentIndexer implements DocumentIndexer {
+	private static transient Logger logger = LoggerFactory.getLogger(BulkDocumentIndexer.class);
+	
+	// Don't flood the task logs when an entire shard has bad docs in it
+	private static final int MAX_LOGGED_FAILURES = 10;
+	private static final long DEFAULT_CLOSE_TIMEOUT_MS = 60 * 30 * 1000;
+	
+	private String indexName;
+	private String routing;
+	private Reporter reporter;
+	private BulkProcessor bulkProcessor;
+	private volatile Throwable bulkFailure;
+	private int loggedFailures = 0;
+	private Client client;
+	private DuplicatePolicy duplicatePolicy;
+	private DocumentFailureHandler failureHandler;
+	
+	// Duplicates to index again once the bulk processor is drained. Guarded by this.
+	private List<IndexRequest> overwrites = new ArrayList<>();
+
+	/**
+	 * 
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param bulkActions Max number of docs per bulk request
+	 * @param bulkSizeMB Max size of a bulk request
+	 * @param concurrentRequests Max number of bulk requests in flight while the next one is being built
+	 */
+	public BulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, int bulkActions, int bulkSizeMB, int concurrentRequests) {
+		this(client, indexName, routing, reporter, bulkActions, bulkSizeMB, concurrentRequests, null);
+	}
+
+	/**
+	 * 
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param bulkActions Max number of docs per bulk request
+	 * @param bulkSizeMB Max size of a bulk request
+	 * @param concurrentRequests Max number of bulk requests in flight while the next one is being built
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 */
+	public BulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, int bulkActions, int bulkSizeMB, int concurrentRequests, DuplicatePolicy duplicatePolicy) {
+		this(client, indexName, routing, reporter, bulkActions, bulkSizeMB, concurrentRequests, duplicatePolicy, null);
+	}
+
+	/**
+	 * 
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param bulkActions Max number of docs per bulk request
+	 * @param bulkSizeMB Max size of a bulk request
+	 * @param concurrentRequests Max number of bulk requests in flight while the next one is being built
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 * @param failureHandler Gets the docs that fail to index, null to fail the reducer
+	 */
+	public BulkDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, int bulkActions, int bulkSizeMB, int concurrentRequests, DuplicatePolicy duplicatePolicy, DocumentFailureHandler failureHandler) {
+		this.client = client;
+		this.duplicatePolicy = duplicatePolicy;
+		this.failureHandler = failureHandler;
+		this.indexName = indexName;
+		this.routing = routing;
+		this.reporter = reporter;
+		this.bulkProcessor = BulkProcessor.builder(client, new Listener())
+				.setName("bulk-" + indexName + "-" + routing)
+				.setBulkActions(bulkActions)
+				.setBulkSize(new ByteSizeValue(bulkSizeMB, ByteSizeUnit.MB))
+				.setConcurrentRequests(concurrentRequests)
+				.build();
+	}
+
+	@Override
+	public void index(String indexType, String docId, BytesReference source) throws IOException {
+		checkForFailure();
+		// The request outlives this call, so take a copy of just the json out of the reused buffer
+		bulkProcessor.add(new IndexRequest(indexName, indexType, docId).routing(routing).source(source.copyBytesArray()).create(duplicatePolicy != null));
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if(!bulkProcessor.awaitClose(DEFAULT_CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				throw new IOException("Timed out waiting on bulk requests for index " + indexName + " routing " + routing);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting on bulk requests for index " + indexName + " routing " + routing, e);
+		}
+		checkForFailure();
+		indexOverwrites();
+	}
+	
+	/**
+	 * Index the docs that were turned away as duplicates again, this time allowing them to overwrite. The bulk
+	 * processor can't take them from its own listener, so they go out in one last bulk. 
+	 * 
+	 * @throws IOException
+	 */
+	private void indexOverwrites() throws IOException {
+		List<IndexRequest> requests;
+		synchronized(this) {
+			requests = overwrites;
+			overwrites = new ArrayList<>();
+		}
+		if(requests.isEmpty()) {
+			return;
+		}
+		
+		BulkRequest request = new BulkRequest();
+		for(IndexRequest overwrite : requests) {
+			request.add(overwrite.create(false));
+		}
+		Listener listener = new Listener();
+		listener.afterBulk(0, request, client.bulk(request).actionGet());
+		checkForFailure();
+	}
+	
+	private synchronized void addOverwrite(IndexRequest request) {
+		overwrites.add(request);
+	}
+	
+	private void checkForFailure() throws IOException {
+		if(bulkFailure != null) {
+			throw new IOException("Bulk request failed for index " + indexName + " routing " + routing, bulkFailure);
+		}
+	}
+	
+	private synchronized void logFailure(BulkItemResponse item) {
+		if(loggedFailures < MAX_LOGGED_FAILURES) {
+			logger.error("Failed to index doc " + item.getType() + "/" + item.getId() + " into " + item.getIndex() + ": " + item.getFailureMessage());
+			loggedFailures++;
+		}
+	}
+
+	private void handleFailure(BulkItemResponse item, IndexRequest request) {
+		if(failureHandler == null) {
+			// Same as a single index request would, a bad doc fails the reducer
+			if(bulkFailure == null) {
+				bulkFailure = new IOException("Failed to index doc " + item.getType() + "/" + item.getId() + " into " + item.getIndex() + ": " + item.getFailureMessage());
+			}
+			return;
+		}
+		try {
+			failureHandler.onFailure(item.getType(), item.getId(), request.source(), item.getFailureMessage());
+		} catch (IOException e) {
+			bulkFailure = e;
+		}
+	}
+
+	private class Listener implements BulkProcessor.Listener {
+
+		@Override
+		public void beforeBulk(long executionId, BulkRequest request) {
+			// no-op
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+			long created = 0;
+			long notCreated = 0;
+			long failed = 0;
+			long duplicates = 0;
+			for(BulkItemResponse item : response.getItems()) {
+				if(item.isFailed() && duplicatePolicy != null && item.getFailure().getStatus() == RestStatus.CONFLICT) {
+					duplicates++;
+					if(duplicatePolicy == DuplicatePolicy.OVERWRITE) {
+						addOverwrite((IndexRequest) request.requests().get(item.getItemId()));
+					} else {
+						bulkFailure = new IOException("Duplicate doc " + item.getType() + "/" + item.getId() + " in append only index " + indexName);
+					}
+				} else if(item.isFailed()) {
+					failed++;
+					logFailure(item);
+					handleFailure(item, (IndexRequest) request.requests().get(item.getItemId()));
+				} else if(((IndexResponse) item.getResponse()).isCreated()) {
+					created++;
+				} else {
+					notCreated++;
+				}
+			}
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, created);
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, notCreated);
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, failed);
+			reporter.incrCounter(JOB_COUNTER.DUPLICATE_DOCS, duplicates);
+		}
+
+		@Override
+		public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+			// The whole request blew up rather than individual docs. Fail the reducer like a single index request would have.
+			logger.error("Bulk request of " + request.numberOfActions() + " docs failed for index " + indexName, failure);
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, request.numberOfActions());
+			bulkFailure = failure;
+		}
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+/**
+ * Decides how big bulk requests should be and how many may be in flight, based on what the last ones did.
+ * Bulks grow while throughput keeps improving and hold once it plateaus. Any sign of trouble (rejected
+ * executions, slow bulks, GC thrashing, a full heap or index buffer) halves the bulk size and drops a concurrent
+ * request, after which it starts growing again.
+ *
+ * One controller is shared by every indexer in a reducer so what's learned carries over from one shard to the next.
+ *
+ */
+public class BulkSizeController {
+	// How far the bulk size may stray from the configured starting point
+	public static final double MIN_SCALE = 1.0 / 16;
+	public static final double MAX_SCALE = 16;
+
+	private static final double GROWTH_FACTOR = 1.5;
+	private static final double BACKOFF_FACTOR = 0.5;
+
+	// Throughput has to beat the best so far by this much to count as an improvement rather than noise
+	private static final double MIN_IMPROVEMENT = 1.05;
+
+	// Pressure thresholds
+	public static final long MAX_BULK_LATENCY_MS = 10000;
+	public static final double MAX_GC_TIME_RATIO = 0.1;
+	public static final double MAX_HEAP_USED_RATIO = 0.85;
+	public static final double MAX_INDEX_BUFFER_USED_RATIO = 0.9;
+
+	private int initialBulkActions;
+	private long initialBulkBytes;
+	private int maxConcurrentRequests;
+
+	private double scale = 1;
+	private int concurrentRequests = 1;
+	private double bestDocsPerSec = 0;
+	private boolean probing = true;
+	private long backoffs = 0;
+
+	/**
+	 *
+	 * @param initialBulkActions Docs per bulk to start out with
+	 * @param initialBulkBytes Max bytes per bulk to start out with
+	 * @param maxConcurrentRequests Ceiling on bulks in flight. Only go above 1 if doc ids are unique per shard.
+	 */
+	public BulkSizeController(int initialBulkActions, long initialBulkBytes, int maxConcurrentRequests) {
+		this.initialBulkActions = initialBulkActions;
+		this.initialBulkBytes = initialBulkBytes;
+		this.maxConcurrentRequests = Math.max(1, maxConcurrentRequests);
+	}
+
+	/**
+	 * Feed back the outcome of a bulk request
+	 *
+	 * @param docs Number of docs in the bulk
+	 * @param elapsedMs Wall clock time it took to produce & index the bulk
+	 * @param latencyMs Time the bulk request itself took
+	 * @param gcTimeMs Time spent in GC while the bulk was in flight
+	 * @param rejected Whether the node rejected any of it
+	 * @return true if this backed off
+	 */
+	public synchronized boolean onBulkComplete(int docs, long elapsedMs, long latencyMs, long gcTimeMs, boolean rejected) {
+		if(rejected || latencyMs > MAX_BULK_LATENCY_MS || (double) gcTimeMs / Math.max(1, latencyMs) > MAX_GC_TIME_RATIO) {
+			backoff();
+			return true;
+		}
+
+		double docsPerSec = docs * 1000d / Math.max(1, elapsedMs);
+		if(docsPerSec > bestDocsPerSec * MIN_IMPROVEMENT) {
+			bestDocsPerSec = docsPerSec;
+			if(probing) {
+				grow();
+			}
+		} else {
+			// Bigger isn't getting any faster, stay put
+			probing = false;
+		}
+		return false;
+	}
+
+	/**
+	 * Check memory before building up another bulk
+	 *
+	 * @param heapUsedRatio Heap still in use after the last GC, over the max heap
+	 * @param indexBufferUsedRatio Index writer memory over what ES allows it
+	 * @return true if this backed off
+	 */
+	public synchronized boolean onMemorySample(double heapUsedRatio, double indexBufferUsedRatio) {
+		if(heapUsedRatio > MAX_HEAP_USED_RATIO || indexBufferUsedRatio > MAX_INDEX_BUFFER_USED_RATIO) {
+			backoff();
+			return true;
+		}
+		return false;
+	}
+
+	private void grow() {
+		if(scale < MAX_SCALE) {
+			scale = Math.min(MAX_SCALE, scale * GROWTH_FACTOR);
+		} else if(concurrentRequests < maxConcurrentRequests) {
+			concurrentRequests++;
+		}
+	}
+
+	private void backoff() {
+		scale = Math.max(MIN_SCALE, scale * BACKOFF_FACTOR);
+		concurrentRequests = Math.max(1, concurrentRequests - 1);
+
+		// Conditions changed, so throughput from before is no longer a fair baseline
+		bestDocsPerSec = 0;
+		probing = true;
+		backoffs++;
+	}
+
+	public synchronized int getBulkActions() {
+		return (int) Math.max(1, Math.round(initialBulkActions * scale));
+	}
+
+	public synchronized long getBulkBytes() {
+		return Math.max(1, Math.round(initialBulkBytes * scale));
+	}
+
+	public synchronized int getConcurrentRequests() {
+		return concurrentRequests;
+	}
+
+	public synchronized long getBackoffs() {
+		return backoffs;
+	}
+}
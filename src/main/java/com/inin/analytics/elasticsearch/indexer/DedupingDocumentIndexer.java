@@ -0,0 +1,77 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.DedupeRule;
+
+/**
+ * Reduce side half of dedupe, see DedupeRule. Docs arrive sorted by type & id, so duplicates are back to
+ * back. Holds onto the current doc until a different one shows up, and only hands the winning copy
+ * to the delegate.
+ *
+ */
+public class DedupingDocumentIndexer implements DocumentIndexer {
+	private DocumentIndexer delegate;
+	private DedupeRule dedupeRule;
+	private Reporter reporter;
+
+	private String pendingType;
+	private String pendingId;
+	private BytesReference pendingSource;
+	private long pendingVersion;
+
+	public DedupingDocumentIndexer(DocumentIndexer delegate, DedupeRule dedupeRule, Reporter reporter) {
+		this.delegate = delegate;
+		this.dedupeRule = dedupeRule;
+		this.reporter = reporter;
+	}
+
+	@Override
+	public void index(String indexType, String docId, BytesReference source) throws IOException {
+		index(indexType, docId, source, dedupeRule.getVersion(source));
+	}
+
+	/**
+	 * For docs that carry their own version, which saves parsing it out of the source
+	 *
+	 * @param indexType
+	 * @param docId
+	 * @param source
+	 * @param version
+	 * @throws IOException
+	 */
+	public void index(String indexType, String docId, BytesReference source, long version) throws IOException {
+		if(pendingId != null && pendingId.equals(docId) && pendingType.equals(indexType)) {
+			reporter.incrCounter(JOB_COUNTER.DOCS_COLLAPSED, 1l);
+			if(version < pendingVersion) {
+				return;
+			}
+		} else {
+			flushPending();
+		}
+
+		// The source is a view over a reused buffer
+		pendingType = indexType;
+		pendingId = docId;
+		pendingSource = source.copyBytesArray();
+		pendingVersion = version;
+	}
+
+	private void flushPending() throws IOException {
+		if(pendingId != null) {
+			delegate.index(pendingType, pendingId, pendingSource);
+			pendingId = null;
+			pendingSource = null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		flushPending();
+		delegate.close();
+	}
+}
@@ -0,0 +1,24 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Takes the docs of a single index|routing key that elasticsearch turned down (EG malformed JSON or a mapping
+ * conflict). Without one, indexers that send docs one at a time fail the reducer on the first bad doc while
+ * bulk indexers count & log them. Bulk indexers call this from response threads, so it must be thread safe.
+ *
+ */
+public interface DocumentFailureHandler {
+
+	/**
+	 *
+	 * @param indexType Null if the doc couldn't be decoded
+	 * @param docId Null if the doc couldn't be decoded
+	 * @param source
+	 * @param error
+	 * @throws IOException To fail the reducer, EG once the shard has had too many bad docs
+	 */
+	public void onFailure(String indexType, String docId, BytesReference source, String error) throws IOException;
+}
@@ -0,0 +1,32 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Feeds documents for a single index|routing key into the embedded elasticsearch node. An indexer 
+ * lives for exactly one reduce key. Implementations may index asynchronously, so callers must close() 
+ * the indexer before flushing or snapshotting the index.
+ * 
+ */
+public interface DocumentIndexer {
+
+	/**
+	 * Submit a document for indexing. The source may be a view over a reused buffer, so implementations 
+	 * that are still referencing it once this returns must copy it.
+	 * 
+	 * @param indexType
+	 * @param docId
+	 * @param source
+	 * @throws IOException
+	 */
+	public void index(String indexType, String docId, BytesReference source) throws IOException;
+
+	/**
+	 * Block until every submitted document has been acknowledged by elasticsearch
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,29 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import org.apache.hadoop.mapred.JobConf;
+
+import com.inin.analytics.elasticsearch.ConfigParams;
+
+/**
+ * Append only indexing, for jobs whose doc ids are unique per shard. Docs are sent with create rather than
+ * index semantics, and this decides what happens when a doc id turns out to already be in the shard.
+ *
+ * FAIL throws, failing the reducer. OVERWRITE indexes the doc again with index semantics, so the shard ends
+ * up the same as without append only indexing. Either way the DUPLICATE_DOCS counter goes up.
+ *
+ */
+public enum DuplicatePolicy {
+	FAIL, OVERWRITE;
+
+	/**
+	 *
+	 * @param job
+	 * @return DuplicatePolicy null unless append only indexing is enabled
+	 */
+	public static DuplicatePolicy fromJobConf(JobConf job) {
+		if(!job.getBoolean(ConfigParams.APPEND_ONLY_ENABLED.toString(), false)) {
+			return null;
+		}
+		return valueOf(job.get(ConfigParams.APPEND_ONLY_ON_DUPLICATE.toString(), FAIL.name()).toUpperCase());
+	}
+}
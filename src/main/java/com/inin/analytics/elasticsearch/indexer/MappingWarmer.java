@@ -0,0 +1,112 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.hppc.cursors.ObjectObjectCursor;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.mapper.SourceToParse;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.internal.InternalNode;
+
+/**
+ * With fields left dynamic, the first docs in every shard each add fields to the mapping, and every mapping
+ * update is a cluster state change that indexing has to wait on. The warmer runs a sample of docs through
+ * the index's mappers without indexing them, so dynamic fields get added locally, then puts the resulting
+ * mappings to the master in one go before the hot loop starts.
+ *
+ */
+public class MappingWarmer {
+	private Node node;
+	private String indexName;
+	private String routing;
+	private MapperService mapperService;
+	private Set<String> modifiedTypes = new HashSet<>();
+
+	/**
+	 *
+	 * @param node
+	 * @param indexName
+	 * @param routing
+	 */
+	public MappingWarmer(Node node, String indexName, String routing) {
+		this.node = node;
+		this.indexName = indexName;
+		this.routing = routing;
+		this.mapperService = ((InternalNode) node).injector().getInstance(IndicesService.class).indexServiceSafe(indexName).mapperService();
+	}
+
+	/**
+	 * Parse a doc, picking up any fields it adds to the mapping
+	 *
+	 * @param indexType
+	 * @param docId
+	 * @param source
+	 */
+	public void sample(String indexType, String docId, BytesReference source) {
+		Tuple<DocumentMapper, Boolean> mapper = mapperService.documentMapperWithAutoCreate(indexType);
+		ParsedDocument doc = mapper.v1().parse(SourceToParse.source(source).type(indexType).id(docId).routing(routing));
+		if(mapper.v2() || doc.mappingsModified()) {
+			modifiedTypes.add(indexType);
+		}
+	}
+
+	/**
+	 * Put the mappings of every type the samples changed
+	 *
+	 * @return int The number of types whose mapping was put
+	 * @throws IOException
+	 */
+	public int apply() throws IOException {
+		for(String type : modifiedTypes) {
+			DocumentMapper mapper = mapperService.documentMapper(type);
+			node.client().admin().indices().preparePutMapping(indexName).setType(type).setSource(mapper.mappingSource().string()).get();
+		}
+		int applied = modifiedTypes.size();
+		modifiedTypes.clear();
+		return applied;
+	}
+
+	/**
+	 *
+	 * @param node
+	 * @param indexName
+	 * @return Map<String, String> type to mapping source, as of the current cluster state
+	 */
+	public static Map<String, String> getMappings(Node node, String indexName) {
+		Map<String, String> mappings = new HashMap<>();
+		IndexMetaData index = node.client().admin().cluster().prepareState().setIndices(indexName).get().getState().metaData().index(indexName);
+		if(index != null) {
+			for(ObjectObjectCursor<String, MappingMetaData> cursor : index.getMappings()) {
+				mappings.put(cursor.key, cursor.value.source().toString());
+			}
+		}
+		return mappings;
+	}
+
+	/**
+	 *
+	 * @param before
+	 * @param after
+	 * @return int How many types were added or had their mapping change
+	 */
+	public static int countChangedTypes(Map<String, String> before, Map<String, String> after) {
+		int changed = 0;
+		for(Map.Entry<String, String> mapping : after.entrySet()) {
+			if(!mapping.getValue().equals(before.get(mapping.getKey()))) {
+				changed++;
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,147 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Producer/consumer stage in front of a set of indexers. The reduce thread only decodes documents and 
+ * enqueues them, while a worker thread per delegate indexer submits them to elasticsearch. Documents 
+ * are assigned to a worker by hashing the doc id, so all versions of a doc are indexed by the same worker 
+ * in the order they arrived. That keeps last-write-wins semantics the same as indexing from a single thread. 
+ * 
+ */
+public class ParallelDocumentIndexer implements DocumentIndexer {
+	private static transient Logger logger = LoggerFactory.getLogger(ParallelDocumentIndexer.class);
+	private static final Document END_OF_STREAM = new Document(null, null, null);
+	private static final long OFFER_TIMEOUT_MS = 1000;
+	
+	private List<Worker> workers = new ArrayList<>();
+	private List<Thread> threads = new ArrayList<>();
+	private volatile Throwable workerFailure;
+
+	/**
+	 * 
+	 * @param delegates One worker thread is started per delegate
+	 * @param queueSize Max number of docs buffered per worker before the reduce thread blocks
+	 */
+	public ParallelDocumentIndexer(List<DocumentIndexer> delegates, int queueSize) {
+		Preconditions.checkArgument(!delegates.isEmpty(), "At least one delegate indexer is required");
+		for(DocumentIndexer delegate : delegates) {
+			Worker worker = new Worker(delegate, queueSize);
+			Thread thread = new Thread(worker);
+			thread.setName("es-indexing-worker-" + workers.size());
+			thread.setDaemon(true);
+			workers.add(worker);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+
+	@Override
+	public void index(String indexType, String docId, BytesReference source) throws IOException {
+		// The doc is handed off to another thread, so it can't keep pointing at the reused Text buffer
+		Worker worker = workers.get((docId.hashCode() & Integer.MAX_VALUE) % workers.size());
+		enqueue(worker, new Document(indexType, docId, source.copyBytesArray()));
+	}
+
+	/**
+	 * Every worker gets shut down & joined, even once one has failed, so none of the others or their delegates 
+	 * are left behind. A worker's failure is only thrown after that.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			for(int x = 0; x < workers.size(); x++) {
+				// A dead worker has already closed its delegate & isn't going to drain its queue
+				while(threads.get(x).isAlive() && !workers.get(x).queue.offer(END_OF_STREAM, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+					logger.debug("Waiting on indexing worker " + x + " to make room to shut it down");
+				}
+			}
+			for(Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted waiting on indexing workers", e);
+		}
+		checkForFailure();
+	}
+	
+	private void enqueue(Worker worker, Document document) throws IOException {
+		try {
+			// Don't block forever on a full queue if the worker that's supposed to drain it has died
+			while(!worker.queue.offer(document, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+				checkForFailure();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted handing a document to an indexing worker", e);
+		}
+		checkForFailure();
+	}
+	
+	private void checkForFailure() throws IOException {
+		if(workerFailure != null) {
+			throw new IOException("Indexing worker failed", workerFailure);
+		}
+	}
+	
+	private static class Document {
+		private String indexType;
+		private String docId;
+		private BytesReference source;
+		
+		public Document(String indexType, String docId, BytesReference source) {
+			this.indexType = indexType;
+			this.docId = docId;
+			this.source = source;
+		}
+	}
+	
+	private class Worker implements Runnable {
+		private BlockingQueue<Document> queue;
+		private DocumentIndexer delegate;
+		
+		public Worker(DocumentIndexer delegate, int queueSize) {
+			this.delegate = delegate;
+			this.queue = new ArrayBlockingQueue<>(queueSize);
+		}
+
+		@Override
+		public void run() {
+			boolean closed = false;
+			try {
+				Document document = queue.take();
+				while(document != END_OF_STREAM) {
+					delegate.index(document.indexType, document.docId, document.source);
+					document = queue.take();
+				}
+				closed = true;
+				delegate.close();
+			} catch (Throwable t) {
+				logger.error("Indexing worker " + Thread.currentThread().getName() + " failed", t);
+				workerFailure = t;
+				// Nothing is going to take the docs still queued
+				queue.clear();
+				// Don't hold onto whatever the delegate has open, nothing else is going to close it
+				if(!closed) {
+					try {
+						delegate.close();
+					} catch (Throwable e) {
+						logger.warn("Failed to close the delegate of failed indexing worker " + Thread.currentThread().getName(), e);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+
+/**
+ * Indexes one document per request, blocking on each response. 
+ * 
+ */
+public class SingleDocumentIndexer implements DocumentIndexer {
+	private Client client;
+	private String indexName;
+	private String routing;
+	private Reporter reporter;
+	private DuplicatePolicy duplicatePolicy;
+	private DocumentFailureHandler failureHandler;
+
+	public SingleDocumentIndexer(Client client, String indexName, String routing, Reporter reporter) {
+		this(client, indexName, routing, reporter, null);
+	}
+
+	/**
+	 * 
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 */
+	public SingleDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, DuplicatePolicy duplicatePolicy) {
+		this(client, indexName, routing, reporter, duplicatePolicy, null);
+	}
+
+	/**
+	 * 
+	 * @param client
+	 * @param indexName
+	 * @param routing
+	 * @param reporter
+	 * @param duplicatePolicy Create rather than index docs, null to index
+	 * @param failureHandler Gets the docs that fail to index, null to fail the reducer
+	 */
+	public SingleDocumentIndexer(Client client, String indexName, String routing, Reporter reporter, DuplicatePolicy duplicatePolicy, DocumentFailureHandler failureHandler) {
+		this.failureHandler = failureHandler;
+		this.client = client;
+		this.indexName = indexName;
+		this.routing = routing;
+		this.reporter = reporter;
+		this.duplicatePolicy = duplicatePolicy;
+	}
+
+	@Override
+	public void index(String indexType, String docId, BytesReference source) throws IOException {
+		IndexResponse response;
+		try {
+			response = send(indexType, docId, source);
+		} catch (ElasticsearchException e) {
+			reporter.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1l);
+			if(failureHandler == null) {
+				throw e;
+			}
+			failureHandler.onFailure(indexType, docId, source, e.getDetailedMessage());
+			return;
+		}
+		if(response.isCreated()) {
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 1l);
+		} else {
+			reporter.incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, 1l);
+		}
+	}
+
+	private IndexResponse send(String indexType, String docId, BytesReference source) throws IOException {
+		IndexResponse response;
+		try {
+			response = client.prepareIndex(indexName, indexType).setId(docId).setRouting(routing).setSource(source).setCreate(duplicatePolicy != null).execute().actionGet();
+		} catch (DocumentAlreadyExistsException e) {
+			reporter.incrCounter(JOB_COUNTER.DUPLICATE_DOCS, 1l);
+			if(duplicatePolicy == DuplicatePolicy.FAIL) {
+				throw new IOException("Duplicate doc " + indexType + "/" + docId + " in append only index " + indexName, e);
+			}
+			response = client.prepareIndex(indexName, indexType).setId(docId).setRouting(routing).setSource(source).execute().actionGet();
+		}
+		return response;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// no-op, every request has already completed
+	}
+
+}
@@ -0,0 +1,69 @@
+package com.inin.analytics.elasticsearch.indexer;
+
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.hadoop.io.Text;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import com.inin.analytics.elasticsearch.BaseESReducer;
+
+/**
+ * Decodes reducer values of the form [doc type]|[doc id]|json straight off the Text byte buffer. Only the 
+ * first two separators are scanned for, so a json body containing the separator is never split. The json
+ * is handed back as a slice of the Text buffer rather than a copy.
+ * 
+ * Note: Hadoop reuses the Text instance between values, so the source is only valid until the next call
+ * to decode. Indexers that hold onto the source past that point need to copy it.
+ * 
+ */
+public class TextDocumentDecoder {
+	private String indexType;
+	private String docId;
+	private BytesReference source;
+
+	/**
+	 * 
+	 * @param line
+	 * @throws IllegalArgumentException if the payload does not contain a type and id
+	 */
+	public void decode(Text line) {
+		byte[] bytes = line.getBytes();
+		int length = line.getLength();
+		
+		int typeEnd = indexOf(bytes, 0, length);
+		int idEnd = typeEnd < 0 ? -1 : indexOf(bytes, typeEnd + 1, length);
+		if(idEnd < 0) {
+			throw new IllegalArgumentException("Document payload is missing the [doc type]" + BaseESReducer.TUPLE_SEPARATOR + "[doc id]" + BaseESReducer.TUPLE_SEPARATOR + " prefix");
+		}
+		
+		try {
+			indexType = Text.decode(bytes, 0, typeEnd);
+			docId = Text.decode(bytes, typeEnd + 1, idEnd - typeEnd - 1);
+		} catch (CharacterCodingException e) {
+			throw new IllegalArgumentException("Document type or id is not valid UTF-8", e);
+		}
+		source = new BytesArray(bytes, idEnd + 1, length - idEnd - 1);
+	}
+	
+	private static int indexOf(byte[] bytes, int from, int length) {
+		for(int x = from; x < length; x++) {
+			if(bytes[x] == BaseESReducer.TUPLE_SEPARATOR) {
+				return x;
+			}
+		}
+		return -1;
+	}
+
+	public String getIndexType() {
+		return indexType;
+	}
+
+	public String getDocId() {
+		return docId;
+	}
+
+	public BytesReference getSource() {
+		return source;
+	}
+}
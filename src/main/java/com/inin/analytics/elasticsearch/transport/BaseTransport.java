@@ -1,21 +1,69 @@
 package com.inin.analytics.elasticsearch.transport;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.hadoop.mapred.TaskAttemptID;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
 import com.inin.analytics.elasticsearch.BaseESReducer;
+import com.inin.analytics.elasticsearch.Heartbeat;
 import com.inin.analytics.elasticsearch.ShardConfig;
 import com.inin.analytics.elasticsearch.transport.SnapshotTransportStrategy.STORAGE_SYSTEMS;
 
 public abstract class BaseTransport {
+	private static transient Logger logger = LoggerFactory.getLogger(BaseTransport.class);
+	
+	// Single shard builds always put their data in shard 0
+	private static final String SINGLE_SHARD_SOURCE = "0";
+	
+	// Attempts upload shards under here, the post processor promotes them into place
+	public static final String STAGING_DIR = "_staging";
+	
+	// Holds a [task id]/[attempt id]/[index]/[shard] record per shard an attempt fully uploaded
+	public static final String COMMITS_DIR = "_commits";
+	
+	// Sits next to a shard dir once it's in place, holds the id of the attempt it came from
+	public static final String COMMIT_MARKER_SUFFIX = ".committed";
+	
 	protected String snapshotWorkingLocation;
 	protected String snapshotFinalDestination;
+	protected Heartbeat heartbeat = new Heartbeat(null);
 	private DirectoryFilter directoryFilter = new DirectoryFilter();
 	
+	// Recorded in a commit marker next to each shard once it's in place. Null writes no markers.
+	private String attemptId;
+	
+	// Upload shards to a staging area & promote them rather than uploading straight into place
+	private boolean stagingEnabled;
+	
+	// Set while a caller holds the storage system's client open across calls, see connect
+	private boolean connected;
+	
 	public BaseTransport(String snapshotWorkingLocation, String snapshotFinalDestination) {
 		this.snapshotWorkingLocation = snapshotWorkingLocation;
 		this.snapshotFinalDestination = snapshotFinalDestination;
@@ -23,11 +71,127 @@ public abstract class BaseTransport {
 		Preconditions.checkNotNull(snapshotFinalDestination);
 	}
 	
+	/**
+	 * Keep the task alive while shards are uploading
+	 * 
+	 * @param heartbeat
+	 */
+	public void setHeartbeat(Heartbeat heartbeat) {
+		this.heartbeat = heartbeat;
+	}
+	
+	/**
+	 * Write a [shard].committed marker holding the attempt id once a shard is fully in place, see getCommittedAttempt,
+	 * and a commit record under the attempt's task, see getCommittedShards
+	 * 
+	 * @param attemptId
+	 */
+	public void setAttemptId(String attemptId) {
+		this.attemptId = attemptId;
+	}
+	
+	/**
+	 * Upload each shard & its index manifest under an attempt scoped path rather than into place, then record the 
+	 * shard as committed by the attempt. Nothing an attempt uploads is visible in the snapshot until promoteStagedShards 
+	 * moves one committed copy of each shard into place once all reducers are done. This makes it safe for two attempts
+	 * of a reducer (EG speculative execution) to upload the same shards, on any storage system. Requires an attempt id.
+	 * 
+	 * @param stagingEnabled
+	 */
+	public void setStagingEnabled(boolean stagingEnabled) {
+		this.stagingEnabled = stagingEnabled;
+	}
+	
 	protected abstract void init();
 	protected abstract void close();
+	
+	/**
+	 * Hold the storage system's client open across calls rather than setting it up & tearing it down for each one. EG 
+	 * a reducer reuses one S3 TransferManager, and its thread pool, for every shard it uploads. Call disconnect when done.
+	 */
+	public synchronized void connect() {
+		if(!connected) {
+			init();
+			connected = true;
+		}
+	}
+	
+	public synchronized void disconnect() {
+		if(connected) {
+			close();
+			connected = false;
+		}
+	}
+	
+	private void begin() {
+		if(!connected) {
+			init();
+		}
+	}
+	
+	private void end() {
+		if(!connected) {
+			close();
+		}
+	}
 	protected abstract void transferFile(boolean deleteSource, String destination, String filename, String localDirectory) throws IOException;
 	protected abstract void transferDir(String destination, String localShardPath, String shard) throws IOException;
 	protected abstract boolean checkExists(String destination, Integer shardNumber) throws IOException;
+	
+	/**
+	 * 
+	 * @param destination
+	 * @param filename
+	 * @return boolean
+	 * @throws IOException
+	 */
+	protected abstract boolean checkFileExists(String destination, String filename) throws IOException;
+	
+	/**
+	 * 
+	 * @param destination
+	 * @param filename
+	 * @return String The file's contents, null if it doesn't exist
+	 * @throws IOException
+	 */
+	protected abstract String readFile(String destination, String filename) throws IOException;
+	
+	/**
+	 * Move a staged shard into place. Only the post processor promotes, so there's never another writer to race.
+	 * 
+	 * @param stagedShardPath
+	 * @param destination
+	 * @param shard
+	 * @return boolean false if the shard was already there, in which case nothing is moved
+	 * @throws IOException
+	 */
+	protected abstract boolean promoteDir(String stagedShardPath, String destination, String shard) throws IOException;
+	
+	/**
+	 * Copy a file that's already in the destination storage system
+	 * 
+	 * @param source Directory holding the file
+	 * @param destination Directory to copy it into
+	 * @param filename
+	 * @throws IOException
+	 */
+	protected abstract void copyFile(String source, String destination, String filename) throws IOException;
+	
+	/**
+	 * 
+	 * @param path
+	 * @return List<String> Every file under path at any depth, relative to it. Empty if path doesn't exist.
+	 * @throws IOException
+	 */
+	protected abstract List<String> listFiles(String path) throws IOException;
+	
+	/**
+	 * Remove a directory and everything in it from the destination. Not finding it is fine.
+	 * 
+	 * @param path
+	 * @throws IOException
+	 */
+	protected abstract void deleteDir(String path) throws IOException;
 
 	/**
 	 * Transport a snapshot sitting on the local filesystem to a remote repository. Snapshots are stiched together
@@ -35,48 +199,293 @@ public abstract class BaseTransport {
 	 * 
 	 * @param snapshotName
 	 * @param index
-	 * @param shardNumber
 	 * @throws IOException
 	 */
 	public void execute(String snapshotName, String index) throws IOException {
-		init();
-		// Figure out which shard has all the data
-		String largestShard = getShardSource(index);
-
-		String destination = removeStorageSystemFromPath(snapshotFinalDestination);
-
-		// Upload top level manifests
+		execute(snapshotName, Arrays.asList(index));
+	}
+	
+	/**
+	 * Transport a snapshot holding several indices, each with the data for a single shard
+	 * 
+	 * @param snapshotName
+	 * @param indices
+	 * @throws IOException
+	 */
+	public void execute(String snapshotName, List<String> indices) throws IOException {
+		begin();
+		try {
+			String destination = removeStorageSystemFromPath(snapshotFinalDestination);
+			if(!stagingEnabled) {
+				transferRootManifests(snapshotName, destination);
+			}
+			for(String index : indices) {
+				// Figure out which shard has all the data
+				String largestShard = getShardSource(index);
+				
+				// Cleanup shard data
+				cleanEmptyShards(index, largestShard);
+				
+				transferShard(snapshotName, destination, index, largestShard, largestShard);
+			}
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Transport a snapshot of an index that was built with a single shard. The shard is moved into place as 
+	 * shard # shardNumber and the index metadata is rewritten to say the index has numShards shards. The
+	 * remaining shards are filled in by other reducers or placeMissingShards.
+	 * 
+	 * @param snapshotName
+	 * @param index
+	 * @param shardNumber
+	 * @param numShards
+	 * @throws IOException
+	 */
+	public void execute(String snapshotName, String index, int shardNumber, int numShards) throws IOException {
+		begin();
+		try {
+			String destination = removeStorageSystemFromPath(snapshotFinalDestination);
+			if(!stagingEnabled) {
+				transferRootManifests(snapshotName, destination);
+			}
+			transferSingleShard(snapshotName, destination, index, shardNumber, numShards);
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Transport a snapshot holding several indices that were each built with a single shard
+	 * 
+	 * @param snapshotName
+	 * @param shardNumbers Which shard # each index's data belongs in
+	 * @param shardConfig
+	 * @throws IOException
+	 */
+	public void execute(String snapshotName, Map<String, Integer> shardNumbers, ShardConfig shardConfig) throws IOException {
+		begin();
+		try {
+			String destination = removeStorageSystemFromPath(snapshotFinalDestination);
+			if(!stagingEnabled) {
+				transferRootManifests(snapshotName, destination);
+			}
+			for(Map.Entry<String, Integer> shardNumber : shardNumbers.entrySet()) {
+				transferSingleShard(snapshotName, destination, shardNumber.getKey(), shardNumber.getValue(), shardConfig.getShardsForIndex(shardNumber.getKey()).intValue());
+			}
+		} finally {
+			end();
+		}
+	}
+	
+	private void transferSingleShard(String snapshotName, String destination, String index, int shardNumber, int numShards) throws IOException {
+		rewriteNumberOfShards(snapshotName, index, numShards);
+		transferShard(snapshotName, destination, index, SINGLE_SHARD_SOURCE, Integer.toString(shardNumber));
+	}
+	
+	/**
+	 * Upload top level manifests. Staged attempts skip these, the post processor uploads its own once every shard is in place.
+	 * 
+	 * @param snapshotName
+	 * @param destination
+	 * @throws IOException
+	 */
+	private void transferRootManifests(String snapshotName, String destination) throws IOException {
 		transferFile(false, destination, "metadata-" + snapshotName, snapshotWorkingLocation);
 		transferFile(false, destination, "snapshot-" + snapshotName, snapshotWorkingLocation);
 		transferFile(false, destination, "index", snapshotWorkingLocation);
-
-		
-		// Upload per-index manifests
+	}
+	
+	private void transferShard(String snapshotName, String destination, String index, String sourceShard, String destinationShard) throws IOException {
 		String indexManifestSource =  snapshotWorkingLocation + "indices" + BaseESReducer.DIR_SEPARATOR + index;
-		String indexManifestDestination = destination + BaseESReducer.DIR_SEPARATOR + "indices" + BaseESReducer.DIR_SEPARATOR + index;
-		
-		transferFile(false, indexManifestDestination, "snapshot-" + snapshotName, indexManifestSource);
-		
-		// Cleanup shard data
-		cleanEmptyShards(index, largestShard);
+		String shardSource = snapshotWorkingLocation + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR + sourceShard;
+		String indexDestination = destination + BaseESReducer.DIR_SEPARATOR + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+		if(stagingEnabled) {
+			Preconditions.checkNotNull(attemptId, "Staging shard uploads requires an attempt id");
+			indexDestination = getStagingDir(destination, attemptId) + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+		}
 		
-		// Upload shard data
-		String shardSource = snapshotWorkingLocation + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR + largestShard;
+		// Upload per-index manifest & shard data
+		transferFile(false, indexDestination, "snapshot-" + snapshotName, indexManifestSource);
+		transferDir(indexDestination, shardSource, destinationShard);
 		
-		String shardDestination = destination + BaseESReducer.DIR_SEPARATOR + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
-		transferDir(shardDestination, shardSource, largestShard);
-		close();
+		// Written last, so only fully uploaded shards are marked
+		if(!stagingEnabled && attemptId != null) {
+			writeCommitMarker(indexDestination, destinationShard, attemptId);
+		}
+		if(attemptId != null) {
+			writeCommitRecord(destination, index, destinationShard);
+		}
+	}
+	
+	/**
+	 * Promote one committed copy of every staged shard into place, along with its index manifest. Only the post processor
+	 * calls this, once all reducers are done, so each shard has a single writer no matter how many attempts uploaded it 
+	 * or which storage system it's on. Shards already marked as in place are left alone. A shard whose promote was cut 
+	 * short has no marker yet, so it's cleared & promoted again.
+	 * 
+	 * @param snapshotName
+	 * @return int The number of shards promoted
+	 * @throws IOException
+	 */
+	public int promoteStagedShards(String snapshotName) throws IOException {
+		begin();
+		try {
+			String destination = removeStorageSystemFromPath(snapshotFinalDestination);
+			Map<String, String> committedBy = new TreeMap<>();
+			List<String> records = listFiles(destination + BaseESReducer.DIR_SEPARATOR + COMMITS_DIR + BaseESReducer.DIR_SEPARATOR);
+			Collections.sort(records);
+			for(String record : records) {
+				// [task id]/[attempt id]/[index]/[shard]
+				String[] pieces = StringUtils.split(record, BaseESReducer.DIR_SEPARATOR);
+				if(pieces.length != 4) {
+					logger.warn("Ignoring unexpected commit record " + record);
+					continue;
+				}
+				String shard = pieces[2] + BaseESReducer.DIR_SEPARATOR + pieces[3];
+				if(!committedBy.containsKey(shard)) {
+					committedBy.put(shard, pieces[1]);
+				}
+			}
+			
+			int promoted = 0;
+			for(Map.Entry<String, String> committed : committedBy.entrySet()) {
+				String index = StringUtils.substringBefore(committed.getKey(), "" + BaseESReducer.DIR_SEPARATOR);
+				String shard = StringUtils.substringAfter(committed.getKey(), "" + BaseESReducer.DIR_SEPARATOR);
+				String indexDestination = destination + BaseESReducer.DIR_SEPARATOR + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+				if(checkFileExists(indexDestination, shard + COMMIT_MARKER_SUFFIX)) {
+					continue;
+				}
+				
+				String stagedIndex = getStagingDir(destination, committed.getValue()) + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+				logger.info("Promoting shard " + indexDestination + shard + " from " + committed.getValue());
+				deleteDir(indexDestination + shard);
+				copyFile(stagedIndex, indexDestination, "snapshot-" + snapshotName);
+				if(!promoteDir(stagedIndex + shard, indexDestination, shard)) {
+					throw new IOException("Shard " + indexDestination + shard + " reappeared while promoting it from " + committed.getValue());
+				}
+				writeCommitMarker(indexDestination, shard, committed.getValue());
+				promoted++;
+			}
+			return promoted;
+		} finally {
+			end();
+		}
+	}
+	
+	private static String getStagingDir(String destination, String attemptId) {
+		return destination + BaseESReducer.DIR_SEPARATOR + STAGING_DIR + BaseESReducer.DIR_SEPARATOR + attemptId + BaseESReducer.DIR_SEPARATOR;
+	}
+	
+	/**
+	 * Record that this attempt fully uploaded a shard, staged or in place
+	 * 
+	 * @param destination
+	 * @param index
+	 * @param shard
+	 * @throws IOException
+	 */
+	private void writeCommitRecord(String destination, String index, String shard) throws IOException {
+		String recordDir = destination + BaseESReducer.DIR_SEPARATOR + COMMITS_DIR + BaseESReducer.DIR_SEPARATOR + getTaskId(attemptId) + BaseESReducer.DIR_SEPARATOR 
+				+ attemptId + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+		File record = new File(snapshotWorkingLocation, shard);
+		FileUtils.write(record, attemptId);
+		transferFile(true, recordDir, shard, snapshotWorkingLocation);
+	}
+	
+	private void writeCommitMarker(String indexDestination, String shard, String committedAttemptId) throws IOException {
+		String marker = shard + COMMIT_MARKER_SUFFIX;
+		FileUtils.write(new File(snapshotWorkingLocation, marker), committedAttemptId);
+		transferFile(true, indexDestination, marker, snapshotWorkingLocation);
+	}
+	
+	/**
+	 * 
+	 * @param attemptId
+	 * @return String The id of the task the attempt belongs to, the attempt id itself if it isn't a hadoop attempt id
+	 */
+	private static String getTaskId(String attemptId) {
+		try {
+			return TaskAttemptID.forName(attemptId).getTaskID().toString();
+		} catch (IllegalArgumentException e) {
+			return attemptId;
+		}
+	}
+	
+	/**
+	 * Which attempt put a shard in the destination. Markers are only written after the shard is fully
+	 * uploaded, so a shard with a marker is complete.
+	 * 
+	 * @param index
+	 * @param shardNumber
+	 * @return String The attempt id from the shard's commit marker, null if the shard isn't there or has no marker
+	 * @throws IOException
+	 */
+	public String getCommittedAttempt(String index, int shardNumber) throws IOException {
+		begin();
+		try {
+			String shardDestination = removeStorageSystemFromPath(snapshotFinalDestination) + BaseESReducer.DIR_SEPARATOR + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR;
+			if(!checkExists(shardDestination, shardNumber)) {
+				return null;
+			}
+			return readFile(shardDestination, shardNumber + COMMIT_MARKER_SUFFIX);
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Every shard an attempt of the same task fully uploaded, staged or in place, from a single listing of the task's 
+	 * commit records. Records from other tasks, or from earlier runs of the job against the same destination, are
+	 * under other task ids so they don't count.
+	 * 
+	 * @param attemptId
+	 * @return Set<String> [index]/[shard number]
+	 * @throws IOException
+	 */
+	public Set<String> getCommittedShards(String attemptId) throws IOException {
+		begin();
+		try {
+			Set<String> committed = new HashSet<>();
+			String taskCommits = removeStorageSystemFromPath(snapshotFinalDestination) + BaseESReducer.DIR_SEPARATOR + COMMITS_DIR + BaseESReducer.DIR_SEPARATOR + getTaskId(attemptId) + BaseESReducer.DIR_SEPARATOR;
+			for(String record : listFiles(taskCommits)) {
+				// [attempt id]/[index]/[shard]
+				String[] pieces = StringUtils.split(record, BaseESReducer.DIR_SEPARATOR);
+				if(pieces.length == 3) {
+					committed.add(pieces[1] + BaseESReducer.DIR_SEPARATOR + pieces[2]);
+				}
+			}
+			return committed;
+		} finally {
+			end();
+		}
+	}
+	
+	/**
+	 * Remove the staging area & commit records once shards have been promoted. That includes whatever attempts 
+	 * that weren't picked or died mid upload left behind.
+	 * 
+	 * @throws IOException
+	 */
+	public void cleanStaging() throws IOException {
+		begin();
+		try {
+			String destination = removeStorageSystemFromPath(snapshotFinalDestination);
+			deleteDir(destination + BaseESReducer.DIR_SEPARATOR + STAGING_DIR);
+			deleteDir(destination + BaseESReducer.DIR_SEPARATOR + COMMITS_DIR);
+		} finally {
+			end();
+		}
 	}
 	
 	public void placeMissingShards(String snapshotName, String index, ShardConfig shardConfig, boolean includeRootManifest) throws IOException {
-		init();
+		begin();
 		String destination = removeStorageSystemFromPath(snapshotFinalDestination);
 		
 		if(includeRootManifest) {
-			// Upload top level manifests
-			transferFile(false, destination, "metadata-" + snapshotName, snapshotWorkingLocation);
-			transferFile(false, destination, "snapshot-" + snapshotName, snapshotWorkingLocation);
-			transferFile(false, destination, "index", snapshotWorkingLocation);
+			transferRootManifests(snapshotName, destination);
 		}
 		
 		for(int shard = 0; shard < shardConfig.getShardsForIndex(index); shard++) {
@@ -87,7 +496,7 @@ public abstract class BaseTransport {
 				transferDir(indexDestination, shardSource, new Integer(shard).toString());
 			}
 		}
-		close();
+		end();
 	}
 	
 	/**
@@ -151,6 +560,44 @@ public abstract class BaseTransport {
 		}
 	}
 	
+	/**
+	 * The per-index manifest in a snapshot holds the index metadata, including the number of shards. Rewrite
+	 * it in place so a single shard build restores as an index with the real shard count. It's written back
+	 * the same way the snapshot repository wrote it, JSON that's compressed if the original was.
+	 * 
+	 * @param snapshotName
+	 * @param index
+	 * @param numShards
+	 * @throws IOException
+	 */
+	private void rewriteNumberOfShards(String snapshotName, String index, int numShards) throws IOException {
+		File manifest = new File(snapshotWorkingLocation + "indices" + BaseESReducer.DIR_SEPARATOR + index + BaseESReducer.DIR_SEPARATOR + "snapshot-" + snapshotName);
+		byte[] original = FileUtils.readFileToByteArray(manifest);
+		
+		IndexMetaData indexMetaData;
+		XContentParser parser = XContentHelper.createParser(original, 0, original.length);
+		try {
+			Preconditions.checkState(parser.nextToken() == XContentParser.Token.START_OBJECT, "Unexpected index metadata format in " + manifest);
+			indexMetaData = IndexMetaData.Builder.fromXContent(parser);
+		} finally {
+			parser.close();
+		}
+		indexMetaData = IndexMetaData.builder(indexMetaData).numberOfShards(numShards).build();
+		
+		StreamOutput out = new OutputStreamStreamOutput(new FileOutputStream(manifest));
+		if(CompressorFactory.isCompressed(original)) {
+			out = CompressorFactory.defaultCompressor().streamOutput(out);
+		}
+		XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON, out);
+		try {
+			builder.startObject();
+			IndexMetaData.Builder.toXContent(indexMetaData, builder, ToXContent.EMPTY_PARAMS);
+			builder.endObject();
+		} finally {
+			builder.close();
+		}
+	}
+	
 	private class DirectoryFilter implements FilenameFilter {
 		
 		@Override
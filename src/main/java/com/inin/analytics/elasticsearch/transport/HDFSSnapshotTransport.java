@@ -3,17 +3,28 @@ package com.inin.analytics.elasticsearch.transport;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.hdfs.server.namenode.LeaseExpiredException;
 import org.apache.hadoop.ipc.RemoteException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.inin.analytics.elasticsearch.BaseESReducer;
+import com.inin.analytics.elasticsearch.Heartbeat;
 
 public class HDFSSnapshotTransport  extends BaseTransport {
 	private FileSystem hdfsFileSystem;
@@ -75,18 +86,78 @@ public class HDFSSnapshotTransport  extends BaseTransport {
 	protected void transferDir(String destination, String localShardPath, String shard) throws IOException {
 		destination = destination + shard + BaseESReducer.DIR_SEPARATOR;
 		ensurePathExists(destination);
+		Heartbeat.Phase phase = heartbeat.start("copying shard " + shard + " to HDFS");
 		try{
 			File[] files = new File(localShardPath).listFiles();
-			for (File file : files) {
-				transferFile(true, destination, file.getName(), localShardPath);
+			for (int x = 0; x < files.length; x++) {
+				phase.setProgress(x, files.length);
+				transferFile(true, destination, files[x].getName(), localShardPath);
 			}
 		} catch(FileNotFoundException e) {
 			throw new FileNotFoundException("Exception copying " + localShardPath + " to " + destination);
-		} 
+		} finally {
+			phase.close();
+		}
 	}
 
 	@Override
 	protected boolean checkExists(String destination, Integer shardNumber) throws IOException {
 		return hdfsFileSystem.exists(new Path(destination + shardNumber));
 	}
+
+	@Override
+	protected boolean checkFileExists(String destination, String filename) throws IOException {
+		return hdfsFileSystem.exists(new Path(destination + BaseESReducer.DIR_SEPARATOR + filename));
+	}
+
+	@Override
+	protected String readFile(String destination, String filename) throws IOException {
+		Path path = new Path(destination + BaseESReducer.DIR_SEPARATOR + filename);
+		if(!hdfsFileSystem.exists(path)) {
+			return null;
+		}
+		InputStream in = hdfsFileSystem.open(path);
+		try {
+			return IOUtils.toString(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected boolean promoteDir(String stagedShardPath, String destination, String shard) throws IOException {
+		ensurePathExists(destination);
+		try {
+			// FileSystem.rename would move the shard inside an existing dir, Rename.NONE fails instead. Atomic on HDFS.
+			FileContext.getFileContext(hdfsFileSystem.getUri(), hdfsFileSystem.getConf()).rename(new Path(stagedShardPath), new Path(destination + shard), Options.Rename.NONE);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected void copyFile(String source, String destination, String filename) throws IOException {
+		ensurePathExists(destination);
+		FileUtil.copy(hdfsFileSystem, new Path(source + BaseESReducer.DIR_SEPARATOR + filename), hdfsFileSystem, new Path(destination + BaseESReducer.DIR_SEPARATOR + filename), false, true, hdfsFileSystem.getConf());
+	}
+
+	@Override
+	protected List<String> listFiles(String path) throws IOException {
+		List<String> files = new ArrayList<>();
+		Path root = hdfsFileSystem.makeQualified(new Path(path));
+		if(!hdfsFileSystem.exists(root)) {
+			return files;
+		}
+		RemoteIterator<LocatedFileStatus> statuses = hdfsFileSystem.listFiles(root, true);
+		while(statuses.hasNext()) {
+			files.add(statuses.next().getPath().toString().substring(root.toString().length() + 1));
+		}
+		return files;
+	}
+
+	@Override
+	protected void deleteDir(String path) throws IOException {
+		hdfsFileSystem.delete(new Path(path), true);
+	}
 }
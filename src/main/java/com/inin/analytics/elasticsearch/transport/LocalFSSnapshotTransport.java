@@ -2,11 +2,18 @@ package com.inin.analytics.elasticsearch.transport;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.io.FileUtils;
 
 import com.google.common.base.Preconditions;
 import com.inin.analytics.elasticsearch.BaseESReducer;
+import com.inin.analytics.elasticsearch.Heartbeat;
 
 /**
  * Move the snapshot to locally connected storage
@@ -50,7 +57,12 @@ public class LocalFSSnapshotTransport extends BaseTransport {
 		
 		File destinationDir = new File(destination + shard);
 		FileUtils.forceMkdir(destinationDir);
-		FileUtils.copyDirectory(sourceDir, destinationDir);
+		Heartbeat.Phase phase = heartbeat.start("copying shard " + shard + " to " + destination);
+		try {
+			FileUtils.copyDirectory(sourceDir, destinationDir);
+		} finally {
+			phase.close();
+		}
 	}
 
 	@Override
@@ -59,4 +71,53 @@ public class LocalFSSnapshotTransport extends BaseTransport {
 		return destinationDir.exists();
 	}
 
+	@Override
+	protected boolean checkFileExists(String destination, String filename) throws IOException {
+		return new File(destination, filename).exists();
+	}
+
+	@Override
+	protected String readFile(String destination, String filename) throws IOException {
+		File file = new File(destination, filename);
+		return file.exists() ? FileUtils.readFileToString(file) : null;
+	}
+
+	@Override
+	protected boolean promoteDir(String stagedShardPath, String destination, String shard) throws IOException {
+		File destinationDir = new File(destination + shard);
+		if(destinationDir.exists()) {
+			return false;
+		}
+		FileUtils.forceMkdir(new File(destination));
+		try {
+			// A rename within the same filesystem, it fails rather than merging if another attempt got there first
+			Files.move(new File(stagedShardPath).toPath(), destinationDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected void copyFile(String source, String destination, String filename) throws IOException {
+		transferFile(false, destination, filename, source);
+	}
+
+	@Override
+	protected List<String> listFiles(String path) throws IOException {
+		List<String> files = new ArrayList<>();
+		File dir = new File(path);
+		if(dir.isDirectory()) {
+			for(File file : FileUtils.listFiles(dir, null, true)) {
+				files.add(dir.toURI().relativize(file.toURI()).getPath());
+			}
+		}
+		return files;
+	}
+
+	@Override
+	protected void deleteDir(String path) throws IOException {
+		FileUtils.deleteDirectory(new File(path));
+	}
+
 }
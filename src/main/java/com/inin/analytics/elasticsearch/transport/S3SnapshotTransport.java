@@ -4,10 +4,13 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,10 +19,16 @@ import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.Copy;
 import com.amazonaws.services.s3.transfer.MultipleFileUpload;
 import com.amazonaws.services.s3.transfer.ObjectMetadataProvider;
 import com.amazonaws.services.s3.transfer.Transfer.TransferState;
@@ -27,6 +36,7 @@ import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.google.common.base.Preconditions;
 import com.inin.analytics.elasticsearch.BaseESReducer;
+import com.inin.analytics.elasticsearch.Waiter;
 
 /**
  * Stitch together snapshots of ES shards as it pushes files to S3. If we could get the
@@ -47,6 +57,7 @@ import com.inin.analytics.elasticsearch.BaseESReducer;
 public class S3SnapshotTransport extends BaseTransport {
 	private static transient Logger logger = LoggerFactory.getLogger(S3SnapshotTransport.class);
 	private static final int S3_TRANSFER_THREAD_COUNT = 128;
+	private static final int MAX_KEYS_PER_DELETE = 1000;
 	private TransferManager tx;
 	private ObjectMetadataProvider objectMetadataProvider;
 
@@ -99,25 +110,24 @@ public class S3SnapshotTransport extends BaseTransport {
 		tx.shutdownNow();	
 	}
 
-	protected void transferDir(String shardDestinationBucket, String localShardPath, String shard) {
-		MultipleFileUpload mfu = tx.uploadDirectory(shardDestinationBucket + shard, null, new File(localShardPath), true, objectMetadataProvider);
+	protected void transferDir(String shardDestinationBucket, String localShardPath, String shard) throws IOException {
+		final MultipleFileUpload mfu = tx.uploadDirectory(shardDestinationBucket + shard, null, new File(localShardPath), true, objectMetadataProvider);
 		
-		/**
-		 * TODO: Hadoop has a configurable timeout for how long a reducer can be non-responsive (usually 600s). If 
-		 * this takes >600s hadoop will kill the task. We need to ping the reporter to let it know it's alive
-		 * in the case where the file transfer is taking a while.
-		 */
-		while(!mfu.isDone()) {
-			logger.info("Transfering to S3 completed %" + mfu.getProgress().getPercentTransferred());
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+		// Uploads can take longer than hadoop's task timeout (usually 600s), the heartbeat keeps the task alive meanwhile
+		new Waiter(heartbeat).await(new Waiter.Condition() {
+			@Override
+			public boolean isDone() {
+				return mfu.isDone();
 			}
-		}
+			
+			@Override
+			public int getPercent() {
+				return (int) mfu.getProgress().getPercentTransferred();
+			}
+		}, "uploading shard " + shard + " to S3", Waiter.DEFAULT_TIMEOUT_MS);
 	}
 	
-	protected void transferFile(boolean deleteSource, String bucket, String filename, String localDirectory) {
+	protected void transferFile(boolean deleteSource, String bucket, String filename, String localDirectory) throws IOException {
 		File source = new File(localDirectory + BaseESReducer.DIR_SEPARATOR + filename);
 		Preconditions.checkArgument(source.exists(), "Could not find source file: " + source.getAbsolutePath());
 		logger.info("Transfering + " + source + " to " + bucket + " with key " + filename);
@@ -127,9 +137,14 @@ public class S3SnapshotTransport extends BaseTransport {
 			ObjectMetadata objectMetadata = new ObjectMetadata();
 			objectMetadata.setSSEAlgorithm("AES256");
 			objectMetadata.setContentLength(source.length());
-			Upload upload = tx.upload(bucket, filename, fis, objectMetadata);
+			final Upload upload = tx.upload(bucket, filename, fis, objectMetadata);
 			
-			while(!upload.isDone());
+			new Waiter(heartbeat).await(new Waiter.Condition() {
+				@Override
+				public boolean isDone() {
+					return upload.isDone();
+				}
+			}, "uploading " + filename + " to S3", Waiter.DEFAULT_TIMEOUT_MS);
 			Preconditions.checkState(upload.getState().equals(TransferState.Completed), "File " + filename + " failed to upload with state: " + upload.getState());
 			if(deleteSource) {
 				source.delete();
@@ -158,4 +173,133 @@ public class S3SnapshotTransport extends BaseTransport {
 		return false;
 	}
 
+	@Override
+	protected boolean checkFileExists(String destination, String filename) throws IOException {
+		String[] bucketAndKey = splitPath(StringUtils.stripEnd(destination, "/") + "/" + filename);
+		try {
+			tx.getAmazonS3Client().getObjectMetadata(bucketAndKey[0], bucketAndKey[1]);
+			return true;
+		} catch (AmazonS3Exception e) {
+			if(e.getStatusCode() == 404) {
+				return false;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	protected String readFile(String destination, String filename) throws IOException {
+		String[] bucketAndKey = splitPath(StringUtils.stripEnd(destination, "/") + "/" + filename);
+		try {
+			S3Object object = tx.getAmazonS3Client().getObject(bucketAndKey[0], bucketAndKey[1]);
+			try {
+				return IOUtils.toString(object.getObjectContent());
+			} finally {
+				object.close();
+			}
+		} catch (AmazonS3Exception e) {
+			if(e.getStatusCode() == 404) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * S3 can't rename, so the staged objects are copied into place server side. That's only safe because the post 
+	 * processor is the one promoting, with no other attempt copying into the same shard.
+	 */
+	@Override
+	protected boolean promoteDir(String stagedShardPath, String destination, String shard) throws IOException {
+		String[] staged = splitPath(StringUtils.stripEnd(stagedShardPath, "/") + "/");
+		String[] target = splitPath(StringUtils.stripEnd(destination, "/") + "/" + shard + "/");
+		if(!listObjects(target[0], target[1]).isEmpty()) {
+			return false;
+		}
+		
+		final List<Copy> copies = new ArrayList<>();
+		for(S3ObjectSummary object : listObjects(staged[0], staged[1])) {
+			copies.add(tx.copy(getCopyRequest(staged[0], object.getKey(), target[0], target[1] + object.getKey().substring(staged[1].length()))));
+		}
+		new Waiter(heartbeat).await(new Waiter.Condition() {
+			@Override
+			public boolean isDone() {
+				for(Copy copy : copies) {
+					if(!copy.isDone()) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}, "promoting shard " + shard + " on S3", Waiter.DEFAULT_TIMEOUT_MS);
+		for(Copy copy : copies) {
+			if(copy.getState() != TransferState.Completed) {
+				throw new IOException("Failed to promote shard " + shard + " to " + destination + ", copy state: " + copy.getState());
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void copyFile(String source, String destination, String filename) throws IOException {
+		String[] from = splitPath(StringUtils.stripEnd(source, "/") + "/" + filename);
+		String[] to = splitPath(StringUtils.stripEnd(destination, "/") + "/" + filename);
+		tx.getAmazonS3Client().copyObject(getCopyRequest(from[0], from[1], to[0], to[1]));
+	}
+
+	@Override
+	protected List<String> listFiles(String path) throws IOException {
+		String[] bucketAndKey = splitPath(StringUtils.stripEnd(path, "/") + "/");
+		List<String> files = new ArrayList<>();
+		for(S3ObjectSummary object : listObjects(bucketAndKey[0], bucketAndKey[1])) {
+			files.add(object.getKey().substring(bucketAndKey[1].length()));
+		}
+		return files;
+	}
+
+	private static CopyObjectRequest getCopyRequest(String sourceBucket, String sourceKey, String destinationBucket, String destinationKey) {
+		CopyObjectRequest request = new CopyObjectRequest(sourceBucket, sourceKey, destinationBucket, destinationKey);
+		ObjectMetadata objectMetadata = new ObjectMetadata();
+		objectMetadata.setSSEAlgorithm("AES256");
+		request.setNewObjectMetadata(objectMetadata);
+		return request;
+	}
+
+	@Override
+	protected void deleteDir(String path) throws IOException {
+		String[] bucketAndKey = splitPath(StringUtils.stripEnd(path, "/") + "/");
+		List<KeyVersion> keys = new ArrayList<>();
+		for(S3ObjectSummary object : listObjects(bucketAndKey[0], bucketAndKey[1])) {
+			keys.add(new KeyVersion(object.getKey()));
+			if(keys.size() == MAX_KEYS_PER_DELETE) {
+				tx.getAmazonS3Client().deleteObjects(new DeleteObjectsRequest(bucketAndKey[0]).withKeys(keys));
+				keys = new ArrayList<>();
+			}
+		}
+		if(!keys.isEmpty()) {
+			tx.getAmazonS3Client().deleteObjects(new DeleteObjectsRequest(bucketAndKey[0]).withKeys(keys));
+		}
+	}
+
+	private List<S3ObjectSummary> listObjects(String bucket, String prefix) {
+		List<S3ObjectSummary> objects = new ArrayList<>();
+		ObjectListing listing = tx.getAmazonS3Client().listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix));
+		objects.addAll(listing.getObjectSummaries());
+		while(listing.isTruncated()) {
+			listing = tx.getAmazonS3Client().listNextBatchOfObjects(listing);
+			objects.addAll(listing.getObjectSummaries());
+		}
+		return objects;
+	}
+
+	/**
+	 * 
+	 * @param path bucket/key
+	 * @return String[] The bucket & the key
+	 */
+	private static String[] splitPath(String path) {
+		String bucket = StringUtils.split(path, "/")[0];
+		return new String[] {bucket, path.substring(bucket.length() + 1)};
+	}
+
 }
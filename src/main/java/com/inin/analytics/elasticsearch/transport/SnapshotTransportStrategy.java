@@ -1,5 +1,7 @@
 package com.inin.analytics.elasticsearch.transport;
 
+import com.inin.analytics.elasticsearch.Heartbeat;
+
 public class SnapshotTransportStrategy {
 	
 	public enum STORAGE_SYSTEMS {
@@ -25,4 +27,20 @@ public class SnapshotTransportStrategy {
 		}
 		return trasport;
 	}
+	
+	/**
+	 * Given a source & destination, return an appropriate transport implementation which reports progress to a heartbeat
+	 * 
+	 * @param snapshotWorkingLocation
+	 * @param snapshotFinalDestination
+	 * @param heartbeat
+	 * @return BaseTransport
+	 */
+	public static BaseTransport get(String snapshotWorkingLocation, String snapshotFinalDestination, Heartbeat heartbeat) {
+		BaseTransport transport = get(snapshotWorkingLocation, snapshotFinalDestination);
+		if(heartbeat != null) {
+			transport.setHeartbeat(heartbeat);
+		}
+		return transport;
+	}
 }
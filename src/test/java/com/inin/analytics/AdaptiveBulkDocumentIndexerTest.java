@@ -0,0 +1,158 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.stats.CommonStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsRequestBuilder;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.inin.analytics.elasticsearch.indexer.AdaptiveBulkDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.BulkSizeController;
+import com.inin.analytics.elasticsearch.indexer.DuplicatePolicy;
+
+public class AdaptiveBulkDocumentIndexerTest {
+
+	@Test
+	public void testRetriesGoAheadOfNewerDocs() throws Exception {
+		final List<String> sent = new ArrayList<>();
+		Client client = mockClient();
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+				boolean first = sent.isEmpty();
+				List<BulkItemResponse> items = new ArrayList<>();
+				for(ActionRequest doc : request.requests()) {
+					IndexRequest index = (IndexRequest) doc;
+					sent.add(index.id() + index.source().toUtf8());
+					int x = items.size();
+					if(first && index.id().equals("a1")) {
+						items.add(new BulkItemResponse(x, "index", new BulkItemResponse.Failure("idx", "doc", "a1", "rejected", RestStatus.TOO_MANY_REQUESTS)));
+					} else if(first && index.id().equals("b1")) {
+						items.add(new BulkItemResponse(x, "create", new BulkItemResponse.Failure("idx", "doc", "b1", "exists", RestStatus.CONFLICT)));
+					} else {
+						items.add(new BulkItemResponse(x, "index", new IndexResponse("idx", "doc", index.id(), 1, true)));
+					}
+				}
+				((ActionListener<BulkResponse>) invocation.getArguments()[1]).onResponse(new BulkResponse(items.toArray(new BulkItemResponse[items.size()]), 1));
+				return null;
+			}
+		}).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+
+		AdaptiveBulkDocumentIndexer indexer = new AdaptiveBulkDocumentIndexer(client, "idx", "1", mock(Reporter.class), new BulkSizeController(2, 5000000, 1), DuplicatePolicy.OVERWRITE);
+		indexer.index("doc", "a1", new BytesArray("{}"));
+		indexer.index("doc", "b1", new BytesArray("{}"));
+		// Newer copies of the rejected & the overwritten doc
+		indexer.index("doc", "a1", new BytesArray("{\"v\":2}"));
+		indexer.index("doc", "b1", new BytesArray("{\"v\":2}"));
+		indexer.close();
+
+		assertEquals(Arrays.asList("a1{}", "b1{}", "a1{}", "b1{}", "a1{\"v\":2}", "b1{\"v\":2}"), sent);
+	}
+
+	@Test
+	public void testIndexBufferSampledOnATimer() throws Exception {
+		Client client = mockClient();
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+				BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+				for(int x = 0; x < items.length; x++) {
+					items[x] = new BulkItemResponse(x, "index", new IndexResponse("idx", "doc", Integer.toString(x), 1, true));
+				}
+				((ActionListener<BulkResponse>) invocation.getArguments()[1]).onResponse(new BulkResponse(items, 1));
+				return null;
+			}
+		}).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+
+		AdaptiveBulkDocumentIndexer indexer = new AdaptiveBulkDocumentIndexer(client, "idx", "1", mock(Reporter.class), new BulkSizeController(1, 5000000, 1));
+		for(int x = 0; x < 10; x++) {
+			indexer.index("doc", Integer.toString(x), new BytesArray("{}"));
+		}
+		indexer.close();
+
+		// Several bulks well inside one interval
+		verify(client, atLeast(3)).bulk(any(BulkRequest.class), any(ActionListener.class));
+		verify(client.admin().indices(), times(1)).prepareStats(anyString());
+	}
+
+	@Test
+	public void testCloseGivesUpOnDocsAlwaysRejected() throws Exception {
+		Client client = mockClient();
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+				BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+				for(int x = 0; x < items.length; x++) {
+					items[x] = new BulkItemResponse(x, "index", new BulkItemResponse.Failure("idx", "doc", "a1", "rejected", RestStatus.TOO_MANY_REQUESTS));
+				}
+				((ActionListener<BulkResponse>) invocation.getArguments()[1]).onResponse(new BulkResponse(items, 1));
+				return null;
+			}
+		}).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+
+		AdaptiveBulkDocumentIndexer indexer = new AdaptiveBulkDocumentIndexer(client, "idx", "1", mock(Reporter.class), new BulkSizeController(1, 5000000, 1));
+		indexer.index("doc", "a1", new BytesArray("{}"));
+		try {
+			indexer.close();
+			fail("close() should give up on a doc the node always rejects");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("gave up after " + AdaptiveBulkDocumentIndexer.MAX_CLOSE_RETRIES + " retries"));
+		}
+		// The first send plus every retry
+		verify(client, times(AdaptiveBulkDocumentIndexer.MAX_CLOSE_RETRIES + 1)).bulk(any(BulkRequest.class), any(ActionListener.class));
+	}
+
+	private static Client mockClient() {
+		Client client = mock(Client.class);
+		AdminClient admin = mock(AdminClient.class);
+		IndicesAdminClient indices = mock(IndicesAdminClient.class);
+		IndicesStatsRequestBuilder stats = mock(IndicesStatsRequestBuilder.class);
+		IndicesStatsResponse response = mock(IndicesStatsResponse.class);
+		when(client.admin()).thenReturn(admin);
+		when(admin.indices()).thenReturn(indices);
+		when(indices.prepareStats(anyString())).thenReturn(stats);
+		when(stats.clear()).thenReturn(stats);
+		when(stats.setSegments(anyBoolean())).thenReturn(stats);
+		when(stats.get()).thenReturn(response);
+		when(response.getTotal()).thenReturn(mock(CommonStats.class));
+		return client;
+	}
+}
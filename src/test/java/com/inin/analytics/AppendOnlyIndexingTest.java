@@ -0,0 +1,92 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.engine.DocumentAlreadyExistsException;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.indexer.DuplicatePolicy;
+import com.inin.analytics.elasticsearch.indexer.SingleDocumentIndexer;
+
+public class AppendOnlyIndexingTest {
+
+	@Test
+	public void testPolicyFromJobConf() {
+		JobConf job = new JobConf(false);
+		assertNull(DuplicatePolicy.fromJobConf(job));
+		job.setBoolean(ConfigParams.APPEND_ONLY_ENABLED.toString(), true);
+		assertEquals(DuplicatePolicy.FAIL, DuplicatePolicy.fromJobConf(job));
+		job.set(ConfigParams.APPEND_ONLY_ON_DUPLICATE.toString(), "overwrite");
+		assertEquals(DuplicatePolicy.OVERWRITE, DuplicatePolicy.fromJobConf(job));
+	}
+
+	@Test
+	public void testDuplicateFails() {
+		Reporter reporter = mock(Reporter.class);
+		SingleDocumentIndexer indexer = new SingleDocumentIndexer(duplicateRejectingClient(), "idx", "1", reporter, DuplicatePolicy.FAIL);
+		try {
+			indexer.index("conversation", "a", new BytesArray("{}"));
+			fail("Should have failed on the duplicate");
+		} catch (IOException e) {
+			assertEquals("Duplicate doc conversation/a in append only index idx", e.getMessage());
+		}
+		verify(reporter).incrCounter(JOB_COUNTER.DUPLICATE_DOCS, 1l);
+	}
+
+	@Test
+	public void testDuplicateOverwrites() throws IOException {
+		Reporter reporter = mock(Reporter.class);
+		SingleDocumentIndexer indexer = new SingleDocumentIndexer(duplicateRejectingClient(), "idx", "1", reporter, DuplicatePolicy.OVERWRITE);
+		indexer.index("conversation", "a", new BytesArray("{}"));
+		verify(reporter).incrCounter(JOB_COUNTER.DUPLICATE_DOCS, 1l);
+		verify(reporter).incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, 1l);
+	}
+
+	/**
+	 * Creates are turned away as duplicates, plain index requests overwrite
+	 */
+	@SuppressWarnings("unchecked")
+	private static Client duplicateRejectingClient() {
+		Client client = mock(Client.class);
+		IndexRequestBuilder builder = mock(IndexRequestBuilder.class);
+		when(client.prepareIndex(anyString(), anyString())).thenReturn(builder);
+		when(builder.setId(anyString())).thenReturn(builder);
+		when(builder.setRouting(anyString())).thenReturn(builder);
+		when(builder.setSource(any(BytesReference.class))).thenReturn(builder);
+
+		IndexResponse response = mock(IndexResponse.class);
+		ListenableActionFuture<IndexResponse> overwritten = mock(ListenableActionFuture.class);
+		when(overwritten.actionGet()).thenReturn(response);
+		ListenableActionFuture<IndexResponse> rejected = mock(ListenableActionFuture.class);
+		when(rejected.actionGet()).thenThrow(new DocumentAlreadyExistsException(new ShardId("idx", 0), "conversation", "a"));
+
+		IndexRequestBuilder create = mock(IndexRequestBuilder.class);
+		when(create.execute()).thenReturn(rejected);
+		IndexRequestBuilder overwrite = mock(IndexRequestBuilder.class);
+		when(overwrite.execute()).thenReturn(overwritten);
+		when(builder.setCreate(true)).thenReturn(create);
+		when(builder.setCreate(false)).thenReturn(overwrite);
+		when(builder.execute()).thenReturn(overwritten);
+		return client;
+	}
+}
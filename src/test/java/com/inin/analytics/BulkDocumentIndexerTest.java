@@ -0,0 +1,129 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.rest.RestStatus;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.indexer.BulkDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DocumentFailureHandler;
+
+public class BulkDocumentIndexerTest {
+
+	@Test
+	public void testCreatedAndUpdatedCounted() throws Exception {
+		Reporter reporter = mock(Reporter.class);
+		BulkDocumentIndexer indexer = new BulkDocumentIndexer(mockClient(null), "idx", "1", reporter, 10, 5, 1);
+		indexer.index("doc", "new", new BytesArray("{}"));
+		indexer.index("doc", "existing", new BytesArray("{}"));
+		indexer.close();
+
+		verify(reporter).incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 1l);
+		verify(reporter).incrCounter(JOB_COUNTER.INDEX_DOC_NOT_CREATED, 1l);
+		verify(reporter).incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 0l);
+	}
+
+	@Test
+	public void testFailedDocFailsReducer() throws Exception {
+		Reporter reporter = mock(Reporter.class);
+		BulkDocumentIndexer indexer = new BulkDocumentIndexer(mockClient(null), "idx", "1", reporter, 10, 5, 1);
+		indexer.index("doc", "new", new BytesArray("{}"));
+		indexer.index("doc", "bad", new BytesArray("{\"a\":"));
+		try {
+			indexer.close();
+			fail("A doc that failed to index should fail the reducer without a failure handler");
+		} catch (IOException e) {
+			assertTrue(e.getCause().getMessage().contains("doc/bad"));
+		}
+		verify(reporter).incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1l);
+	}
+
+	@Test
+	public void testFailedDocHandedOff() throws Exception {
+		Reporter reporter = mock(Reporter.class);
+		DocumentFailureHandler handler = mock(DocumentFailureHandler.class);
+		BulkDocumentIndexer indexer = new BulkDocumentIndexer(mockClient(null), "idx", "1", reporter, 10, 5, 1, null, handler);
+		indexer.index("doc", "bad", new BytesArray("{\"a\":"));
+		indexer.index("doc", "new", new BytesArray("{}"));
+		indexer.close();
+
+		verify(handler).onFailure(eq("doc"), eq("bad"), any(BytesReference.class), contains("failed to parse"));
+		verify(reporter).incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 1l);
+		verify(reporter).incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1l);
+	}
+
+	@Test
+	public void testFailedBulkFailsReducer() throws Exception {
+		Reporter reporter = mock(Reporter.class);
+		DocumentFailureHandler handler = mock(DocumentFailureHandler.class);
+		// The handler is only for individual docs
+		BulkDocumentIndexer indexer = new BulkDocumentIndexer(mockClient(new IOException("node went away")), "idx", "1", reporter, 10, 5, 1, null, handler);
+		indexer.index("doc", "new", new BytesArray("{}"));
+		indexer.index("doc", "existing", new BytesArray("{}"));
+		try {
+			indexer.close();
+			fail("A failed bulk should fail the reducer");
+		} catch (IOException e) {
+			assertTrue(e.getCause().getMessage().contains("node went away"));
+		}
+		verify(reporter).incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 2l);
+	}
+
+	/**
+	 * Answers bulks right away. Ids say what happens to each doc: "new" is created, "bad" fails to parse and
+	 * anything else updates an existing doc.
+	 *
+	 * @param bulkFailure Fail every bulk as a whole instead, null to answer per doc
+	 * @return Client
+	 */
+	private static Client mockClient(final Throwable bulkFailure) {
+		Client client = mock(Client.class);
+		doAnswer(new Answer<Void>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public Void answer(InvocationOnMock invocation) {
+				BulkRequest request = (BulkRequest) invocation.getArguments()[0];
+				ActionListener<BulkResponse> listener = (ActionListener<BulkResponse>) invocation.getArguments()[1];
+				if(bulkFailure != null) {
+					listener.onFailure(bulkFailure);
+					return null;
+				}
+
+				BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+				for(int x = 0; x < items.length; x++) {
+					IndexRequest doc = (IndexRequest) request.requests().get(x);
+					if(doc.id().equals("bad")) {
+						items[x] = new BulkItemResponse(x, "index", new BulkItemResponse.Failure("idx", "doc", doc.id(), "MapperParsingException[failed to parse]", RestStatus.BAD_REQUEST));
+					} else {
+						items[x] = new BulkItemResponse(x, "index", new IndexResponse("idx", "doc", doc.id(), 1, doc.id().equals("new")));
+					}
+				}
+				listener.onResponse(new BulkResponse(items, 1));
+				return null;
+			}
+		}).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+		return client;
+	}
+}
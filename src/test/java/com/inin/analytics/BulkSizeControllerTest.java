@@ -0,0 +1,66 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.indexer.BulkSizeController;
+
+public class BulkSizeControllerTest {
+
+	@Test
+	public void testGrowsUntilThroughputPlateaus() {
+		BulkSizeController controller = new BulkSizeController(1000, 5000000, 1);
+		assertFalse(controller.onBulkComplete(1000, 1000, 500, 0, false));
+		assertEquals(1500, controller.getBulkActions());
+		assertEquals(7500000, controller.getBulkBytes());
+
+		assertFalse(controller.onBulkComplete(1500, 1000, 500, 0, false));
+		assertEquals(2250, controller.getBulkActions());
+
+		// No better than the last one, hold the size from here on
+		controller.onBulkComplete(2250, 1500, 500, 0, false);
+		assertEquals(2250, controller.getBulkActions());
+		controller.onBulkComplete(2250, 500, 500, 0, false);
+		assertEquals(2250, controller.getBulkActions());
+	}
+
+	@Test
+	public void testBacksOffUnderPressure() {
+		BulkSizeController controller = new BulkSizeController(1000, 5000000, 1);
+		assertTrue(controller.onBulkComplete(1000, 1000, 500, 0, true));
+		assertEquals(500, controller.getBulkActions());
+
+		assertTrue(controller.onBulkComplete(500, 1000, BulkSizeController.MAX_BULK_LATENCY_MS + 1, 0, false));
+		assertEquals(250, controller.getBulkActions());
+
+		assertTrue(controller.onBulkComplete(250, 1000, 1000, 500, false));
+		assertTrue(controller.onMemorySample(0.95, 0));
+		assertTrue(controller.onMemorySample(0, 0.95));
+		assertFalse(controller.onMemorySample(0.5, 0.5));
+		assertEquals(5, controller.getBackoffs());
+
+		// Never shrinks past the floor
+		for(int x = 0; x < 20; x++) {
+			controller.onMemorySample(1, 1);
+		}
+		assertEquals(Math.round(1000 * BulkSizeController.MIN_SCALE), controller.getBulkActions());
+	}
+
+	@Test
+	public void testConcurrencyGrowsOnceBulkSizeMaxesOut() {
+		BulkSizeController controller = new BulkSizeController(10, 1000, 3);
+		int docsPerSec = 1;
+		for(int x = 0; x < 20; x++) {
+			docsPerSec *= 2;
+			controller.onBulkComplete(docsPerSec, 1000, 100, 0, false);
+		}
+		assertEquals(Math.round(10 * BulkSizeController.MAX_SCALE), controller.getBulkActions());
+		assertEquals(3, controller.getConcurrentRequests());
+
+		controller.onBulkComplete(10, 1000, 100, 0, true);
+		assertEquals(2, controller.getConcurrentRequests());
+	}
+}
@@ -0,0 +1,116 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.DedupeCombiner;
+import com.inin.analytics.elasticsearch.DedupeRule;
+import com.inin.analytics.elasticsearch.indexer.DedupingDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+
+public class DedupeTest {
+	private DedupeRule versionRule = new DedupeRule(DedupeRule.Mode.VERSION_FIELD, "version");
+
+	@Test
+	public void testGetVersion() throws IOException {
+		assertEquals(7, versionRule.getVersion(new BytesArray("{\"nested\":{\"version\":99},\"tags\":[1,2],\"version\":7}")));
+		assertEquals(8, versionRule.getVersion(new BytesArray("{\"version\":\"8\"}")));
+		assertEquals(DedupeRule.MISSING_VERSION, versionRule.getVersion(new BytesArray("{\"nested\":{\"version\":99}}")));
+		assertEquals(0, new DedupeRule(DedupeRule.Mode.LAST_ARRIVAL, null).getVersion(new BytesArray("{\"version\":3}")));
+	}
+
+	@Test
+	public void testUnparsableSourceMissesVersion() throws IOException {
+		assertEquals(DedupeRule.MISSING_VERSION, versionRule.getVersion(new BytesArray("not json")));
+		assertEquals(DedupeRule.MISSING_VERSION, versionRule.getVersion(new BytesArray("{\"other\":[1,")));
+		assertEquals(DedupeRule.MISSING_VERSION, versionRule.getVersion(new BytesArray("")));
+
+		// Still handed to the indexer, which quarantines or fails on it
+		RecordingIndexer delegate = new RecordingIndexer();
+		DedupingDocumentIndexer indexer = new DedupingDocumentIndexer(delegate, versionRule, mock(Reporter.class));
+		indexer.index("conversation", "a", new BytesArray("{\"version\":"));
+		indexer.index("conversation", "b", new BytesArray("{\"version\":1}"));
+		indexer.close();
+		assertEquals(Arrays.asList("conversation|a|{\"version\":", "conversation|b|{\"version\":1}"), delegate.docs);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCombinerPassesBadDocsThrough() throws IOException {
+		DedupeCombiner combiner = new DedupeCombiner();
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.DEDUPE_WINNER.toString(), "version_field");
+		job.set(ConfigParams.DEDUPE_VERSION_FIELD.toString(), "version");
+		combiner.configure(job);
+
+		Text key = new Text("idx|1");
+		OutputCollector<Text, Text> output = mock(OutputCollector.class);
+		combiner.reduce(key, Arrays.asList(new Text("no separators"), new Text("t|a|not json"), new Text("t|a|{\"version\":1}")).iterator(), output, mock(Reporter.class));
+
+		verify(output).collect(key, new Text("no separators"));
+		verify(output).collect(key, new Text("t|a|{\"version\":1}"));
+	}
+
+	@Test
+	public void testIndexerKeepsHighestVersion() throws IOException {
+		RecordingIndexer delegate = new RecordingIndexer();
+		Reporter reporter = mock(Reporter.class);
+		DedupingDocumentIndexer indexer = new DedupingDocumentIndexer(delegate, versionRule, reporter);
+		byte[] buffer = "{\"version\":2}{\"version\":1}{\"version\":5}".getBytes();
+		// Sources are views over one buffer, like the reducer's reused Text
+		indexer.index("conversation", "a", new BytesArray(buffer, 0, 13));
+		indexer.index("conversation", "a", new BytesArray(buffer, 13, 13));
+		indexer.index("conversation", "b", new BytesArray(buffer, 26, 13));
+		indexer.close();
+
+		assertEquals(Arrays.asList("conversation|a|{\"version\":2}", "conversation|b|{\"version\":5}"), delegate.docs);
+		verify(reporter).incrCounter(JOB_COUNTER.DOCS_COLLAPSED, 1l);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCombinerLastArrivalWins() throws IOException {
+		DedupeCombiner combiner = new DedupeCombiner();
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.DEDUPE_WINNER.toString(), "last_arrival");
+		combiner.configure(job);
+
+		Text key = new Text("idx|1");
+		OutputCollector<Text, Text> output = mock(OutputCollector.class);
+		Reporter reporter = mock(Reporter.class);
+		combiner.reduce(key, Arrays.asList(new Text("t|a|{\"n\":1}"), new Text("t|b|{\"n\":1}"), new Text("t|a|{\"n\":2}")).iterator(), output, reporter);
+
+		verify(output).collect(key, new Text("t|a|{\"n\":2}"));
+		verify(output).collect(key, new Text("t|b|{\"n\":1}"));
+		verify(reporter).incrCounter(JOB_COUNTER.DOCS_COLLAPSED, 1l);
+	}
+
+	private static class RecordingIndexer implements DocumentIndexer {
+		private List<String> docs = new ArrayList<>();
+
+		@Override
+		public void index(String indexType, String docId, BytesReference source) throws IOException {
+			docs.add(indexType + "|" + docId + "|" + source.toUtf8());
+		}
+
+		@Override
+		public void close() throws IOException {
+		}
+	}
+}
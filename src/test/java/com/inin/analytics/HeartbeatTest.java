@@ -0,0 +1,54 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.Heartbeat;
+
+public class HeartbeatTest {
+
+	@Test
+	public void testReportsWhilePhasesRun() throws Exception {
+		Reporter reporter = mock(Reporter.class);
+		Heartbeat heartbeat = new Heartbeat(reporter, 10);
+		try {
+			Heartbeat.Phase snapshot = heartbeat.start("snapshotting a");
+			Heartbeat.Phase upload = heartbeat.start("uploading shard 3");
+			upload.setProgress(42, 100);
+			assertEquals("snapshotting a, uploading shard 3 42%", heartbeat.getStatus());
+
+			Thread.sleep(100);
+			verify(reporter, atLeastOnce()).progress();
+			verify(reporter, atLeastOnce()).setStatus("snapshotting a, uploading shard 3 42%");
+
+			snapshot.close();
+			upload.close();
+			assertEquals("", heartbeat.getStatus());
+
+			// Nothing running, nothing to vouch for
+			Thread.sleep(50);
+			reset(reporter);
+			Thread.sleep(100);
+			verify(reporter, never()).progress();
+		} finally {
+			heartbeat.close();
+		}
+	}
+
+	@Test
+	public void testWithoutReporter() {
+		Heartbeat heartbeat = new Heartbeat(null);
+		Heartbeat.Phase phase = heartbeat.start("flushing a");
+		phase.setPercent(150);
+		assertEquals("flushing a 100%", heartbeat.getStatus());
+		phase.close();
+		heartbeat.close();
+	}
+}
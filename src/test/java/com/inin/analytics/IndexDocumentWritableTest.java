@@ -0,0 +1,205 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.BaseESDocumentMapper;
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.DedupeRule;
+import com.inin.analytics.elasticsearch.IndexDocumentReducer;
+import com.inin.analytics.elasticsearch.IndexDocumentWritable;
+import com.inin.analytics.elasticsearch.IndexShardKey;
+import com.inin.analytics.elasticsearch.example.ExampleIndexingReducerImpl;
+import com.inin.analytics.elasticsearch.indexer.DedupingDocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+
+public class IndexDocumentWritableTest {
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		// Ids may hold the separator
+		IndexDocumentWritable document = new IndexDocumentWritable("doc", "a|b", new BytesArray("{\"a\":\"|\"}"));
+		document.setShard("conversation", "org1");
+		document.setVersion(42);
+
+		IndexDocumentWritable copy = new IndexDocumentWritable();
+		deserialize(serialize(document), copy);
+		assertEquals("conversation", copy.getIndex());
+		assertEquals("org1", copy.getRouting());
+		assertEquals("doc", copy.getIndexType());
+		assertEquals("a|b", copy.getDocId());
+		assertTrue(copy.hasVersion());
+		assertEquals(42, copy.getVersion());
+		assertEquals("{\"a\":\"|\"}", copy.getSource().toUtf8());
+
+		// Reusing the instance clears what the next doc doesn't carry
+		deserialize(serialize(new IndexDocumentWritable("doc", "c", new BytesArray("{}"))), copy);
+		assertNull(copy.getIndex());
+		assertNull(copy.getRouting());
+		assertFalse(copy.hasVersion());
+		assertEquals("c", copy.getDocId());
+		assertEquals("{}", copy.getSource().toUtf8());
+	}
+
+	@Test
+	public void testNoBiggerThanText() throws Exception {
+		// Length prefixes take the place of the separators, all that's added is the flags byte
+		String json = "{\"conversationId\":\"a\"}";
+		IndexDocumentWritable document = new IndexDocumentWritable("doc", "a", new BytesArray(json));
+		int textBytes = serialize(new Text("doc|a|" + json)).length;
+		assertTrue(serialize(document).length <= textBytes + 1);
+	}
+
+	@Test
+	public void testKeysSortWithinShard() throws Exception {
+		List<IndexShardKey> keys = new ArrayList<>();
+		keys.add(key("idx", "12", "2015-03"));
+		keys.add(key("idx", "123", "2015-01"));
+		keys.add(key("idx", "12", "2015-01"));
+		keys.add(key("idx", "12", null));
+		Collections.sort(keys);
+		assertEquals(Arrays.asList(key("idx", "12", null), key("idx", "12", "2015-01"), key("idx", "12", "2015-03"), key("idx", "123", "2015-01")), keys);
+
+		// The raw comparator agrees without deserializing
+		WritableComparator comparator = WritableComparator.get(IndexShardKey.class);
+		for(int x = 0; x < keys.size() - 1; x++) {
+			byte[] a = serialize(keys.get(x));
+			byte[] b = serialize(keys.get(x + 1));
+			assertTrue(comparator.compare(a, 0, a.length, b, 0, b.length) < 0);
+		}
+
+		IndexShardKey.GroupingComparator grouping = new IndexShardKey.GroupingComparator();
+		byte[] a = serialize(key("idx", "12", "2015-01"));
+		byte[] b = serialize(key("idx", "12", "2015-03"));
+		byte[] c = serialize(key("idx", "123", "2015-01"));
+		assertEquals(0, grouping.compare(a, 0, a.length, b, 0, b.length));
+		assertTrue(grouping.compare(a, 0, a.length, c, 0, c.length) < 0);
+	}
+
+	@Test
+	public void testPartitionsLikeTextKeys() {
+		HashPartitioner<Object, Object> partitioner = new HashPartitioner<>();
+		for(int routing = 0; routing < 50; routing++) {
+			assertEquals(partitioner.getPartition(new Text("idx|" + routing), null, 7),
+					partitioner.getPartition(key("idx", Integer.toString(routing), "2015-01-01T00:00:00Z"), null, 7));
+		}
+	}
+
+	@Test
+	public void testMapperMovesShardOntoKey() throws Exception {
+		final List<String> collected = new ArrayList<>();
+		OutputCollector<IndexShardKey, IndexDocumentWritable> output = new OutputCollector<IndexShardKey, IndexDocumentWritable>() {
+			@Override
+			public void collect(IndexShardKey key, IndexDocumentWritable document) {
+				collected.add(key.getIndex() + "," + key.getRouting() + "," + key.getSortValue() + "," + document.getIndex() + "," + document.getDocId());
+			}
+		};
+
+		IndexDocumentWritable document = new IndexDocumentWritable("doc", "1", new BytesArray("{}"));
+		document.setShard("conversation", "org1");
+		BaseESDocumentMapper mapper = new BaseESDocumentMapper();
+		mapper.configure(new JobConf(false));
+		mapper.map(NullWritable.get(), document, output, mock(Reporter.class));
+
+		JobConf job = new JobConf(false);
+		job.setBoolean(ConfigParams.DEDUPE_ENABLED.toString(), true);
+		document.setShard("conversation", "org1");
+		mapper.configure(job);
+		mapper.map(NullWritable.get(), document, output, mock(Reporter.class));
+
+		assertEquals(Arrays.asList("conversation,org1,,null,1", "conversation,org1,doc|1,null,1"), collected);
+	}
+
+	@Test
+	public void testConfigureSetsKeyComparators() {
+		JobConf job = new JobConf();
+		IndexDocumentReducer.configure(job, ExampleIndexingReducerImpl.class);
+		assertEquals(IndexShardKey.Comparator.class, job.getOutputKeyComparator().getClass());
+		assertEquals(IndexShardKey.GroupingComparator.class, job.getOutputValueGroupingComparator().getClass());
+	}
+
+	@Test
+	public void testDedupeCombinerRejected() {
+		JobConf job = new JobConf();
+		DedupeRule.configure(job);
+		try {
+			IndexDocumentReducer.configure(job, ExampleIndexingReducerImpl.class);
+			fail("DedupeCombiner can't take IndexDocumentWritable");
+		} catch (IllegalArgumentException e) {
+		}
+
+		job = new JobConf();
+		IndexDocumentReducer.configure(job, ExampleIndexingReducerImpl.class);
+		try {
+			DedupeRule.configure(job);
+			fail("DedupeCombiner can't take IndexDocumentWritable");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testDedupeOnCarriedVersion() throws Exception {
+		final List<String> indexed = new ArrayList<>();
+		DocumentIndexer delegate = new DocumentIndexer() {
+			@Override
+			public void index(String indexType, String docId, BytesReference source) {
+				indexed.add(docId + source.toUtf8());
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		Reporter reporter = mock(Reporter.class);
+		DedupingDocumentIndexer indexer = new DedupingDocumentIndexer(delegate, new DedupeRule(DedupeRule.Mode.LAST_ARRIVAL, null), reporter);
+		indexer.index("doc", "1", new BytesArray("{\"v\":2}"), 2);
+		indexer.index("doc", "1", new BytesArray("{\"v\":1}"), 1);
+		indexer.close();
+		assertEquals(Collections.singletonList("1{\"v\":2}"), indexed);
+		verify(reporter).incrCounter(JOB_COUNTER.DOCS_COLLAPSED, 1l);
+	}
+
+	private static IndexShardKey key(String index, String routing, String sortValue) {
+		IndexShardKey key = new IndexShardKey();
+		key.set(index, routing, sortValue);
+		return key;
+	}
+
+	private static byte[] serialize(Writable writable) throws Exception {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		writable.write(buffer);
+		return Arrays.copyOf(buffer.getData(), buffer.getLength());
+	}
+
+	private static void deserialize(byte[] bytes, Writable writable) throws Exception {
+		DataInputBuffer buffer = new DataInputBuffer();
+		buffer.reset(bytes, bytes.length);
+		writable.readFields(buffer);
+	}
+}
@@ -0,0 +1,226 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.MergeStrategy;
+import com.inin.analytics.elasticsearch.daemon.DaemonProtocol;
+import com.inin.analytics.elasticsearch.daemon.IndexingDaemonClient;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+
+public class IndexingDaemonClientTest {
+	private ServerSocket serverSocket;
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		serverSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		serverSocket.close();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testShardStreamedAndCommitted() throws Exception {
+		// Plays the daemon, reading back what the client sent
+		Future<List<String>> received = executor.submit(new Callable<List<String>>() {
+			@Override
+			public List<String> call() throws Exception {
+				List<String> received = new ArrayList<>();
+				try (Socket socket = serverSocket.accept()) {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					assertEquals(DaemonProtocol.BEGIN_SHARD, in.readByte());
+					received.add(in.readUTF() + "|" + DaemonProtocol.readString(in) + "|" + in.readInt());
+					assertEquals("template", DaemonProtocol.readString(in));
+					assertNull(DaemonProtocol.readString(in));
+					// Nothing else is sent until the daemon has room for the shard
+					assertEquals(0, in.available());
+					out.writeByte(DaemonProtocol.OK);
+					out.flush();
+
+					byte command;
+					while((command = in.readByte()) == DaemonProtocol.DOC) {
+						String type = in.readUTF();
+						String id = DaemonProtocol.readString(in);
+						byte[] source = new byte[in.readInt()];
+						in.readFully(source);
+						received.add(type + "|" + id + "|" + new String(source, "UTF-8"));
+					}
+
+					assertEquals(DaemonProtocol.COMMIT_SHARD, command);
+					received.add(in.readUTF() + "|" + in.readInt() + "|" + in.readInt());
+					MergeStrategy mergeStrategy = DaemonProtocol.readMergeStrategy(in);
+					assertEquals(MergeStrategy.Mode.THRESHOLD, mergeStrategy.getMode());
+					assertEquals(0.2f, mergeStrategy.getDeletedDocsRatioThreshold(), 0);
+					received.add(DaemonProtocol.readString(in) + "|" + in.readBoolean());
+
+					out.writeByte(DaemonProtocol.OK);
+					DaemonProtocol.writeCounters(out, Collections.singletonMap(JOB_COUNTER.INDEX_DOC_CREATED.name(), 2l));
+					out.flush();
+				}
+				return received;
+			}
+		});
+
+		try (IndexingDaemonClient client = new IndexingDaemonClient(serverSocket.getLocalPort())) {
+			DocumentIndexer indexer = client.beginShard("conversation", "org1", 5, "template", null);
+			indexer.index("doc", "1", new BytesArray("{\"a\":1}"));
+			indexer.index("doc", "2", new BytesArray("{\"a\":2}"));
+			indexer.close();
+			Map<String, Long> counters = client.commitShard("/tmp/destination", 3, 5, new MergeStrategy(MergeStrategy.Mode.THRESHOLD, -1, 10, 0.2f, 0), "attempt_r_000003_0", true);
+			assertEquals(Long.valueOf(2), counters.get(JOB_COUNTER.INDEX_DOC_CREATED.name()));
+		}
+
+		List<String> expected = new ArrayList<>();
+		expected.add("conversation|org1|5");
+		expected.add("doc|1|{\"a\":1}");
+		expected.add("doc|2|{\"a\":2}");
+		expected.add("/tmp/destination|3|5");
+		expected.add("attempt_r_000003_0|true");
+		assertEquals(expected, received.get());
+	}
+
+	@Test
+	public void testFailedShardThrows() throws Exception {
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try (Socket socket = serverSocket.accept()) {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					assertEquals(DaemonProtocol.BEGIN_SHARD, in.readByte());
+					in.readUTF();
+					DaemonProtocol.readString(in);
+					in.readInt();
+					DaemonProtocol.readString(in);
+					DaemonProtocol.readString(in);
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeByte(DaemonProtocol.OK);
+					out.flush();
+					assertEquals(DaemonProtocol.COMMIT_SHARD, in.readByte());
+					in.readUTF();
+					in.readInt();
+					in.readInt();
+					DaemonProtocol.readMergeStrategy(in);
+					DaemonProtocol.readString(in);
+					in.readBoolean();
+
+					out.writeByte(DaemonProtocol.ERROR);
+					DaemonProtocol.writeCounters(out, Collections.<String, Long>emptyMap());
+					DaemonProtocol.writeString(out, "disk full");
+					out.flush();
+					// Hold the connection open until the client reads the reply
+					in.read();
+				}
+				return null;
+			}
+		});
+
+		try (IndexingDaemonClient client = new IndexingDaemonClient(serverSocket.getLocalPort())) {
+			client.beginShard("conversation", "org1", 1, null, null).close();
+			try {
+				client.commitShard("/tmp/destination", -1, 5, MergeStrategy.DEFAULT, null, false);
+				fail("The daemon's failure should fail the reducer");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("disk full"));
+			}
+		}
+	}
+
+	@Test
+	public void testShardThatCantStartThrows() throws Exception {
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try (Socket socket = serverSocket.accept()) {
+					DataInputStream in = new DataInputStream(socket.getInputStream());
+					in.readByte();
+					in.readUTF();
+					DaemonProtocol.readString(in);
+					in.readInt();
+					DaemonProtocol.readString(in);
+					DaemonProtocol.readString(in);
+
+					DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+					out.writeByte(DaemonProtocol.ERROR);
+					DaemonProtocol.writeString(out, "bad template");
+					out.flush();
+					in.read();
+				}
+				return null;
+			}
+		});
+
+		try (IndexingDaemonClient client = new IndexingDaemonClient(serverSocket.getLocalPort())) {
+			try {
+				client.beginShard("conversation", "org1", 1, "template", "{");
+				fail("The daemon failing to create the index should fail the reducer");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("bad template"));
+			}
+		}
+	}
+
+	@Test
+	public void testStuckDaemonTimesOut() throws Exception {
+		executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try (Socket socket = serverSocket.accept()) {
+					// Never acks
+					while(socket.getInputStream().read() >= 0);
+				}
+				return null;
+			}
+		});
+
+		try (IndexingDaemonClient client = new IndexingDaemonClient(serverSocket.getLocalPort(), 200)) {
+			try {
+				client.beginShard("conversation", "org1", 1, null, null);
+				fail("A daemon that never answers shouldn't hang the reducer");
+			} catch (IOException e) {
+				assertTrue(e.getMessage().contains("Timed out"));
+			}
+		}
+	}
+
+	@Test
+	public void testCounterRelay() {
+		DaemonProtocol.CounterRelay relay = new DaemonProtocol.CounterRelay();
+		relay.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 2);
+		relay.incrCounter(JOB_COUNTER.INDEX_DOC_CREATED, 3);
+		relay.incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1);
+
+		Map<String, Long> counters = relay.drain();
+		assertEquals(Long.valueOf(5), counters.get(JOB_COUNTER.INDEX_DOC_CREATED.name()));
+		assertEquals(Long.valueOf(1), counters.get(JOB_COUNTER.INDEXING_DOC_FAIL.name()));
+		assertTrue(relay.drain().isEmpty());
+	}
+}
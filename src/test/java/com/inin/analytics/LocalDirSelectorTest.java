@@ -0,0 +1,109 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.inin.analytics.elasticsearch.LocalDirSelector;
+
+public class LocalDirSelectorTest {
+	private static final long GB = 1024l * 1024l * 1024l;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testParse() {
+		assertEquals(Arrays.asList("/disk1/es/", "/disk2/es/"), LocalDirSelector.parse(" /disk1/es/, /disk2/es/,"));
+		assertEquals(Arrays.asList("/tmp/es/"), LocalDirSelector.parse("/tmp/es/"));
+	}
+
+	@Test
+	public void testRankPrefersLeastUsed() throws IOException {
+		File busy = folder.newFolder("busy");
+		File idle = folder.newFolder("idle");
+		new File(busy, "0attempt_1").mkdir();
+		new File(busy, "1attempt_1").mkdir();
+		new File(idle, "2attempt_1").mkdir();
+
+		List<String> ranked = LocalDirSelector.rank(Arrays.asList(busy.getPath(), idle.getPath()));
+		assertEquals(Arrays.asList(idle.getPath(), busy.getPath()), ranked);
+	}
+
+	@Test
+	public void testOnlyReducerDirsCount() throws IOException {
+		File littered = folder.newFolder("littered");
+		File used = folder.newFolder("used");
+		new File(littered, "lost+found").mkdir();
+		new File(littered, "scratch").mkdir();
+		new File(used, "0attempt_1").mkdir();
+
+		List<String> ranked = LocalDirSelector.rank(Arrays.asList(used.getPath(), littered.getPath()));
+		assertEquals(Arrays.asList(littered.getPath(), used.getPath()), ranked);
+	}
+
+	@Test
+	public void testFreeSpaceComesFirst() {
+		List<String> dirs = Arrays.asList("/disk1", "/disk2", "/disk3");
+		Map<String, Long> usableSpace = new HashMap<>();
+		usableSpace.put("/disk1", 10l * GB);
+		usableSpace.put("/disk2", 900l * GB);
+		usableSpace.put("/disk3", 880l * GB);
+		Map<String, Integer> reducersUsing = new HashMap<>();
+		reducersUsing.put("/disk1", 0);
+		reducersUsing.put("/disk2", 2);
+		reducersUsing.put("/disk3", 1);
+
+		// The nearly full disk goes last even though it's idle, disks with about the same room go by usage
+		assertEquals(Arrays.asList("/disk3", "/disk2", "/disk1"), LocalDirSelector.rank(dirs, 0, usableSpace, reducersUsing));
+
+		// Equally used, so the partition spreads reducers across the roomy disks
+		reducersUsing.put("/disk2", 1);
+		assertEquals("/disk2", LocalDirSelector.rank(dirs, 1, usableSpace, reducersUsing).get(0));
+		assertEquals("/disk3", LocalDirSelector.rank(dirs, 2, usableSpace, reducersUsing).get(0));
+	}
+
+	@Test
+	public void testTiesSpreadByPartition() throws IOException {
+		List<String> dirs = Arrays.asList(folder.newFolder("disk1").getPath(), folder.newFolder("disk2").getPath(), folder.newFolder("disk3").getPath());
+		// Reducers starting at once all see empty directories
+		assertEquals(dirs.get(0), LocalDirSelector.rank(dirs, 0).get(0));
+		assertEquals(dirs.get(1), LocalDirSelector.rank(dirs, 1).get(0));
+		assertEquals(dirs.get(2), LocalDirSelector.rank(dirs, 2).get(0));
+		assertEquals(dirs.get(0), LocalDirSelector.rank(dirs, 3).get(0));
+
+		// Usage still comes first
+		new File(LocalDirSelector.getReducerDir(dirs.get(1), "1attempt_1")).mkdir();
+		assertEquals(Arrays.asList(dirs.get(2), dirs.get(0), dirs.get(1)), LocalDirSelector.rank(dirs, 1));
+	}
+
+	@Test
+	public void testReducerDirIsAChild() throws IOException {
+		File base = folder.newFolder("es");
+		// With or without the trailing slash
+		assertEquals(new File(base, "0attempt_1").getPath() + "/", LocalDirSelector.getReducerDir(base.getPath(), "0attempt_1"));
+		assertEquals(new File(base, "0attempt_1").getPath() + "/", LocalDirSelector.getReducerDir(base.getPath() + "/", "0attempt_1"));
+	}
+
+	@Test
+	public void testSameDeviceFallsBack() throws IOException {
+		// Everything in a temp folder shares a device, so data can't avoid the snapshot disk
+		String data1 = folder.newFolder("data1").getPath();
+		String data2 = folder.newFolder("data2").getPath();
+		new File(data1, "0attempt_1").mkdir();
+		String snapshot = folder.newFolder("snapshot").getPath();
+
+		LocalDirSelector selector = new LocalDirSelector(Arrays.asList(data1, data2), Arrays.asList(snapshot), Integer.MAX_VALUE);
+		assertEquals(snapshot, selector.getSnapshotDir());
+		assertEquals(Arrays.asList(data2), selector.getDataDirs());
+	}
+}
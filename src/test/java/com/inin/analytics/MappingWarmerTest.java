@@ -0,0 +1,123 @@
+package com.inin.analytics;
+
+import static org.elasticsearch.common.settings.ImmutableSettings.settingsBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.ESEmbededContainer;
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.MappingWarmer;
+import com.inin.analytics.elasticsearch.indexer.SingleDocumentIndexer;
+
+public class MappingWarmerTest {
+	private static File workingDir;
+	private static ESEmbededContainer esEmbededContainer;
+
+	// Each type brings fields the other doesn't
+	private static final String[][] DOCS = {
+		{"conversation", "1", "{\"conversationId\":\"1\",\"startTime\":1426000000000}"},
+		{"conversation", "2", "{\"conversationId\":\"2\",\"media\":{\"type\":\"voice\"}}"},
+		{"segment", "3", "{\"segmentType\":\"hold\",\"durationMs\":1500}"},
+	};
+
+	@BeforeClass
+	public static void setUp() throws Exception {
+		if(!System.getProperty("java.specification.version").startsWith("1.")) {
+			// Elasticsearch 1.x only runs on Java 7 & 8, the embedded node tests are skipped elsewhere
+			return;
+		}
+		workingDir = Files.createTempDirectory("mappingWarmer").toFile();
+		esEmbededContainer = new ESEmbededContainer.Builder()
+		.withNodeName("mappingWarmerTest")
+		.withWorkingDir(new File(workingDir, "data").getPath() + "/")
+		.withClusterName("mappingWarmerTest")
+		.withSnapshotWorkingLocation(new File(workingDir, "snapshot").getPath() + "/")
+		.withInMemoryBackedIndexes(true)
+		.build();
+	}
+
+	@AfterClass
+	public static void tearDown() throws Exception {
+		if(esEmbededContainer != null) {
+			esEmbededContainer.close();
+		}
+		if(workingDir != null) {
+			FileUtils.deleteDirectory(workingDir);
+		}
+	}
+
+	@Test
+	public void testCountChangedTypes() {
+		Map<String, String> before = new HashMap<>();
+		before.put("conversation", "{\"conversation\":{\"properties\":{\"id\":{\"type\":\"string\"}}}}");
+		before.put("segment", "{\"segment\":{}}");
+
+		Map<String, String> after = new HashMap<>(before);
+		assertEquals(0, MappingWarmer.countChangedTypes(before, after));
+
+		after.put("conversation", "{\"conversation\":{\"properties\":{\"id\":{\"type\":\"string\"},\"color\":{\"type\":\"string\"}}}}");
+		after.put("participant", "{\"participant\":{}}");
+		assertEquals(2, MappingWarmer.countChangedTypes(before, after));
+	}
+
+	@Test
+	public void testWarmedMappingCompleteBeforeIndexing() throws IOException {
+		assumeTrue(esEmbededContainer != null);
+		createIndex("warmed");
+		MappingWarmer warmer = new MappingWarmer(esEmbededContainer.getNode(), "warmed", "1");
+		for(String[] doc : DOCS) {
+			warmer.sample(doc[0], doc[1], new BytesArray(doc[2]));
+		}
+		assertEquals(2, warmer.apply());
+
+		// Every field is in the cluster state before a single doc is indexed
+		Map<String, String> before = MappingWarmer.getMappings(esEmbededContainer.getNode(), "warmed");
+		assertTrue(before.get("conversation").contains("startTime"));
+		assertTrue(before.get("conversation").contains("media"));
+		assertTrue(before.get("segment").contains("durationMs"));
+
+		// What the reducer reports as MAPPING_UPDATES_DURING_INDEXING
+		index("warmed");
+		assertEquals(0, MappingWarmer.countChangedTypes(before, MappingWarmer.getMappings(esEmbededContainer.getNode(), "warmed")));
+	}
+
+	@Test
+	public void testColdMappingUpdatedDuringIndexing() throws IOException {
+		assumeTrue(esEmbededContainer != null);
+		createIndex("cold");
+		Map<String, String> before = MappingWarmer.getMappings(esEmbededContainer.getNode(), "cold");
+		index("cold");
+		assertEquals(2, MappingWarmer.countChangedTypes(before, MappingWarmer.getMappings(esEmbededContainer.getNode(), "cold")));
+	}
+
+	private static void createIndex(String index) {
+		esEmbededContainer.getNode().client().admin().indices().prepareCreate(index).setSettings(settingsBuilder()
+				.put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1)
+				.put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)).get();
+		esEmbededContainer.getNode().client().admin().cluster().prepareHealth(index).setWaitForYellowStatus().get();
+	}
+
+	private static void index(String index) throws IOException {
+		DocumentIndexer indexer = new SingleDocumentIndexer(esEmbededContainer.getNode().client(), index, "1", mock(Reporter.class));
+		for(String[] doc : DOCS) {
+			indexer.index(doc[0], doc[1], new BytesArray(doc[2]));
+		}
+		indexer.close();
+	}
+}
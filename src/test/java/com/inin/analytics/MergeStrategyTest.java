@@ -0,0 +1,47 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.MergeStrategy;
+
+public class MergeStrategyTest {
+
+	@Test
+	public void testDefaultAlwaysOptimizes() {
+		MergeStrategy strategy = MergeStrategy.fromJobConf(new JobConf(false));
+		assertEquals(MergeStrategy.Mode.OPTIMIZE, strategy.getMode());
+		assertEquals(MergeStrategy.DEFAULT_MAX_NUM_SEGMENTS, strategy.getMaxNumSegments());
+		assertTrue(strategy.shouldMerge(1, 100, 0));
+	}
+
+	@Test
+	public void testSkip() {
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.MERGE_STRATEGY.toString(), "skip");
+		assertFalse(MergeStrategy.fromJobConf(job).shouldMerge(500, 100, 50));
+	}
+
+	@Test
+	public void testThreshold() {
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.MERGE_STRATEGY.toString(), "THRESHOLD");
+		job.setInt(ConfigParams.MERGE_SEGMENT_COUNT_THRESHOLD.toString(), 5);
+		job.setFloat(ConfigParams.MERGE_DELETED_DOCS_RATIO_THRESHOLD.toString(), 0.2f);
+		job.setInt(ConfigParams.MERGE_MAX_NUM_SEGMENTS.toString(), 2);
+		job.setInt(ConfigParams.FINAL_MERGE_THREADS.toString(), 2);
+		MergeStrategy strategy = MergeStrategy.fromJobConf(job);
+
+		assertEquals(2, strategy.getMaxNumSegments());
+		assertEquals(2, strategy.getMergeThreads());
+		assertFalse(strategy.shouldMerge(5, 100, 10));
+		assertTrue(strategy.shouldMerge(6, 100, 10));
+		assertTrue(strategy.shouldMerge(2, 70, 30));
+		assertFalse(strategy.shouldMerge(0, 0, 0));
+	}
+}
@@ -0,0 +1,60 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.indexer.DocumentIndexer;
+import com.inin.analytics.elasticsearch.indexer.ParallelDocumentIndexer;
+
+public class ParallelDocumentIndexerTest {
+
+	@Test
+	public void testEveryWorkerShutDownAfterAFailure() throws Exception {
+		final AtomicInteger closed = new AtomicInteger();
+		List<DocumentIndexer> delegates = new ArrayList<>();
+		for(int x = 0; x < 3; x++) {
+			final boolean failing = x == 0;
+			delegates.add(new DocumentIndexer() {
+				@Override
+				public void index(String indexType, String docId, BytesReference source) throws IOException {
+					if(failing) {
+						throw new IOException("mapping conflict");
+					}
+				}
+
+				@Override
+				public void close() {
+					closed.incrementAndGet();
+				}
+			});
+		}
+
+		// Small queues, so the failed worker's fills up
+		ParallelDocumentIndexer indexer = new ParallelDocumentIndexer(delegates, 2);
+		try {
+			for(int x = 0; x < 100; x++) {
+				indexer.index("doc", Integer.toString(x), new BytesArray("{}"));
+			}
+		} catch (IOException e) {
+			// Expected once the failure's noticed
+		}
+
+		try {
+			indexer.close();
+			fail("The worker's failure should fail the close");
+		} catch (IOException e) {
+			assertTrue(e.getCause().getMessage().contains("mapping conflict"));
+		}
+		assertEquals(3, closed.get());
+	}
+}
@@ -0,0 +1,140 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.BaseESReducer.JOB_COUNTER;
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.Quarantine;
+import com.inin.analytics.elasticsearch.indexer.DocumentFailureHandler;
+import com.inin.analytics.elasticsearch.indexer.SingleDocumentIndexer;
+
+public class QuarantineTest {
+	private File quarantineDir;
+	private Reporter reporter;
+
+	@Before
+	public void setUp() throws Exception {
+		quarantineDir = Files.createTempDirectory("quarantine").toFile();
+		reporter = mock(Reporter.class);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(quarantineDir);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		assertNull(Quarantine.fromJobConf(new JobConf(false), "attempt_r_000003_0"));
+	}
+
+	@Test
+	public void testBadDocsWrittenAsJsonLines() throws Exception {
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.QUARANTINE_PATH.toString(), quarantineDir.getAbsolutePath());
+		Quarantine quarantine = Quarantine.fromJobConf(job, "attempt_r_000003_0");
+		DocumentFailureHandler handler = quarantine.forShard("conversation", "org1", reporter);
+		handler.onFailure("doc", "1", new BytesArray("{\"a\":"), "MapperParsingException[failed to parse]");
+		handler.onFailure(null, null, new BytesArray("garbage"), "missing prefix");
+		quarantine.close();
+
+		List<String> lines = FileUtils.readLines(new File(quarantineDir, "quarantine-attempt_r_000003_0"));
+		assertEquals(2, lines.size());
+		Map<String, Object> record = XContentHelper.convertToMap(lines.get(0).getBytes("UTF-8"), false).v2();
+		assertEquals("conversation", record.get("index"));
+		assertEquals("org1", record.get("routing"));
+		assertEquals("doc", record.get("type"));
+		assertEquals("1", record.get("id"));
+		assertEquals("MapperParsingException[failed to parse]", record.get("error"));
+		assertEquals("{\"a\":", record.get("source"));
+		assertNull(XContentHelper.convertToMap(lines.get(1).getBytes("UTF-8"), false).v2().get("id"));
+		verify(reporter, times(2)).incrCounter(JOB_COUNTER.DOCS_QUARANTINED, 1l);
+	}
+
+	@Test
+	public void testFailureBudgetPerShard() throws Exception {
+		Quarantine quarantine = new Quarantine(new Path(quarantineDir.getAbsolutePath(), "quarantine"), new JobConf(false), 1);
+		DocumentFailureHandler handler = quarantine.forShard("conversation", "org1", reporter);
+		assertSame(handler, quarantine.forShard("conversation", "org1", reporter));
+		handler.onFailure("doc", "1", new BytesArray("{}"), "bad");
+
+		// Each shard gets its own budget
+		quarantine.forShard("conversation", "org2", reporter).onFailure("doc", "1", new BytesArray("{}"), "bad");
+
+		DocumentFailureHandler again = quarantine.forShard("conversation", "org3", reporter);
+		again.onFailure("doc", "1", new BytesArray("{}"), "bad");
+		try {
+			again.onFailure("doc", "2", new BytesArray("{}"), "worse");
+			fail("The second bad doc should be over the budget");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("conversation|org3"));
+			assertTrue(e.getMessage().contains("worse"));
+		}
+		quarantine.close();
+		assertEquals(4, FileUtils.readLines(new File(quarantineDir, "quarantine")).size());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSingleDocumentIndexerQuarantinesBadDocs() throws Exception {
+		Client client = mock(Client.class);
+		IndexRequestBuilder builder = mock(IndexRequestBuilder.class);
+		when(client.prepareIndex(anyString(), anyString())).thenReturn(builder);
+		when(builder.setId(anyString())).thenReturn(builder);
+		when(builder.setRouting(anyString())).thenReturn(builder);
+		when(builder.setSource(any(BytesReference.class))).thenReturn(builder);
+		when(builder.setCreate(anyBoolean())).thenReturn(builder);
+		ListenableActionFuture<IndexResponse> future = mock(ListenableActionFuture.class);
+		when(builder.execute()).thenReturn(future);
+		when(future.actionGet()).thenThrow(new MapperParsingException("failed to parse"));
+
+		DocumentFailureHandler handler = mock(DocumentFailureHandler.class);
+		BytesArray source = new BytesArray("{\"a\":");
+		new SingleDocumentIndexer(client, "idx", "1", reporter, null, handler).index("doc", "a", source);
+		verify(handler).onFailure(eq("doc"), eq("a"), eq(source), contains("failed to parse"));
+		verify(reporter).incrCounter(JOB_COUNTER.INDEXING_DOC_FAIL, 1l);
+
+		// Without a handler the reducer fails like it always has
+		try {
+			new SingleDocumentIndexer(client, "idx", "1", reporter).index("doc", "a", source);
+			fail("Should have failed on the bad doc");
+		} catch (MapperParsingException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.ConfigParams;
+import com.inin.analytics.elasticsearch.ResourceProfile;
+
+public class ResourceProfileTest {
+
+	@Test
+	public void testAutoTuneSpinningDisks() {
+		ResourceProfile profile = ResourceProfile.autoTune(4, 4096, 3276, 2, false, 4);
+		assertEquals(4, profile.getProcessors());
+		assertEquals("327mb", profile.getIndexBufferSize());
+		assertEquals(1, profile.getMergeThreads());
+		assertEquals(1638, profile.getMaxMergedSegmentMB());
+		assertEquals("50mb", profile.getMaxSnapshotBytesPerSec());
+	}
+
+	@Test
+	public void testAutoTuneSSD() {
+		ResourceProfile profile = ResourceProfile.autoTune(8, 2048, 8192, 1, true, 2);
+		assertEquals("204mb", profile.getIndexBufferSize());
+		assertEquals(4, profile.getMergeThreads());
+		assertEquals(1024, profile.getMaxMergedSegmentMB());
+		assertEquals("200mb", profile.getMaxSnapshotBytesPerSec());
+	}
+
+	@Test
+	public void testAutoTuneSmallContainer() {
+		ResourceProfile profile = ResourceProfile.autoTune(1, 256, 200, 1, false, 40);
+		assertEquals("32mb", profile.getIndexBufferSize());
+		assertEquals(256, profile.getMaxMergedSegmentMB());
+		assertEquals("20mb", profile.getMaxSnapshotBytesPerSec());
+	}
+
+	@Test
+	public void testDefaultsWithOverrides() {
+		JobConf job = new JobConf(false);
+		job.set(ConfigParams.INDEX_BUFFER_SIZE.toString(), "100mb");
+		job.setInt(ConfigParams.MERGE_THREADS.toString(), 3);
+
+		ResourceProfile profile = ResourceProfile.fromJobConf(job, null);
+		assertEquals(1, profile.getProcessors());
+		assertEquals("100mb", profile.getIndexBufferSize());
+		assertEquals(3, profile.getMergeThreads());
+		assertEquals(ResourceProfile.DEFAULT_MAX_MERGED_SEGMENT_MB, profile.getMaxMergedSegmentMB());
+		assertEquals(ResourceProfile.DEFAULT_MAX_SNAPSHOT_BYTES_PER_SEC, profile.getMaxSnapshotBytesPerSec());
+	}
+}
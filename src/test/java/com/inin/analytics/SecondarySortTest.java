@@ -0,0 +1,60 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.lib.HashPartitioner;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.SecondarySort;
+
+public class SecondarySortTest {
+
+	@Test
+	public void testSortsWithinShard() {
+		List<Text> keys = new ArrayList<>();
+		for(String key : Arrays.asList("idx|12|2015-03", "idx|123|2015-01", "idx|12|2015-01", "idx|12", "idx|123|2015-02")) {
+			keys.add(new Text(key));
+		}
+		Collections.sort(keys, new SecondarySort.ShardSortComparator());
+
+		// Shards stay contiguous even though idx|12 is a prefix of idx|123
+		assertEquals(Arrays.asList(new Text("idx|12"), new Text("idx|12|2015-01"), new Text("idx|12|2015-03"), 
+				new Text("idx|123|2015-01"), new Text("idx|123|2015-02")), keys);
+	}
+
+	@Test
+	public void testGroupsOnShard() throws Exception {
+		SecondarySort.ShardGroupingComparator grouping = new SecondarySort.ShardGroupingComparator();
+		byte[] a = serialize(new Text("idx|12|2015-01"));
+		byte[] b = serialize(new Text("idx|12|2015-03"));
+		byte[] c = serialize(new Text("idx|123|2015-01"));
+		assertEquals(0, grouping.compare(a, 0, a.length, b, 0, b.length));
+		assertTrue(grouping.compare(a, 0, a.length, c, 0, c.length) < 0);
+		assertTrue(new SecondarySort.ShardSortComparator().compare(a, 0, a.length, b, 0, b.length) < 0);
+	}
+
+	@Test
+	public void testPartitionsLikeUnsortedKeys() {
+		HashPartitioner<Text, Text> hashPartitioner = new HashPartitioner<>();
+		SecondarySort.ShardPartitioner partitioner = new SecondarySort.ShardPartitioner();
+		for(int routing = 0; routing < 50; routing++) {
+			Text unsorted = new Text("idx|" + routing);
+			Text sorted = new Text("idx|" + routing + "|2015-01-01T00:00:00Z");
+			assertEquals(hashPartitioner.getPartition(unsorted, null, 7), partitioner.getPartition(sorted, null, 7));
+		}
+	}
+
+	private static byte[] serialize(Text text) throws Exception {
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		text.write(buffer);
+		return Arrays.copyOf(buffer.getData(), buffer.getLength());
+	}
+}
@@ -0,0 +1,43 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.elasticsearch.cluster.routing.operation.hash.djb.DjbHashFunction;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.ShardConfig;
+import com.inin.analytics.elasticsearch.index.rotation.ElasticSearchIndexMetadata;
+import com.inin.analytics.elasticsearch.index.routing.ElasticsearchRoutingStrategyV1;
+
+public class ShardConfigTest {
+
+	@Test
+	public void testShardForRoutingMatchesRoutingStrategy() {
+		ShardConfig shardConfig = new ShardConfig(10l, 3l);
+		
+		ElasticSearchIndexMetadata indexMetadata = new ElasticSearchIndexMetadata();
+		indexMetadata.setNumShards(10);
+		indexMetadata.setNumShardsPerOrg(3);
+		ElasticsearchRoutingStrategyV1 strategy = new ElasticsearchRoutingStrategyV1();
+		strategy.configure(indexMetadata);
+		
+		// The routing strategy reverse engineers routing values off the same hash elasticsearch uses
+		for(int x = 0; x < 1000; x++) {
+			assertEquals(strategy.hash(Integer.toString(x)), shardConfig.getShardForRouting("conversation", Integer.toString(x)));
+		}
+	}
+	
+	@Test
+	public void testRoutingMatchesElasticsearchDjbHash() {
+		// Same shard PlainOperationRouting picks for a routing value
+		DjbHashFunction hashFunction = new DjbHashFunction();
+		for(long numShards : new long[] {1l, 3l, 10l}) {
+			ShardConfig shardConfig = new ShardConfig(numShards, 1l);
+			for(int x = 0; x < 1000; x++) {
+				String routing = "org" + x;
+				assertEquals(Math.abs(hashFunction.hash(routing) % (int) numShards), shardConfig.getShardForRouting("conversation", routing));
+			}
+		}
+		assertEquals(0, new ShardConfig(1l, 1l).getShardForRouting("conversation", "7"));
+	}
+}
@@ -0,0 +1,251 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.OutputStreamStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.ShardConfig;
+import com.inin.analytics.elasticsearch.transport.BaseTransport;
+import com.inin.analytics.elasticsearch.transport.LocalFSSnapshotTransport;
+
+public class SnapshotTransportTest {
+	private static final String SNAPSHOT_NAME = "snapshot";
+	private static final String INDEX = "conversation";
+	
+	private File workingDir;
+	private File destinationDir;
+	
+	@Before
+	public void setUp() throws Exception {
+		workingDir = Files.createTempDirectory("snapshotWorking").toFile();
+		destinationDir = Files.createTempDirectory("snapshotDestination").toFile();
+		
+		writeSnapshot(workingDir, "segment data");
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		FileUtils.deleteDirectory(workingDir);
+		FileUtils.deleteDirectory(destinationDir);
+	}
+	
+	@Test
+	public void testSingleShardBuildPlacedAtTargetShard() throws Exception {
+		new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath()).execute(SNAPSHOT_NAME, INDEX, 3, 5);
+		
+		assertTrue(new File(destinationDir, "indices/" + INDEX + "/3/__0").exists());
+		assertTrue(new File(destinationDir, "indices/" + INDEX + "/3/snapshot-" + SNAPSHOT_NAME).exists());
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/0").exists());
+		assertTrue(new File(destinationDir, "snapshot-" + SNAPSHOT_NAME).exists());
+		
+		// Index metadata now describes the full index
+		File manifest = new File(destinationDir, "indices/" + INDEX + "/snapshot-" + SNAPSHOT_NAME);
+		assertTrue(CompressorFactory.isCompressed(FileUtils.readFileToByteArray(manifest)));
+		IndexMetaData indexMetaData = readIndexMetadata(manifest);
+		assertEquals(INDEX, indexMetaData.getIndex());
+		assertEquals(5, indexMetaData.getNumberOfShards());
+		assertEquals(0, indexMetaData.getNumberOfReplicas());
+	}
+	
+	@Test
+	public void testBatchOfSingleShardBuilds() throws Exception {
+		String otherIndex = "conversation_other";
+		File otherIndexDir = new File(workingDir, "indices/" + otherIndex);
+		FileUtils.write(new File(otherIndexDir, "0/__0"), "other segment data");
+		writeIndexMetadata(otherIndex, new File(otherIndexDir, "snapshot-" + SNAPSHOT_NAME), 1);
+		
+		Map<String, Integer> shardNumbers = new LinkedHashMap<>();
+		shardNumbers.put(INDEX, 3);
+		shardNumbers.put(otherIndex, 1);
+		Map<String, Long> shardsPerIndex = new HashMap<>();
+		shardsPerIndex.put(otherIndex, 2l);
+		new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath()).execute(SNAPSHOT_NAME, shardNumbers, new ShardConfig(shardsPerIndex, new HashMap<String, Long>(), 5l, 2l));
+		
+		assertTrue(new File(destinationDir, "indices/" + INDEX + "/3/__0").exists());
+		assertEquals(5, readIndexMetadata(new File(destinationDir, "indices/" + INDEX + "/snapshot-" + SNAPSHOT_NAME)).getNumberOfShards());
+		assertEquals("other segment data", FileUtils.readFileToString(new File(destinationDir, "indices/" + otherIndex + "/1/__0")));
+		assertEquals(2, readIndexMetadata(new File(destinationDir, "indices/" + otherIndex + "/snapshot-" + SNAPSHOT_NAME)).getNumberOfShards());
+	}
+	
+	@Test
+	public void testStagedShardsPromotedOnce() throws Exception {
+		String firstAttempt = "attempt_201510140000_0001_r_000003_0";
+		String speculativeAttempt = "attempt_201510140000_0001_r_000003_1";
+		stage(workingDir, firstAttempt);
+		
+		// Nothing's visible in the snapshot until the post processor promotes it
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/3").exists());
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/snapshot-" + SNAPSHOT_NAME).exists());
+		assertFalse(new File(destinationDir, "snapshot-" + SNAPSHOT_NAME).exists());
+		
+		// A speculative attempt of the same reducer finishing later can't touch the shard either
+		File otherWorkingDir = Files.createTempDirectory("snapshotWorking").toFile();
+		try {
+			writeSnapshot(otherWorkingDir, "speculative segment data");
+			stage(otherWorkingDir, speculativeAttempt);
+		} finally {
+			FileUtils.deleteDirectory(otherWorkingDir);
+		}
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/3").exists());
+		
+		LocalFSSnapshotTransport postProcessor = new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath());
+		assertEquals(1, postProcessor.promoteStagedShards(SNAPSHOT_NAME));
+		assertEquals("segment data", FileUtils.readFileToString(new File(destinationDir, "indices/" + INDEX + "/3/__0")));
+		assertEquals(firstAttempt, postProcessor.getCommittedAttempt(INDEX, 3));
+		assertEquals(5, readIndexMetadata(new File(destinationDir, "indices/" + INDEX + "/snapshot-" + SNAPSHOT_NAME)).getNumberOfShards());
+		
+		// Promoted shards stay put
+		assertEquals(0, postProcessor.promoteStagedShards(SNAPSHOT_NAME));
+		
+		postProcessor.cleanStaging();
+		assertFalse(new File(destinationDir, BaseTransport.STAGING_DIR).exists());
+		assertFalse(new File(destinationDir, BaseTransport.COMMITS_DIR).exists());
+	}
+	
+	@Test
+	public void testUncommittedStagedShardNotPromoted() throws Exception {
+		stage(workingDir, "attempt_201510140000_0001_r_000003_0");
+		
+		// Killed mid upload, before its commit record
+		FileUtils.deleteDirectory(new File(destinationDir, BaseTransport.COMMITS_DIR));
+		assertEquals(0, new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath()).promoteStagedShards(SNAPSHOT_NAME));
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/3").exists());
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/snapshot-" + SNAPSHOT_NAME).exists());
+	}
+	
+	@Test
+	public void testInterruptedPromoteRedone() throws Exception {
+		stage(workingDir, "attempt_201510140000_0001_r_000003_0");
+		
+		// A post processor that died part way through promoting left some of the shard but no marker
+		FileUtils.write(new File(destinationDir, "indices/" + INDEX + "/3/__9"), "partial");
+		LocalFSSnapshotTransport postProcessor = new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath());
+		assertEquals(1, postProcessor.promoteStagedShards(SNAPSHOT_NAME));
+		assertFalse(new File(destinationDir, "indices/" + INDEX + "/3/__9").exists());
+		assertEquals("segment data", FileUtils.readFileToString(new File(destinationDir, "indices/" + INDEX + "/3/__0")));
+	}
+	
+	@Test
+	public void testCommittedAttemptReadBack() throws Exception {
+		String attemptId = "attempt_201510140000_0001_r_000003_0";
+		LocalFSSnapshotTransport transport = new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath());
+		assertNull(transport.getCommittedAttempt(INDEX, 3));
+		
+		transport.setAttemptId(attemptId);
+		transport.execute(SNAPSHOT_NAME, INDEX, 3, 5);
+		
+		assertEquals("segment data", FileUtils.readFileToString(new File(destinationDir, "indices/" + INDEX + "/3/__0")));
+		assertEquals(attemptId, transport.getCommittedAttempt(INDEX, 3));
+		assertNull(transport.getCommittedAttempt(INDEX, 1));
+		
+		// Shard data that went missing since doesn't count as committed
+		FileUtils.deleteDirectory(new File(destinationDir, "indices/" + INDEX + "/3"));
+		assertNull(transport.getCommittedAttempt(INDEX, 3));
+	}
+	
+	@Test
+	public void testCommittedShardsScopedToTask() throws Exception {
+		String attemptId = "attempt_201510140000_0001_r_000003_0";
+		LocalFSSnapshotTransport transport = new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath());
+		assertTrue(transport.getCommittedShards(attemptId).isEmpty());
+		
+		// Staged or in place, both count
+		stage(workingDir, attemptId);
+		writeSnapshot(workingDir, "segment data");
+		transport.setAttemptId(attemptId);
+		transport.execute(SNAPSHOT_NAME, INDEX, 1, 5);
+		
+		assertEquals(new HashSet<>(Arrays.asList(INDEX + "/1", INDEX + "/3")), transport.getCommittedShards("attempt_201510140000_0001_r_000003_1"));
+		
+		// Another task, or the same task of a previous run of the job
+		assertTrue(transport.getCommittedShards("attempt_201510140000_0001_r_000004_0").isEmpty());
+		assertTrue(transport.getCommittedShards("attempt_201510130000_0007_r_000003_0").isEmpty());
+	}
+	
+	@Test
+	public void testConnectedTransportReused() throws Exception {
+		final AtomicInteger inits = new AtomicInteger();
+		LocalFSSnapshotTransport transport = new LocalFSSnapshotTransport(workingDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath()) {
+			@Override
+			protected void init() {
+				inits.incrementAndGet();
+			}
+		};
+		transport.connect();
+		transport.getCommittedShards("attempt_201510140000_0001_r_000003_0");
+		transport.execute(SNAPSHOT_NAME, INDEX, 3, 5);
+		transport.getCommittedAttempt(INDEX, 3);
+		transport.disconnect();
+		assertEquals(1, inits.get());
+	}
+	
+	private void stage(File snapshotDir, String attemptId) throws IOException {
+		LocalFSSnapshotTransport transport = new LocalFSSnapshotTransport(snapshotDir.getAbsolutePath() + "/", destinationDir.getAbsolutePath());
+		transport.setAttemptId(attemptId);
+		transport.setStagingEnabled(true);
+		transport.execute(SNAPSHOT_NAME, INDEX, 3, 5);
+	}
+	
+	/**
+	 * Lay out a snapshot repo the way the fs repository would for a 1 shard index
+	 */
+	private void writeSnapshot(File dir, String segmentData) throws IOException {
+		FileUtils.write(new File(dir, "metadata-" + SNAPSHOT_NAME), "{}");
+		FileUtils.write(new File(dir, "snapshot-" + SNAPSHOT_NAME), "{}");
+		FileUtils.write(new File(dir, "index"), "{}");
+		File indexDir = new File(dir, "indices/" + INDEX);
+		FileUtils.write(new File(indexDir, "0/__0"), segmentData);
+		FileUtils.write(new File(indexDir, "0/snapshot-" + SNAPSHOT_NAME), "{}");
+		writeIndexMetadata(INDEX, new File(indexDir, "snapshot-" + SNAPSHOT_NAME), 1);
+	}
+	
+	private void writeIndexMetadata(String index, File file, int numShards) throws IOException {
+		IndexMetaData indexMetaData = IndexMetaData.builder(index).settings(ImmutableSettings.settingsBuilder()
+				.put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, numShards)
+				.put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, 0)).build();
+		
+		XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON, CompressorFactory.defaultCompressor().streamOutput(new OutputStreamStreamOutput(new FileOutputStream(file))));
+		builder.startObject();
+		IndexMetaData.Builder.toXContent(indexMetaData, builder, ToXContent.EMPTY_PARAMS);
+		builder.endObject();
+		builder.close();
+	}
+	
+	private IndexMetaData readIndexMetadata(File file) throws IOException {
+		byte[] bytes = FileUtils.readFileToByteArray(file);
+		XContentParser parser = XContentHelper.createParser(bytes, 0, bytes.length);
+		try {
+			parser.nextToken();
+			return IndexMetaData.Builder.fromXContent(parser);
+		} finally {
+			parser.close();
+		}
+	}
+}
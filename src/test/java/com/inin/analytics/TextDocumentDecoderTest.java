@@ -0,0 +1,55 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.indexer.TextDocumentDecoder;
+
+public class TextDocumentDecoderTest {
+
+	@Test
+	public void testDecode() {
+		TextDocumentDecoder decoder = new TextDocumentDecoder();
+		decoder.decode(new Text("conversation|abc123|{\"color\":\"blue\"}"));
+		assertEquals("conversation", decoder.getIndexType());
+		assertEquals("abc123", decoder.getDocId());
+		assertEquals("{\"color\":\"blue\"}", decoder.getSource().toUtf8());
+	}
+	
+	@Test
+	public void testSeparatorInJson() {
+		// Only the first 2 separators are significant, the json body is left alone
+		TextDocumentDecoder decoder = new TextDocumentDecoder();
+		decoder.decode(new Text("conversation|abc123|{\"description\":\"a|b||c\"}"));
+		assertEquals("abc123", decoder.getDocId());
+		assertEquals("{\"description\":\"a|b||c\"}", decoder.getSource().toUtf8());
+	}
+	
+	@Test
+	public void testReusedText() {
+		// Hadoop reuses the Text between values, a shorter value must not pick up bytes left over from a longer one
+		TextDocumentDecoder decoder = new TextDocumentDecoder();
+		Text line = new Text("conversation|abc123|{\"description\":\"a much longer document\"}");
+		decoder.decode(line);
+		line.set("t|1|{}");
+		decoder.decode(line);
+		assertEquals("t", decoder.getIndexType());
+		assertEquals("1", decoder.getDocId());
+		assertEquals("{}", decoder.getSource().toUtf8());
+	}
+	
+	@Test
+	public void testMultiByteCharacters() {
+		TextDocumentDecoder decoder = new TextDocumentDecoder();
+		decoder.decode(new Text("conversation|été|{\"name\":\"日本\"}"));
+		assertEquals("été", decoder.getDocId());
+		assertEquals("{\"name\":\"日本\"}", decoder.getSource().toUtf8());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testMissingId() {
+		new TextDocumentDecoder().decode(new Text("conversation{\"color\":\"blue\"}"));
+	}
+}
@@ -0,0 +1,75 @@
+package com.inin.analytics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.inin.analytics.elasticsearch.Heartbeat;
+import com.inin.analytics.elasticsearch.Waiter;
+
+public class WaiterTest {
+	private Waiter waiter = new Waiter(new Heartbeat(null));
+
+	@Test
+	public void testAwaitCondition() throws IOException {
+		final long done = System.currentTimeMillis() + 100;
+		waiter.await(new Waiter.Condition() {
+			@Override
+			public boolean isDone() {
+				return System.currentTimeMillis() >= done;
+			}
+		}, "waiting on the clock", 5000);
+	}
+
+	@Test
+	public void testConditionTimesOut() {
+		try {
+			waiter.await(new Waiter.Condition() {
+				@Override
+				public boolean isDone() {
+					return false;
+				}
+			}, "waiting on nothing", 50);
+			fail("Should have timed out");
+		} catch (IOException e) {
+			assertEquals("Timed out after 50ms waiting on nothing", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testAwaitFuture() throws IOException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> future = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					Thread.sleep(50);
+					return "done";
+				}
+			});
+			assertEquals("done", waiter.await(future, "waiting on a future", 5000));
+
+			future = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					throw new IllegalStateException("boom");
+				}
+			});
+			try {
+				waiter.await(future, "waiting on a failure", 5000);
+				fail("Should have failed");
+			} catch (IOException e) {
+				assertEquals("boom", e.getCause().getMessage());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}